@@ -8,38 +8,33 @@
 
 void propagate_sets_local( LCriticalPoint * lcps, int lcl_idx );
 
-void kernel_cps_extract( LCriticalPoint * lcps, __global float * d_input, __global uint * d_djs, __global int * d_cps, int imageW, int imageH, __global int * d_histogram );
-
-
-__kernel void kernel_cps_extract_256( int imageW, int imageH,
-										__global float * d_input,
-										__global uint * d_djs,
-										__global int * d_cps,
-										__global int * d_histogram
-										)
+void kernel_cps_extract_l( LCriticalPoint * lcps, __global float * d_input, __global uint * d_djs, __global int * d_cps, int imageW, int imageH, __global int * d_histogram );
+
+
+// work group tile, set at build time with -D EXTRACT_W=.. -D EXTRACT_H=..
+#ifndef EXTRACT_W
+#define EXTRACT_W 16
+#endif
+#ifndef EXTRACT_H
+#define EXTRACT_H 16
+#endif
+
+__kernel __attribute__((reqd_work_group_size(EXTRACT_W, EXTRACT_H, 1)))
+void kernel_cps_extract( int imageW, int imageH,
+							__global float * d_input,
+							__global uint * d_djs,
+							__global int * d_cps,
+							__global int * d_histogram
+							)
 {
 
-    LCriticalPoint lcps[256];
-    kernel_cps_extract( lcps, d_input, d_djs, d_cps, imageW, imageH, d_histogram );
+    LCriticalPoint lcps[EXTRACT_W*EXTRACT_H];
+    kernel_cps_extract_l( lcps, d_input, d_djs, d_cps, imageW, imageH, d_histogram );
 
 }
 
 
-__kernel void kernel_cps_extract_1024( int imageW, int imageH,
-										__global float * d_input,
-										__global uint * d_djs,
-										__global int * d_cps,
-										__global  int  * d_histogram
-										)
-{
-
-	LCriticalPoint lcps[1024];
-    kernel_cps_extract( lcps, d_input, d_djs, d_cps, imageW, imageH, d_histogram );
-
-}
-
-
-void kernel_cps_extract( LCriticalPoint * lcps, __global float * d_input, __global uint * d_djs, __global int * d_cps, int imageW, int imageH, __global int * d_histogram ){
+void kernel_cps_extract_l( LCriticalPoint * lcps, __global float * d_input, __global uint * d_djs, __global int * d_cps, int imageW, int imageH, __global int * d_histogram ){
 
 	int x   = get_global_id(0);
     int y   = get_global_id(1);
@@ -61,6 +56,10 @@ void kernel_cps_extract( LCriticalPoint * lcps, __global float * d_input, __glob
     if( validLocation(x,y,imageW,imageH) ){
     	cp_extract_l( d_input, d_djs, x,y,imageW,imageH, lcps+lcl_idx );
     }
+    else {
+    	// the grid is rounded up to whole tiles
+    	cp_init_l( lcps+lcl_idx );
+    }
     barrier(CLK_LOCAL_MEM_FENCE);
 
     // sort cps
@@ -0,0 +1,83 @@
+#include <common.hcl>
+#include <heap.hcl>
+#include <critical_point.hcl>
+#include <histogram.hcl>
+#include <neighborhood3d.hcl>
+
+
+// Every vertex whose upper neighbors reach two or more sets is written
+// with those sets; unlike kernel_cps_extract there is no saddle test on the
+// link and no merging within a work group, propagation drops candidates
+// whose sets were already merged higher up. More than 8 sets are written
+// as a chain of critical points at the vertex, each after the first
+// repeating the largest set. Nothing past capacity (in ints) is written;
+// the heap pointer still counts it, so the host can tell.
+__kernel void kernel_cps_extract3d( int imageW, int imageH, int imageD,
+							__global float * d_input,
+							__global uint * d_djs,
+							__global int * d_cps,
+							__global int * d_histogram,
+							int capacity
+							)
+{
+	int idx = get_global_id(0);
+	if( idx >= imageW*imageH*imageD ) return;
+
+	int x = idx%imageW;
+	int y = (idx/imageW)%imageH;
+	int z = idx/(imageW*imageH);
+
+	float myVal = getValueIdx( d_input, idx );
+
+	// roots of the upper neighbors, decreasing, without repeats
+	int sets[NEIGHBOR_N-1];
+	int setN = 0;
+	for( int i = 0; i < NEIGHBOR_N; i++ ){
+		int u = x+neighborX3[i];
+		int v = y+neighborY3[i];
+		int s = z+neighborZ3[i];
+		if( i == NEIGHBOR_CENTER || !validLocation3( u, v, s, imageW, imageH, imageD ) ) continue;
+
+		int   curIdx = getIndex3( u, v, s, imageW, imageH );
+		float curVal = getValueIdx( d_input, curIdx );
+		if( curVal > myVal || ( curVal == myVal && curIdx < idx ) ){
+			int sid = d_djs[curIdx];
+			for( int j = 0; j <= setN; j++ ){
+				if( j == setN ){
+					sets[setN++] = sid;
+					break;
+				}
+				if( sets[j] == sid ) break;
+				if( sets[j] < sid ){
+					int tmp = sets[j];
+					sets[j] = sid;
+					sid = tmp;
+				}
+			}
+		}
+	}
+	if( setN < 2 ) return;
+
+	int bucket = getHistogramBucket( (GHistogram*)d_histogram, myVal );
+	Heap cps_heap = hinit( d_cps );
+
+	int next = 0;
+	while( next < setN ){
+		int ids[8];
+		int k = 0;
+		if( next > 0 ) ids[k++] = sets[0];
+		while( k < 8 && next < setN ) ids[k++] = sets[next++];
+
+		GCriticalPoint * cp = (GCriticalPoint*)halloc( cps_heap, sizeof(GCriticalPoint)/4 );
+		if( (__global int*)(cp+1) - d_cps > capacity ) continue;
+
+		cp->location = idx;
+		cp->value    = myVal;
+		cp->ref      = k;
+		for( int j = 0; j < 8; j++ ){
+			cp->setID[j] = ( j < k ) ? ids[j] : -1;
+		}
+		incHistogramBucketSize( (GHistogram*)d_histogram, bucket );
+	}
+
+}
@@ -60,12 +60,18 @@ void kernel_cps_propagate_merges_phase_2( LCriticalPoint * lCurr, GCriticalPoint
 
 
 
-__kernel void kernel_cps_propagate_256( __global int * d_cps, __global int * d_locks, int phase, __global int * d_mod_counter, int cpsOffset ){
+// work group size, set at build time with -D PROPAGATE_SIZE=..
+#ifndef PROPAGATE_SIZE
+#define PROPAGATE_SIZE 256
+#endif
+
+__kernel __attribute__((reqd_work_group_size(PROPAGATE_SIZE, 1, 1)))
+void kernel_cps_propagate( __global int * d_cps, __global int * d_locks, int phase, __global int * d_mod_counter, int cpsOffset, int slotN ){
 
 	int gThrdIdx = get_global_id(0);
 	int lThrdIdx = get_local_id(0);
 
-    LCriticalPoint lcps[256];
+    LCriticalPoint lcps[PROPAGATE_SIZE];
 	LCriticalPoint * lCurr = lcps+lThrdIdx;
 
 	int cpIdx = cpsOffset + gThrdIdx;
@@ -74,28 +80,19 @@ __kernel void kernel_cps_propagate_256( __global int * d_cps, __global int * d_l
 	GCriticalPoint* cps   = (GCriticalPoint*)(d_cps+1);
 	GCriticalPoint* gCurr = cps+cpIdx;
 
-	__global int * modified_counter = d_mod_counter + (phase-1)*2;
-
-    if( phase == 1 ) kernel_cps_propagate_merges_phase_1( gCurr, cpIdx, cpsN, d_locks );
-    if( phase >= 2 ) kernel_cps_propagate_merges_phase_2( lCurr, gCurr, cpIdx, cpsN, cps, d_locks, modified_counter, modified_counter+1 );
-
-}
-
-__kernel void kernel_cps_propagate_1024( __global int * d_cps, __global int * d_locks, int phase, __global int * d_mod_counter, int cpsOffset ){
-
-	int gThrdIdx = get_global_id(0);
-	int lThrdIdx = get_local_id(0);
-
-    LCriticalPoint lcps[1024];
-	LCriticalPoint * lCurr = lcps+lThrdIdx;
+	// {modifications, lowest modified cp} of each phase, in a ring of slotN
+	__global int * modified_counter = d_mod_counter + ((phase-1)%slotN)*2;
+	__global int * previous_counter = d_mod_counter + ((phase+slotN-2)%slotN)*2;
+	__global int * next_counter     = d_mod_counter + (phase%slotN)*2;
 
-	int cpIdx = cpsOffset + gThrdIdx;
-	int cpsN  = ((*d_cps)-1)/(sizeof(GCriticalPoint)/4);
-
-	GCriticalPoint* cps   = (GCriticalPoint*)(d_cps+1);
-	GCriticalPoint* gCurr = cps+cpIdx;
+	// the next phase's slot was last used slotN phases ago
+	if( gThrdIdx == 0 ){
+		next_counter[0] = 0;
+		next_counter[1] = INT_MAX;
+	}
 
-	__global int * modified_counter = d_mod_counter + (phase-1)*2;
+	// converged, or below the lowest cp changed last phase, which nothing can change
+	if( phase >= 3 && ( previous_counter[0] == 0 || cpIdx < previous_counter[1] ) ) return;
 
     if( phase == 1 ) kernel_cps_propagate_merges_phase_1( gCurr, cpIdx, cpsN, d_locks );
     if( phase >= 2 ) kernel_cps_propagate_merges_phase_2( lCurr, gCurr, cpIdx, cpsN, cps, d_locks, modified_counter, modified_counter+1 );
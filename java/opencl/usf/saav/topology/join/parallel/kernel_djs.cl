@@ -114,3 +114,12 @@ __kernel void kernel_djs( int imageW, int imageH, __global float * d_input, __gl
 }
 
 
+
+
+// d_output = -d_input, so the second orientation of a field needs no second upload
+__kernel void kernel_negate( int size, __global float * d_input, __global float * d_output ) {
+	int i = get_global_id(0);
+	if( i < size ){
+		d_output[i] = -d_input[i];
+	}
+}
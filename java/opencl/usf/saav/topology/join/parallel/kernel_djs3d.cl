@@ -0,0 +1,48 @@
+
+#include <common.hcl>
+#include <neighborhood3d.hcl>
+
+
+// Phase 1: every vertex points at the largest value among itself and its
+// neighbors, the first in memory order on ties. Phase 2: every vertex
+// points at its root. Other work items only ever shorten a path while it
+// is followed, so phase 2 needs no synchronization.
+__kernel void kernel_djs3d( int imageW, int imageH, int imageD, __global float * d_input, __global uint * d_djs, int phase ) {
+
+	int idx = get_global_id(0);
+	if( idx >= imageW*imageH*imageD ) return;
+
+	if( phase == 1 ){
+		int x = idx%imageW;
+		int y = (idx/imageW)%imageH;
+		int z = idx/(imageW*imageH);
+
+		float largestVal = -FLT_MAX;
+		int   largestIdx = -1;
+		for( int i = 0; i < NEIGHBOR_N; i++ ){
+			int u = x+neighborX3[i];
+			int v = y+neighborY3[i];
+			int s = z+neighborZ3[i];
+			if( !validLocation3( u, v, s, imageW, imageH, imageD ) ) continue;
+
+			int   curIdx = getIndex3( u, v, s, imageW, imageH );
+			float curVal = getValueIdx( d_input, curIdx );
+			if( curVal > largestVal ){
+				largestVal = curVal;
+				largestIdx = curIdx;
+			}
+		}
+		d_djs[idx] = largestIdx;
+	}
+
+	if( phase == 2 ){
+		uint curSet = d_djs[idx];
+		uint newSet = d_djs[curSet];
+		while( curSet != newSet ){
+			curSet = newSet;
+			newSet = d_djs[curSet];
+		}
+		d_djs[idx] = curSet;
+	}
+
+}
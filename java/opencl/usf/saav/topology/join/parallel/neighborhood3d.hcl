@@ -0,0 +1,35 @@
+#ifndef __NEIGHBORHOOD3D_HCL__
+#define __NEIGHBORHOOD3D_HCL__
+
+// A volume vertex and its neighbors, in memory order (x fastest), set at
+// build time with -D CONNECTIVITY=6 or -D CONNECTIVITY=26.
+#ifndef CONNECTIVITY
+#define CONNECTIVITY 6
+#endif
+
+#if CONNECTIVITY == 26
+#define NEIGHBOR_N      27
+#define NEIGHBOR_CENTER 13
+int constant neighborX3[27] = { -1,  0,  1, -1,  0,  1, -1,  0,  1, -1,  0,  1, -1,  0,  1, -1,  0,  1, -1,  0,  1, -1,  0,  1, -1,  0,  1 };
+int constant neighborY3[27] = { -1, -1, -1,  0,  0,  0,  1,  1,  1, -1, -1, -1,  0,  0,  0,  1,  1,  1, -1, -1, -1,  0,  0,  0,  1,  1,  1 };
+int constant neighborZ3[27] = { -1, -1, -1, -1, -1, -1, -1, -1, -1,  0,  0,  0,  0,  0,  0,  0,  0,  0,  1,  1,  1,  1,  1,  1,  1,  1,  1 };
+#else
+#define NEIGHBOR_N      7
+#define NEIGHBOR_CENTER 3
+int constant neighborX3[7] = {  0,  0, -1,  0,  1,  0,  0 };
+int constant neighborY3[7] = {  0, -1,  0,  0,  0,  1,  0 };
+int constant neighborZ3[7] = { -1,  0,  0,  0,  0,  0,  1 };
+#endif
+
+
+bool validLocation3( int x, int y, int z, int w, int h, int d );
+bool validLocation3( int x, int y, int z, int w, int h, int d ){
+	return (x >= 0 && x < w && y >= 0 && y < h && z >= 0 && z < d );
+}
+
+int getIndex3( int x, int y, int z, int w, int h );
+int getIndex3( int x, int y, int z, int w, int h ){
+	return (z*h+y)*w+x;
+}
+
+#endif
@@ -0,0 +1,440 @@
+package usf.saav.cmd;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Random;
+
+import usf.saav.topology.reebgraph.ReebGraphLoader;
+import usf.saav.topology.reebgraph.pairing.MergePairing;
+import usf.saav.topology.reebgraph.pairing.PropagateAndPair;
+
+/**
+ * Differential test of the pairing engines. Random connected graphs are
+ * paired by every engine configuration. Each diagram is compared with an
+ * exact extended persistence diagram from a matrix reduction of the graph,
+ * and with the diagram of every other configuration; the two kinds of
+ * mismatch are counted and reported separately. Native forks must give
+ * exactly the pairs of the conditioned chain, and parallel conditioning the
+ * pairs of serial conditioning, so their configurations are compared like
+ * any other. Pairs are matched by global ids, ignoring
+ * zero-persistence pairs of a vertex with itself. On a
+ * mismatch (or an exception) the graph is shrunk by removing edges (and the
+ * vertices they leave isolated) for as long as the same failure persists,
+ * and the minimized graph is written in the usual "v id value" / "e id id"
+ * format.
+ *
+ * Before the random trials, the serial engines are checked against the
+ * pinned diagram of a fixed graph with a hub, see checkHubGraph().
+ *
+ * Usage: DifferentialTestCLI [trials] [maxVertices] [seed] [outputDirectory]
+ */
+public class DifferentialTestCLI {
+
+	static final String [] names = new String[] {
+			"MergePairing",
+			"PropagateAndPair",
+			"MergePairing (native forks)",
+			"PropagateAndPair (native forks)",
+			"MergePairing (parallel conditioning)",
+			"PropagateAndPair (parallel conditioning)"
+	};
+
+	static final PairingService [] engines = new PairingService[] {
+			new PairingService( new MergePairing() ),
+			new PairingService( new PropagateAndPair() ),
+			new PairingService( new MergePairing(), new ReebGraphLoader.Options().nativeForks( true ) ),
+			new PairingService( new PropagateAndPair(), new ReebGraphLoader.Options().nativeForks( true ) ),
+			new PairingService( new MergePairing(), new ReebGraphLoader.Options().parallelCondition( true ) ),
+			new PairingService( new PropagateAndPair(), new ReebGraphLoader.Options().parallelCondition( true ) )
+	};
+
+
+	public static void main( String[] args ) throws Exception {
+		int    trials = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+		int    maxV   = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+		long   seed   = (args.length > 2) ? Long.parseLong(args[2]) : 0;
+		String outDir = (args.length > 3) ? args[3] : ".";
+
+		String hub = checkHubGraph();
+		System.out.println( "hub graph: " + ( ( hub == null ) ? "ok" : hub ) );
+
+		Random rand = new Random( seed );
+		int oracleFailed = 0, enginesFailed = 0;
+		for( int t = 0; t < trials; t++ ) {
+			Graph g = randomGraph( rand, 2 + rand.nextInt( maxV-1 ) );
+			String [] failure = check( g );
+			if( failure[0] == null && failure[1] == null ) continue;
+
+			if( failure[0] != null ) oracleFailed++;
+			if( failure[1] != null ) enginesFailed++;
+			Graph m = minimize( g );
+			String file = outDir + "/diff_" + seed + "_" + t + ".txt";
+			m.save( file );
+			System.out.println( "trial " + t + ": " + describe( failure ) );
+			System.out.println( "   minimized from " + g.vertN() + "/" + g.edgeN() + " to " + m.vertN() + "/" + m.edgeN() + " vertices/edges: " + file );
+			System.out.println( "   now: " + describe( check( m ) ) );
+		}
+		System.out.println( trials + " trials, " + oracleFailed + " differ from the exact diagram, " + enginesFailed + " with engines disagreeing" );
+	}
+
+
+	/**
+	 * Pairs the graph with every engine and compares each diagram with the
+	 * exact one, then the engines' diagrams with each other, so that a fault
+	 * shared by two engines still shows up against the oracle and a fault of
+	 * the oracle does not hide a disagreement between engines.
+	 *
+	 * @return the engines that disagree with the exact diagram (or threw),
+	 *         and the pairs of engines that disagree with each other; each
+	 *         null if there are none. Equal descriptions mean the same
+	 *         failure.
+	 */
+	static String [] check( Graph g ) {
+		PairingDiagram exact = exactPairs( g );
+		PairingDiagram [] diagrams = new PairingDiagram[engines.length];
+		String oracle = null;
+		for( int e = 0; e < engines.length; e++ ) {
+			String err = null;
+			try {
+				diagrams[e] = withoutSelfPairs( engines[e].pair( g.ids, g.values, g.from, g.to ) );
+				if( !TestResults.compareDiagrams( exact, diagrams[e], false ) ) {
+					err = names[e] + " differs";
+				}
+			} catch( Throwable ex ) {
+				err = names[e] + " threw " + ex.getClass().getName();
+			}
+			if( err != null ) oracle = ( oracle == null ) ? err : oracle + ", " + err;
+		}
+
+		String pairwise = null;
+		for( int e0 = 0; e0 < engines.length; e0++ ) {
+			for( int e1 = e0+1; e1 < engines.length; e1++ ) {
+				if( diagrams[e0] == null || diagrams[e1] == null ) continue;
+				if( TestResults.compareDiagrams( diagrams[e0], diagrams[e1], false ) ) continue;
+				String err = names[e0] + " / " + names[e1];
+				pairwise = ( pairwise == null ) ? err : pairwise + ", " + err;
+			}
+		}
+		return new String[] { oracle, pairwise };
+	}
+
+	static String describe( String [] failure ) {
+		if( failure[0] == null && failure[1] == null ) return "ok";
+		String ret = ( failure[0] == null ) ? "" : "exact diagram: " + failure[0];
+		if( failure[1] != null ) ret += ( ret.isEmpty() ? "" : "; " ) + "engines disagree: " + failure[1];
+		return ret;
+	}
+
+
+	/**
+	 * A minimized failure of the conditioning step. Vertex 28 is a minimum
+	 * of degree 5; while it is split into a chain, its nearest neighbors go
+	 * to the vertices already split off, so the gap to the nearest remaining
+	 * one grows. When each step was a fixed share of that gap, the chain
+	 * passed vertex 6, which it is not adjacent to, and the pairs (6,5) and
+	 * (28,16) took the place of (28,5) and (6,16). The vertices of the other
+	 * two components only fill the ranks between.
+	 */
+	static Graph hubGraph() {
+		Graph g = new Graph( 13, 11 );
+		g.ids    = new int[]   {  3,   5,   6,   8,   9,  10,  12,  16,  17,  23,  25,  28,  29 };
+		g.values = new float[] { .69f, .91f, .16f, .62f, .18f, .42f, .26f, .77f, .74f, .96f, .22f, 0f, .83f };
+		g.from   = new int[]   { 10,  6,  6, 17,  9,  3, 28, 28, 28, 28, 28 };
+		g.to     = new int[]   { 16, 17, 23, 16,  8, 25, 12, 29, 16, 23,  5 };
+		return g;
+	}
+
+	// "type type id id" of every pair of hubGraph(), as R reports them
+	static final String [] hubPairs = new String[] {
+			"LEAF_MIN LEAF_MAX 25 3",
+			"LEAF_MIN LEAF_MAX 9 8",
+			"LEAF_MIN LEAF_MAX 28 23",
+			"UPFORK LEAF_MAX 28 12",
+			"UPFORK LEAF_MAX 28 29",
+			"UPFORK LEAF_MAX 28 5",
+			"LEAF_MIN DOWNFORK 6 16",
+			"UPFORK LEAF_MAX 6 16",
+			"LEAF_MIN DOWNFORK 10 16",
+			"UPFORK DOWNFORK 28 23"
+	};
+
+	/**
+	 * Pairs hubGraph() with the serial engines, those behind R's
+	 * reeb_graph_pairs(), and compares their diagrams, types included, with
+	 * hubPairs.
+	 *
+	 * @return the engines whose diagram differs (or that threw), or null
+	 */
+	static String checkHubGraph() {
+		Graph g = hubGraph();
+		String [] expected = hubPairs.clone();
+		Arrays.sort( expected );
+		String ret = null;
+		for( int e = 0; e < 2; e++ ) {
+			String err = null;
+			try {
+				PairingDiagram d = engines[e].pair( g.ids, g.values, g.from, g.to );
+				String [] vt = d.getVTypes(), pt = d.getPTypes();
+				int [] vg = d.getVGlobalIDs(), pg = d.getPGlobalIDs();
+				String [] rows = new String[d.size()];
+				for( int i = 0; i < rows.length; i++ ) {
+					rows[i] = vt[i] + " " + pt[i] + " " + vg[i] + " " + pg[i];
+				}
+				Arrays.sort( rows );
+				if( !Arrays.equals( expected, rows ) ) err = names[e] + " differs: " + Arrays.toString( rows );
+			} catch( Throwable ex ) {
+				err = names[e] + " threw " + ex.getClass().getName();
+			}
+			if( err != null ) ret = ( ret == null ) ? err : ret + ", " + err;
+		}
+		return ret;
+	}
+
+
+	/**
+	 * Greedily drops chunks of edges, halving the chunk size down to single
+	 * edges, while the graph still fails the same way.
+	 */
+	static Graph minimize( Graph g ) {
+		String [] failure = check( g );
+		for( int chunk = Math.max( 1, g.edgeN()/2 ); chunk >= 1; chunk /= 2 ) {
+			boolean progress = true;
+			while( progress ) {
+				progress = false;
+				for( int start = 0; start < g.edgeN(); start += chunk ) {
+					Graph h = g.withoutEdges( start, Math.min( g.edgeN(), start+chunk ) );
+					if( h.edgeN() > 0 && Arrays.equals( failure, check( h ) ) ) {
+						g = h;
+						progress = true;
+						break;
+					}
+				}
+			}
+		}
+		return g;
+	}
+
+
+	/**
+	 * Ids are 0..vertN-1. A random spanning tree plus extra edges, with some
+	 * repeated values and the occasional hub of high degree.
+	 */
+	static Graph randomGraph( Random rand, int vertN ) {
+		int extraN = rand.nextInt( vertN/2 + 1 );
+		int hubN   = rand.nextInt( 3 ) == 0 ? 1 + rand.nextInt( Math.max( 1, vertN/4 ) ) : 0;
+		int edgeN  = vertN - 1 + extraN + hubN;
+
+		Graph g = new Graph( vertN, edgeN );
+		boolean ties = rand.nextBoolean();
+		for( int i = 0; i < vertN; i++ ) {
+			g.ids[i] = i;
+			g.values[i] = ties ? rand.nextInt( Math.max( 2, vertN/3 ) ) : rand.nextFloat();
+		}
+
+		int e = 0;
+		for( int i = 1; i < vertN; i++ ) {
+			g.from[e] = rand.nextInt( i );
+			g.to[e++] = i;
+		}
+		while( e < vertN-1+extraN ) {
+			int a = rand.nextInt( vertN ), b = rand.nextInt( vertN );
+			if( a == b ) continue;
+			g.from[e] = a;
+			g.to[e++] = b;
+		}
+		int hub = rand.nextInt( vertN );
+		while( e < edgeN ) {
+			int b = rand.nextInt( vertN );
+			if( b == hub ) b = (b+1) % vertN;
+			g.from[e] = hub;
+			g.to[e++] = b;
+		}
+		return g;
+	}
+
+
+	/**
+	 * Extended persistence of the graph by Z2 reduction of the coned
+	 * filtration: the cone point, vertices and edges in ascending lower-star
+	 * order, then cones over vertices and edges in descending upper-star
+	 * order. Ties are broken by input position, as the loader does. Each
+	 * reported pair joins the vertices that create and destroy a class.
+	 */
+	static PairingDiagram exactPairs( Graph g ) {
+		int vertN = g.vertN(), edgeN = g.edgeN();
+		HashMap<Integer,Integer> pos = new HashMap<Integer,Integer>();
+		for( int i = 0; i < vertN; i++ ) pos.put( g.ids[i], i );
+
+		final float [] val = g.values;
+		Integer [] byValue = new Integer[vertN];
+		for( int i = 0; i < vertN; i++ ) byValue[i] = i;
+		Arrays.sort( byValue, new java.util.Comparator<Integer>() {
+			@Override public int compare( Integer a, Integer b ) {
+				int c = Float.compare( val[a], val[b] );
+				return ( c != 0 ) ? c : Integer.compare( a, b );
+			}
+		});
+		final int [] rank = new int[vertN];
+		for( int i = 0; i < vertN; i++ ) rank[ byValue[i] ] = i;
+
+		final int [] lo = new int[edgeN], hi = new int[edgeN];
+		ArrayList<ArrayList<Integer>> upper = new ArrayList<ArrayList<Integer>>(), lower = new ArrayList<ArrayList<Integer>>();
+		for( int i = 0; i < vertN; i++ ) {
+			upper.add( new ArrayList<Integer>() );
+			lower.add( new ArrayList<Integer>() );
+		}
+		for( int e = 0; e < edgeN; e++ ) {
+			int a = pos.get( g.from[e] ), b = pos.get( g.to[e] );
+			lo[e] = ( rank[a] < rank[b] ) ? a : b;
+			hi[e] = ( rank[a] < rank[b] ) ? b : a;
+			upper.get( hi[e] ).add( e );
+			lower.get( lo[e] ).add( e );
+		}
+
+		// simplex kinds: 0 vertex, 1 edge, 2 cone point, 3 cone vertex, 4 cone edge
+		int simpN = 2*(vertN+edgeN) + 1;
+		int [] kind = new int[simpN], elem = new int[simpN];
+		int [] vIdx = new int[vertN], eIdx = new int[edgeN], cvIdx = new int[vertN];
+		int cone = 0, n = 1;
+		kind[cone] = 2;
+		for( int r = 0; r < vertN; r++ ) {
+			int v = byValue[r];
+			kind[n] = 0; elem[n] = v; vIdx[v] = n++;
+			ArrayList<Integer> es = upper.get( v );
+			es.sort( new java.util.Comparator<Integer>() {
+				@Override public int compare( Integer a, Integer b ) { return Integer.compare( rank[ lo[a] ], rank[ lo[b] ] ); }
+			});
+			for( int e : es ) { kind[n] = 1; elem[n] = e; eIdx[e] = n++; }
+		}
+		for( int r = vertN-1; r >= 0; r-- ) {
+			int v = byValue[r];
+			kind[n] = 3; elem[n] = v; cvIdx[v] = n++;
+			ArrayList<Integer> es = lower.get( v );
+			es.sort( new java.util.Comparator<Integer>() {
+				@Override public int compare( Integer a, Integer b ) { return Integer.compare( rank[ hi[b] ], rank[ hi[a] ] ); }
+			});
+			for( int e : es ) { kind[n] = 4; elem[n++] = e; }
+		}
+
+		BitSet [] cols = new BitSet[simpN];
+		int [] lowOwner = new int[simpN];
+		Arrays.fill( lowOwner, -1 );
+		ArrayList<int[]> pairs = new ArrayList<int[]>();
+		for( int j = 0; j < simpN; j++ ) {
+			BitSet c = new BitSet();
+			switch( kind[j] ) {
+				case 1: c.set( vIdx[ lo[elem[j]] ] ); c.flip( vIdx[ hi[elem[j]] ] ); break;
+				case 3: c.set( vIdx[ elem[j] ] ); c.set( cone ); break;
+				case 4: c.set( eIdx[ elem[j] ] ); c.set( cvIdx[ lo[elem[j]] ] ); c.set( cvIdx[ hi[elem[j]] ] ); break;
+				default: break;
+			}
+			while( !c.isEmpty() ) {
+				int l = c.length()-1;
+				if( lowOwner[l] < 0 ) { lowOwner[l] = j; break; }
+				c.xor( cols[ lowOwner[l] ] );
+			}
+			cols[j] = c;
+			if( c.isEmpty() ) continue;
+
+			int i = c.length()-1, a, b;
+			if( kind[i] == 0 && kind[j] == 1 )      { a = elem[i];     b = hi[elem[j]]; }	// min / merge
+			else if( kind[i] == 1 && kind[j] == 4 ) { a = hi[elem[i]]; b = lo[elem[j]]; }	// loop
+			else if( kind[i] == 3 && kind[j] == 4 ) { a = elem[i];     b = lo[elem[j]]; }	// max / split
+			else if( kind[i] == 0 && kind[j] == 3 ) { a = elem[i];     b = elem[j]; }		// component
+			else continue;
+			if( a != b ) pairs.add( new int[] { g.ids[a], g.ids[b] } );
+		}
+
+		int rowN = pairs.size();
+		byte [] types = new byte[rowN];
+		int [] vGID = new int[rowN], pGID = new int[rowN];
+		for( int i = 0; i < rowN; i++ ) {
+			vGID[i] = pairs.get(i)[0];
+			pGID[i] = pairs.get(i)[1];
+		}
+		return new PairingDiagram( types, types, new float[rowN], new float[rowN], new float[rowN], new float[rowN], vGID, pGID, 0 );
+	}
+
+	static PairingDiagram withoutSelfPairs( PairingDiagram d ) {
+		byte [] vt = d.getVTypeCodes(), pt = d.getPTypeCodes();
+		int [] vg = d.getVGlobalIDs(), pg = d.getPGlobalIDs();
+		int rowN = 0;
+		for( int i = 0; i < d.size(); i++ ) if( pt[i] < 0 || vg[i] != pg[i] ) rowN++;
+		byte [] vt2 = new byte[rowN], pt2 = new byte[rowN];
+		int [] vg2 = new int[rowN], pg2 = new int[rowN];
+		int n = 0;
+		for( int i = 0; i < d.size(); i++ ) {
+			if( pt[i] >= 0 && vg[i] == pg[i] ) continue;
+			vt2[n] = vt[i]; pt2[n] = pt[i]; vg2[n] = vg[i]; pg2[n++] = pg[i];
+		}
+		return new PairingDiagram( vt2, pt2, new float[rowN], new float[rowN], new float[rowN], new float[rowN], vg2, pg2, 0 );
+	}
+
+
+	// edges hold vertex ids, so vertices can be dropped without renumbering
+	static class Graph {
+		int [] ids;
+		float [] values;
+		int [] from, to;
+
+		Graph( int vertN, int edgeN ) {
+			ids = new int[vertN];
+			values = new float[vertN];
+			from = new int[edgeN];
+			to = new int[edgeN];
+		}
+
+		int vertN() { return ids.length; }
+		int edgeN() { return from.length; }
+
+		Graph withoutEdges( int start, int end ) {
+			Graph h = new Graph( 0, 0 );
+			h.ids = ids;
+			h.values = values;
+			h.from = new int[ from.length - (end-start) ];
+			h.to = new int[ h.from.length ];
+			System.arraycopy( from, 0, h.from, 0, start );
+			System.arraycopy( from, end, h.from, start, from.length-end );
+			System.arraycopy( to, 0, h.to, 0, start );
+			System.arraycopy( to, end, h.to, start, to.length-end );
+			return h.withoutIsolated();
+		}
+
+		Graph withoutIsolated() {
+			int maxId = 0;
+			for( int id : ids ) maxId = Math.max( maxId, id );
+			boolean [] used = new boolean[ maxId+1 ];
+			for( int i = 0; i < edgeN(); i++ ) {
+				used[ from[i] ] = used[ to[i] ] = true;
+			}
+			int n = 0;
+			for( int id : ids ) if( used[id] ) n++;
+
+			Graph h = new Graph( n, 0 );
+			h.from = from;
+			h.to = to;
+			n = 0;
+			for( int i = 0; i < vertN(); i++ ) {
+				if( !used[ ids[i] ] ) continue;
+				h.ids[n] = ids[i];
+				h.values[n++] = values[i];
+			}
+			return h;
+		}
+
+		void save( String filename ) throws Exception {
+			PrintWriter pw = new PrintWriter( filename );
+			for( int i = 0; i < vertN(); i++ ) {
+				pw.println( "v " + ids[i] + " " + values[i] );
+			}
+			for( int i = 0; i < edgeN(); i++ ) {
+				pw.println( "e " + from[i] + " " + to[i] );
+			}
+			pw.close();
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package usf.saav.cmd;
+
+import java.util.Random;
+
+import usf.saav.common.Timer;
+import usf.saav.common.TimerNanosecond;
+import usf.saav.common.algorithm.ArrayDisjointSet;
+import usf.saav.common.algorithm.ConcurrentDisjointSet;
+
+public class DisjointSetBenchmarkCLI {
+
+	public static void main( String[] args ) throws InterruptedException {
+
+		int elemN  = (args.length > 0) ? Integer.parseInt(args[0]) : 1<<22;
+		int unionN = (args.length > 1) ? Integer.parseInt(args[1]) : 1<<23;
+		int repeat = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+
+		Random rand = new Random(0);
+		int [] pairs = new int[unionN*2];
+		for( int i = 0; i < pairs.length; i++ ){
+			pairs[i] = rand.nextInt( elemN );
+		}
+
+		System.out.println( "elements: " + elemN + ", unions: " + unionN + ", repeat: " + repeat );
+
+		// warm up both implementations before timing
+		for( int i = 0; i < 3; i++ ){
+			runArray( elemN, pairs );
+			runConcurrent( elemN, pairs, 1 );
+		}
+
+		Timer t = new TimerNanosecond();
+		double total = 0;
+		for( int i = 0; i < repeat; i++ ){
+			t.start();
+			runArray( elemN, pairs );
+			t.end();
+			total += t.getElapsedNanoseconds();
+		}
+		System.out.printf( "  ArrayDisjointSet: %.2fms%n", total/repeat/1.0e6 );
+
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+		for( int threadN = 1; threadN <= maxThreads; threadN *= 2 ){
+			total = 0;
+			for( int i = 0; i < repeat; i++ ){
+				t.start();
+				runConcurrent( elemN, pairs, threadN );
+				t.end();
+				total += t.getElapsedNanoseconds();
+			}
+			System.out.printf( "  ConcurrentDisjointSet (%d threads): %.2fms%n", threadN, total/repeat/1.0e6 );
+		}
+	}
+
+	private static void runArray( int elemN, int [] pairs ){
+		ArrayDisjointSet djs = new ArrayDisjointSet( elemN );
+		for( int i = 0; i < pairs.length; i += 2 ){
+			djs.union( pairs[i], pairs[i+1] );
+		}
+	}
+
+	private static void runConcurrent( int elemN, final int [] pairs, final int threadN ) throws InterruptedException {
+		final ConcurrentDisjointSet djs = new ConcurrentDisjointSet( elemN );
+		Thread [] workers = new Thread[threadN];
+		for( int t = 0; t < threadN; t++ ){
+			final int offset = t;
+			workers[t] = new Thread( new Runnable(){
+				@Override public void run() {
+					for( int i = offset*2; i < pairs.length; i += threadN*2 ){
+						djs.union( pairs[i], pairs[i+1] );
+					}
+				}
+			});
+			workers[t].start();
+		}
+		for( Thread w : workers ) w.join();
+	}
+
+}
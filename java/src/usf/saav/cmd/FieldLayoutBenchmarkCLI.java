@@ -0,0 +1,200 @@
+package usf.saav.cmd;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import usf.saav.common.Timer;
+import usf.saav.common.TimerNanosecond;
+import usf.saav.scalarfield.ScalarField2D;
+import usf.saav.scalarfield.ScalarField3D;
+import usf.saav.scalarfield.ScalarFieldND;
+
+/**
+ * Times scans, stencils and copies on row-major fields against the same
+ * fields stored in Z-order.
+ */
+public class FieldLayoutBenchmarkCLI {
+
+	// results are summed here so the loops cannot be optimized away
+	static double sink = 0;
+
+	abstract static class Task {
+		final String name;
+		Task( String _name ){ name = _name; }
+		abstract void run( ) throws Exception;
+	}
+
+	public static void main( String[] args ) throws Exception {
+
+		int size2   = (args.length > 0) ? Integer.parseInt(args[0]) : 2048;
+		int size3   = (args.length > 1) ? Integer.parseInt(args[1]) : 160;
+		int repeat  = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+		System.out.println( "2D: " + size2 + "x" + size2 + ", 3D: " + size3 + "^3, repeat: " + repeat );
+
+		ScalarField2D rows2 = new ScalarField2D.RandomField( size2, size2, 0 );
+		ScalarField2D z2    = new ScalarField2D.ZOrderField( rows2 );
+
+		Random rand = new Random( 0 );
+		float [] vals = new float[size3*size3*size3];
+		for( int i = 0; i < vals.length; i++ ) vals[i] = rand.nextFloat();
+		ScalarField3D rows3 = new ScalarField3D.ArrayField( size3, size3, size3, vals );
+		ScalarField3D z3    = new ScalarField3D.ZOrderField( rows3 );
+
+		compare( repeat, tasks2D( rows2 ), tasks2D( z2 ) );
+		compare( repeat, tasks3D( rows3 ), tasks3D( z3 ) );
+	}
+
+	private static void compare( int repeat, Task [] rows, Task [] zorder ) throws Exception {
+		for( int i = 0; i < rows.length; i++ ){
+			double tr = time( rows[i], repeat );
+			double tz = time( zorder[i], repeat );
+			System.out.printf( "  %-28s row-major: %9.2fms  Z-order: %9.2fms  (%.2fx)%n", rows[i].name, tr, tz, tr/tz );
+		}
+	}
+
+	private static double time( Task task, int repeat ) throws Exception {
+		// warm up before timing
+		for( int i = 0; i < 2; i++ ) task.run();
+
+		Timer t = new TimerNanosecond();
+		double total = 0;
+		for( int i = 0; i < repeat; i++ ){
+			t.start();
+			task.run();
+			t.end();
+			total += t.getElapsedNanoseconds();
+		}
+		return total/repeat/1.0e6;
+	}
+
+	// the merge tree backends copy every field into a row-major buffer of
+	// their own; by node id for any field, by coordinates for grids
+	private static float copy( ScalarFieldND sf ){
+		FloatBuffer buf = FloatBuffer.allocate( sf.getSize() );
+		for( int i = 0; i < sf.getSize(); i++ ) buf.put( i, sf.getValue( i ) );
+		return buf.get( sf.getSize()-1 );
+	}
+
+	private static Task [] tasks2D( final ScalarField2D sf ){
+		final int w = sf.getWidth(), h = sf.getHeight();
+		return new Task[]{
+			new Task( "2D scan by rows" ){
+				@Override void run(){
+					double sum = 0;
+					for( int y = 0; y < h; y++ )
+						for( int x = 0; x < w; x++ )
+							sum += sf.getValue( x, y );
+					sink += sum;
+				}
+			},
+			new Task( "2D scan by columns" ){
+				@Override void run(){
+					double sum = 0;
+					for( int x = 0; x < w; x++ )
+						for( int y = 0; y < h; y++ )
+							sum += sf.getValue( x, y );
+					sink += sum;
+				}
+			},
+			new Task( "2D 8-neighbor argmax" ){
+				@Override void run(){
+					long sum = 0;
+					for( int y = 1; y < h-1; y++ ){
+						for( int x = 1; x < w-1; x++ ){
+							int best = 4;
+							float bestV = sf.getValue( x, y );
+							for( int n = 0; n < 9; n++ ){
+								float v = sf.getValue( x+n%3-1, y+n/3-1 );
+								if( v > bestV ){ bestV = v; best = n; }
+							}
+							sum += best;
+						}
+					}
+					sink += sum;
+				}
+			},
+			new Task( "2D mean filter 5x5" ){
+				@Override void run(){
+					sink += new ScalarField2D.MeanFilterField( sf, 5 ).getValue( 0 );
+				}
+			},
+			new Task( "2D copy by node id" ){
+				@Override void run(){
+					sink += copy( sf );
+				}
+			},
+			new Task( "2D copy by rows" ){
+				@Override void run(){
+					FloatBuffer buf = FloatBuffer.allocate( w*h );
+					for( int y = 0, i = 0; y < h; y++ )
+						for( int x = 0; x < w; x++, i++ )
+							buf.put( i, sf.getValue( x, y ) );
+					sink += buf.get( w*h-1 );
+				}
+			},
+		};
+	}
+
+	private static Task [] tasks3D( final ScalarField3D sf ){
+		final int w = sf.getWidth(), h = sf.getHeight(), d = sf.getDepth();
+		final int [][] offsets = ScalarField3D.Connectivity.TWENTY_SIX.getOffsets();
+		return new Task[]{
+			new Task( "3D scan by slices" ){
+				@Override void run(){
+					double sum = 0;
+					for( int z = 0; z < d; z++ )
+						for( int y = 0; y < h; y++ )
+							for( int x = 0; x < w; x++ )
+								sum += sf.getValue( x, y, z );
+					sink += sum;
+				}
+			},
+			new Task( "3D scan along z" ){
+				@Override void run(){
+					double sum = 0;
+					for( int x = 0; x < w; x++ )
+						for( int y = 0; y < h; y++ )
+							for( int z = 0; z < d; z++ )
+								sum += sf.getValue( x, y, z );
+					sink += sum;
+				}
+			},
+			new Task( "3D 26-neighbor argmax" ){
+				@Override void run(){
+					long sum = 0;
+					for( int z = 1; z < d-1; z++ ){
+						for( int y = 1; y < h-1; y++ ){
+							for( int x = 1; x < w-1; x++ ){
+								int best = 13;
+								float bestV = sf.getValue( x, y, z );
+								for( int n = 0; n < offsets.length; n++ ){
+									float v = sf.getValue( x+offsets[n][0], y+offsets[n][1], z+offsets[n][2] );
+									if( v > bestV ){ bestV = v; best = n; }
+								}
+								sum += best;
+							}
+						}
+					}
+					sink += sum;
+				}
+			},
+			new Task( "3D copy by node id" ){
+				@Override void run(){
+					sink += copy( sf );
+				}
+			},
+			new Task( "3D copy by slices" ){
+				@Override void run(){
+					FloatBuffer buf = FloatBuffer.allocate( w*h*d );
+					for( int z = 0, i = 0; z < d; z++ )
+						for( int y = 0; y < h; y++ )
+							for( int x = 0; x < w; x++, i++ )
+								buf.put( i, sf.getValue( x, y, z ) );
+					sink += buf.get( w*h*d-1 );
+				}
+			},
+		};
+	}
+
+}
@@ -39,16 +39,14 @@ import java.util.ArrayList;
 public class MergePairingCLI {
     //change rg to null to test
     static ArrayList<ReebGraph> rg = null;
-    static List<String> pTypes = new ArrayList<>();
-    static List<String> vTypes = new ArrayList<>();
-    static List<Float> pValues = new ArrayList<>();
-    static  List<Float> vValues = new ArrayList<>();
-    static  List<Float> pRealValues = new ArrayList<>();
-    static List<Float> vRealValues = new ArrayList<>();
-    static List<Integer> pGlobalIDs = new ArrayList<>();
-    static List<Integer> vGlobalIDs = new ArrayList<>();
     static String[] finalGraph = null;
-    static double elapsedTime = 0;
+
+    // shared by every mainR() call. The result of the most recent call is
+    // kept only for the static getters of older callers: two threads or R
+    // sessions sharing the JVM may read a mix of two runs through them, so
+    // the R package calls PairingService.pairColumns() instead
+    private static final PairingService service = new PairingService(new MergePairing());
+    private static volatile PairingDiagram last = PairingDiagram.of(new ArrayList<ReebGraph>(), 0);
 
     public static String[] getFinalGraph() {
         return finalGraph;
@@ -71,16 +69,8 @@ public class MergePairingCLI {
                 try {
                     System.out.println(ip);
                     rg = TestResults.runAlgo(ip, new MergePairing(), new TimerNanosecond(), false);
-                    finalGraph = TestResults.getPersistentDiagramCSV(rg);
-                    ResultList resultList = TestResults.getResultList(rg);
-                    pTypes = resultList.pTypes;
-                    vTypes = resultList.vTypes;
-                    pValues = resultList.pValues;
-                    vValues = resultList.vValues;
-                    pRealValues = resultList.pRealValues;
-                    vRealValues = resultList.vRealValues;
-                    pGlobalIDs = resultList.pGlobalIDs;
-                    vGlobalIDs = resultList.vGlobalIDs;
+                    finalGraph = TestResults.getPersistentDiagramCSV(rg, true);
+                    last = PairingDiagram.of(rg, 0);
                     System.out.println();
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -89,82 +79,37 @@ public class MergePairingCLI {
         }
     }
 
+    /**
+     * @deprecated the result is only reachable through the static getters;
+     * use {@link PairingService#pair} or {@link PairingService#pairColumns},
+     * which return it
+     */
+    @Deprecated
     public static void mainR(int[] vertexIds,
                                     float[] vertexWeights,
                                     int[] edgeOriginIds,
                                     int[] edgeDestinationIds) {
         try {
-            PairingResult result = TestResults.runAlgo(vertexIds,
-                    vertexWeights,
-                    edgeOriginIds,
-                    edgeDestinationIds,
-                    new MergePairing(),
-                    new TimerNanosecond(),
-                    false);
-            rg = result.getReebGraphArrayList();
-            elapsedTime = result.getElapsedTime();
-
-            ResultList resultList = TestResults.getResultList(rg);
-            pTypes = resultList.pTypes;
-            vTypes = resultList.vTypes;
-            pValues = resultList.pValues;
-            vValues = resultList.vValues;
-            pRealValues = resultList.pRealValues;
-            vRealValues = resultList.vRealValues;
-            pGlobalIDs = resultList.pGlobalIDs;
-            vGlobalIDs = resultList.vGlobalIDs;
+            last = service.pair(vertexIds, vertexWeights, edgeOriginIds, edgeDestinationIds);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private static float[] convertFloatListToArray(List<Float> list) {
-        float[] arr = new float[list.size()];
-        for(int i = 0; i < list.size(); i++) {
-            arr[i] = list.get(i);
-        }
-        return arr;
-    }
-
-    private static int[] convertIntegerListToArray(List<Integer> list) {
-        int[] arr = new int[list.size()];
-        for(int i = 0; i < list.size(); i++) {
-            arr[i] = list.get(i);
-        }
-        return arr;
-    }
-
-    private static String[] convertStringListToArray(List<String> list) {
-        String[] arr = new String[list.size()];
-        for(int i = 0; i < list.size(); i++) {
-            arr[i] = list.get(i);
-        }
-        return arr;
-    }
-
-    public static String[] getPTypes() {
-        return convertStringListToArray(pTypes);
-    }
-    public static String[] getVTypes() {
-        return convertStringListToArray(vTypes);
-    }
-
-    public static float[] getPRealValues() {
-        return convertFloatListToArray(pRealValues);
-    }
-
-    public static float[] getVRealValues() {
-        return convertFloatListToArray(vRealValues);
-    }
-    public static float[] getPValues() {
-        return convertFloatListToArray(pValues);
-    }
-    public static float[] getVValues() {
-        return convertFloatListToArray(vValues);
-    }
-    public static int[] getPGlobalIDs() {return convertIntegerListToArray(pGlobalIDs);}
-    public static int[] getVGlobalIDs() {return convertIntegerListToArray(vGlobalIDs);}
-    public static double getElapsedTime() {return elapsedTime;}
+    /** The result of the most recent mainR() call, as one consistent diagram. */
+    public static PairingDiagram getLastDiagram() { return last; }
+
+    // one column of the most recent result per call; deprecated for the
+    // reason given at the top of the class
+    @Deprecated public static String[] getPTypes() { return last.getPTypes(); }
+    @Deprecated public static String[] getVTypes() { return last.getVTypes(); }
+    @Deprecated public static float[] getPRealValues() { return last.getPRealValues(); }
+    @Deprecated public static float[] getVRealValues() { PairingDiagram d = last; return d.blankUnpaired(d.getVRealValues()); }
+    @Deprecated public static float[] getPValues() { return last.getPValues(); }
+    @Deprecated public static float[] getVValues() { PairingDiagram d = last; return d.blankUnpaired(d.getVValues()); }
+    @Deprecated public static int[] getPGlobalIDs() { return last.getPGlobalIDs(); }
+    @Deprecated public static int[] getVGlobalIDs() { return last.getVGlobalIDs(); }
+    @Deprecated public static double getElapsedTime() { return last.getElapsedTime(); }
+    @Deprecated public static String[] getProfileNames() { return last.getProfileNames(); }
+    @Deprecated public static double[] getProfileValues() { return last.getProfileValues(); }
 }
-
-
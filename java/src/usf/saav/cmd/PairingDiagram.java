@@ -0,0 +1,296 @@
+package usf.saav.cmd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import usf.saav.common.StageProfile;
+import usf.saav.topology.TopoTreeNode.NodeType;
+import usf.saav.topology.reebgraph.ReebGraph;
+import usf.saav.topology.reebgraph.ReebGraphCriticalPoints;
+
+/**
+ * Immutable persistence diagram of one pairing run. Row i pairs the lower
+ * critical point (v*) with its partner (p*); rows are sorted by birth, then
+ * death, the same order as {@link TestResults#getResultList}. An unpaired
+ * point keeps its own values and has partner type "NULL" and -1 in the
+ * other partner columns.
+ *
+ * Columns are primitive arrays, and every getter returns a copy, so a diagram
+ * can be shared freely between threads. Node types are kept as
+ * {@link NodeType} ordinals, -1 standing for "NULL"; {@link #toColumns()}
+ * packs the whole diagram into one array so a caller across JNI needs a
+ * single crossing.
+ */
+public final class PairingDiagram {
+
+    /** Number of columns packed by {@link #toColumns()}. */
+    public static final int COLUMNS = 8;
+
+    /**
+     * Stages whose time and allocation {@link #toColumns()} packs after the
+     * elapsed time, in this order; every stage a pairing run marks.
+     */
+    private static final String[] PROFILE_STAGES = {"load", "rank", "split", "condition", "pair", "diagram"};
+
+    private final byte[] vTypes;
+    private final byte[] pTypes;
+    private final float[] vValues;
+    private final float[] pValues;
+    private final float[] vRealValues;
+    private final float[] pRealValues;
+    private final int[] vGlobalIDs;
+    private final int[] pGlobalIDs;
+    private final double elapsedTime;
+    private final String[] profileNames;
+    private final double[] profileValues;
+
+    private PairingDiagram(int rowN, double elapsedTime) {
+        this(new byte[rowN], new byte[rowN], new float[rowN], new float[rowN],
+                new float[rowN], new float[rowN], new int[rowN], new int[rowN], elapsedTime);
+    }
+
+    /**
+     * Wraps columns without copying, for readers that build them afresh.
+     */
+    PairingDiagram(byte[] vTypes, byte[] pTypes, float[] vValues, float[] pValues,
+                   float[] vRealValues, float[] pRealValues, int[] vGlobalIDs, int[] pGlobalIDs,
+                   double elapsedTime) {
+        this(vTypes, pTypes, vValues, pValues, vRealValues, pRealValues, vGlobalIDs, pGlobalIDs,
+                elapsedTime, new String[0], new double[0]);
+    }
+
+    private PairingDiagram(byte[] vTypes, byte[] pTypes, float[] vValues, float[] pValues,
+                           float[] vRealValues, float[] pRealValues, int[] vGlobalIDs, int[] pGlobalIDs,
+                           double elapsedTime, String[] profileNames, double[] profileValues) {
+        this.vTypes = vTypes;
+        this.pTypes = pTypes;
+        this.vValues = vValues;
+        this.pValues = pValues;
+        this.vRealValues = vRealValues;
+        this.pRealValues = pRealValues;
+        this.vGlobalIDs = vGlobalIDs;
+        this.pGlobalIDs = pGlobalIDs;
+        this.elapsedTime = elapsedTime;
+        this.profileNames = profileNames;
+        this.profileValues = profileValues;
+    }
+
+    /**
+     * The same diagram, carrying the stage breakdown of the run that
+     * produced it as it stands now.
+     */
+    public PairingDiagram withProfile(StageProfile profile) {
+        return new PairingDiagram(vTypes, pTypes, vValues, pValues, vRealValues, pRealValues,
+                vGlobalIDs, pGlobalIDs, elapsedTime, profile.getNames(), profile.getValues());
+    }
+
+    /**
+     * Collects the pairs of already paired graphs in a single pass: the
+     * type of each critical point is classified once, and rows are sorted
+     * by primitive birth/death keys rather than by comparing vertices.
+     */
+    public static PairingDiagram of(ArrayList<ReebGraph> rg0, double elapsedTime) {
+        int vertN = 0;
+        for (ReebGraph rg : rg0) {
+            vertN += rg.getCriticalPoints().size();
+        }
+
+        // rows in collection order; ties in the sort keep this order
+        PairingDiagram d = new PairingDiagram(vertN, elapsedTime);
+        int rowN = 0;
+        for (ReebGraph rg : rg0) {
+            ReebGraphCriticalPoints cps = rg.getCriticalPoints();
+            for (int c = 0; c < cps.size(); c++) {
+                int p = cps.getPartner(c);
+                if (p != -1 && c > p) continue;
+                d.vTypes[rowN] = (byte) cps.getType(c).ordinal();
+                d.vValues[rowN] = cps.getValue(c);
+                d.vRealValues[rowN] = cps.getVertex(c).getRealValue();
+                d.vGlobalIDs[rowN] = cps.getVertex(c).getGlobalID();
+                if (p == -1) {
+                    d.pTypes[rowN] = -1;
+                    d.pValues[rowN] = d.pRealValues[rowN] = -1.0f;
+                    d.pGlobalIDs[rowN] = -1;
+                } else {
+                    d.pTypes[rowN] = (byte) cps.getType(p).ordinal();
+                    d.pValues[rowN] = cps.getValue(p);
+                    d.pRealValues[rowN] = cps.getVertex(p).getRealValue();
+                    d.pGlobalIDs[rowN] = cps.getVertex(p).getGlobalID();
+                }
+                rowN++;
+            }
+        }
+
+        float[] birth = new float[rowN], death = new float[rowN];
+        int[] order = new int[rowN];
+        for (int i = 0; i < rowN; i++) {
+            birth[i] = d.getBirth(i);
+            death[i] = d.getDeath(i);
+            order[i] = i;
+        }
+        sortByBirthDeath(order, birth, death);
+
+        PairingDiagram ret = new PairingDiagram(rowN, elapsedTime);
+        for (int i = 0; i < rowN; i++) {
+            int j = order[i];
+            ret.vTypes[i] = d.vTypes[j];
+            ret.pTypes[i] = d.pTypes[j];
+            ret.vValues[i] = d.vValues[j];
+            ret.pValues[i] = d.pValues[j];
+            ret.vRealValues[i] = d.vRealValues[j];
+            ret.pRealValues[i] = d.pRealValues[j];
+            ret.vGlobalIDs[i] = d.vGlobalIDs[j];
+            ret.pGlobalIDs[i] = d.pGlobalIDs[j];
+        }
+        return ret;
+    }
+
+    // stable merge sort of row indices by (birth, death)
+    private static void sortByBirthDeath(int[] order, float[] birth, float[] death) {
+        int n = order.length;
+        int[] src = order, dst = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n), hi = Math.min(lo + 2 * width, n);
+                int a = lo, b = mid, k = lo;
+                while (a < mid && b < hi) {
+                    int x = src[a], y = src[b];
+                    boolean takeRight = birth[y] < birth[x] || (birth[y] == birth[x] && death[y] < death[x]);
+                    dst[k++] = takeRight ? src[b++] : src[a++];
+                }
+                while (a < mid) dst[k++] = src[a++];
+                while (b < hi) dst[k++] = src[b++];
+            }
+            int[] tmp = src; src = dst; dst = tmp;
+        }
+        if (src != order) System.arraycopy(src, 0, order, 0, n);
+    }
+
+    public int size() { return vTypes.length; }
+
+    public String[] getVTypes() { return typeNames(vTypes); }
+    public String[] getPTypes() { return typeNames(pTypes); }
+    public byte[] getVTypeCodes() { return vTypes.clone(); }
+    public byte[] getPTypeCodes() { return pTypes.clone(); }
+    public float[] getVValues() { return vValues.clone(); }
+    public float[] getPValues() { return pValues.clone(); }
+    public float[] getVRealValues() { return vRealValues.clone(); }
+    public float[] getPRealValues() { return pRealValues.clone(); }
+    public int[] getVGlobalIDs() { return vGlobalIDs.clone(); }
+    public int[] getPGlobalIDs() { return pGlobalIDs.clone(); }
+    public double getElapsedTime() { return elapsedTime; }
+
+    /**
+     * values (getVValues() or getVRealValues()) as the original R getters
+     * reported them, with -1 for unpaired points.
+     */
+    float[] blankUnpaired(float[] values) {
+        for (int i = 0; i < values.length; i++) {
+            if (pTypes[i] < 0) values[i] = -1.0f;
+        }
+        return values;
+    }
+
+    /**
+     * Stage names and values, see {@link StageProfile#getValues()}; both are
+     * empty unless the diagram was built by a profiled run.
+     */
+    public String[] getProfileNames() { return profileNames.clone(); }
+    public double[] getProfileValues() { return profileValues.clone(); }
+
+    /**
+     * True if row i pairs a downfork with an upfork, i.e. is one loop.
+     */
+    public boolean isEssential(int i) {
+        int down = NodeType.DOWNFORK.ordinal(), up = NodeType.UPFORK.ordinal();
+        return (vTypes[i] == down && pTypes[i] == up) || (vTypes[i] == up && pTypes[i] == down);
+    }
+
+    /**
+     * Birth of row i, as ReebGraphVertex.getBirth() reports it for either end.
+     */
+    public float getBirth(int i) {
+        if (pTypes[i] < 0) return vValues[i];
+        return isEssential(i) ? pValues[i] : vValues[i];
+    }
+
+    public float getDeath(int i) {
+        if (pTypes[i] < 0) return Float.POSITIVE_INFINITY;
+        return isEssential(i) ? vValues[i] : pValues[i];
+    }
+
+    public int countLoops() {
+        int ret = 0;
+        for (int i = 0; i < size(); i++) {
+            if (isEssential(i)) ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * Names of the type codes, indexed by code; code -1 is "NULL".
+     */
+    public static String[] getTypeNames() {
+        NodeType[] types = NodeType.values();
+        String[] ret = new String[types.length];
+        for (int i = 0; i < types.length; i++) {
+            ret[i] = types[i].name();
+        }
+        return ret;
+    }
+
+    private static String[] typeNames(byte[] codes) {
+        String[] names = getTypeNames();
+        String[] ret = new String[codes.length];
+        for (int i = 0; i < codes.length; i++) {
+            ret[i] = (codes[i] < 0) ? "NULL" : names[codes[i]];
+        }
+        return ret;
+    }
+
+    /**
+     * Names of the profile values packed by {@link #toColumns()}, as
+     * {@link StageProfile#getNames()} names them. They are the same for
+     * every diagram.
+     */
+    public static String[] getPackedProfileNames() {
+        String[] ret = new String[PROFILE_STAGES.length * 2];
+        for (int i = 0; i < PROFILE_STAGES.length; i++) {
+            ret[i * 2] = PROFILE_STAGES[i] + "_ms";
+            ret[i * 2 + 1] = PROFILE_STAGES[i] + "_bytes";
+        }
+        return ret;
+    }
+
+    /**
+     * The diagram as one column-major size() x {@link #COLUMNS} matrix,
+     * followed by the elapsed time and the profile values named by
+     * {@link #getPackedProfileNames()}, NaN for stages the run did not mark.
+     * Columns are vType, pType (codes), vValue, pValue (ranks), vRealValue,
+     * pRealValue, vGlobalID and pGlobalID. Every entry is exact as a double.
+     */
+    public double[] toColumns() {
+        int n = size();
+        String[] packed = getPackedProfileNames();
+        double[] ret = new double[n * COLUMNS + 1 + packed.length];
+        for (int i = 0; i < n; i++) {
+            ret[i] = vTypes[i];
+            ret[n + i] = pTypes[i];
+            ret[2 * n + i] = vValues[i];
+            ret[3 * n + i] = pValues[i];
+            ret[4 * n + i] = vRealValues[i];
+            ret[5 * n + i] = pRealValues[i];
+            ret[6 * n + i] = vGlobalIDs[i];
+            ret[7 * n + i] = pGlobalIDs[i];
+        }
+        ret[n * COLUMNS] = elapsedTime;
+
+        Arrays.fill(ret, n * COLUMNS + 1, ret.length, Double.NaN);
+        for (int i = 0; i < packed.length; i++) {
+            for (int j = 0; j < profileNames.length; j++) {
+                if (packed[i].equals(profileNames[j])) ret[n * COLUMNS + 1 + i] = profileValues[j];
+            }
+        }
+        return ret;
+    }
+}
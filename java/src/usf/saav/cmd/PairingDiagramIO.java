@@ -0,0 +1,332 @@
+package usf.saav.cmd;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import usf.saav.common.Timer;
+import usf.saav.common.TimerNanosecond;
+import usf.saav.topology.reebgraph.ReebGraph;
+import usf.saav.topology.reebgraph.pairing.MergePairing;
+
+/**
+ * Streams a {@link PairingDiagram} as CSV or in a compact binary form. Nothing
+ * is echoed to the console; output goes through a 64KB buffer straight to the
+ * stream or channel.
+ *
+ * The CSV is the R-facing "birth_value,death_value,birth_index,death_index"
+ * table, with values printed exactly as Float.toString() would. The binary
+ * form is big-endian (DataInputStream order):
+ *
+ *   int magic ('R','G','P','D'), int version (1), int rows, double elapsed,
+ *   byte vType[rows], byte pType[rows], float vValue[rows], float pValue[rows],
+ *   float vRealValue[rows], float pRealValue[rows], int vGlobalID[rows],
+ *   int pGlobalID[rows]
+ *
+ * with types as codes of {@link PairingDiagram#getTypeNames()}.
+ */
+public final class PairingDiagramIO {
+
+    public static final int MAGIC = 0x52475044;
+    public static final int VERSION = 1;
+    public static final String CSV_HEADER = "birth_value,death_value,birth_index,death_index";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private PairingDiagramIO() {
+    }
+
+
+    /**
+     * Writes the CSV table to out, which is flushed but not closed.
+     */
+    public static void writeCSV(PairingDiagram d, OutputStream out) throws IOException {
+        float[] vReal = d.getVRealValues(), pReal = d.getPRealValues();
+        int[] vGID = d.getVGlobalIDs(), pGID = d.getPGlobalIDs();
+        byte[] pType = d.getPTypeCodes();
+
+        StringBuilder sb = new StringBuilder(BUFFER_SIZE);
+        byte[] bytes = new byte[BUFFER_SIZE];
+        sb.append(CSV_HEADER).append('\n');
+        for (int i = 0; i < vReal.length; i++) {
+            appendRow(sb, vReal[i], pReal[i], vGID[i], pGID[i], pType[i] < 0);
+            sb.append('\n');
+            if (sb.length() > BUFFER_SIZE - 128) bytes = drain(sb, bytes, out);
+        }
+        drain(sb, bytes, out);
+        out.flush();
+    }
+
+    public static void saveCSV(PairingDiagram d, String filename) throws IOException {
+        OutputStream out = new FileOutputStream(filename);
+        try {
+            writeCSV(d, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The CSV table as lines, header first, for callers that want strings.
+     */
+    public static String[] toCSVLines(PairingDiagram d) {
+        float[] vReal = d.getVRealValues(), pReal = d.getPRealValues();
+        int[] vGID = d.getVGlobalIDs(), pGID = d.getPGlobalIDs();
+        byte[] pType = d.getPTypeCodes();
+
+        String[] ret = new String[vReal.length + 1];
+        ret[0] = CSV_HEADER;
+        StringBuilder sb = new StringBuilder(64);
+        for (int i = 0; i < vReal.length; i++) {
+            sb.setLength(0);
+            appendRow(sb, vReal[i], pReal[i], vGID[i], pGID[i], pType[i] < 0);
+            ret[i + 1] = sb.toString();
+        }
+        return ret;
+    }
+
+    private static void appendRow(StringBuilder sb, float vReal, float pReal, int vGID, int pGID, boolean unpaired) {
+        appendFloat(sb, vReal);
+        if (unpaired) {
+            sb.append(",INF,").append(vGID).append(",-1");
+        } else {
+            sb.append(',');
+            appendFloat(sb, pReal);
+            sb.append(',').append(vGID).append(',').append(pGID);
+        }
+    }
+
+    /**
+     * Appends f as Float.toString() would. Integral values below 10^7, the
+     * common case for ranks and integer-valued inputs, skip the general
+     * shortest-representation search.
+     */
+    static void appendFloat(StringBuilder sb, float f) {
+        if (f == (int) f && Math.abs(f) < 1.0e7f && Float.floatToRawIntBits(f) != 0x80000000) {
+            sb.append((int) f).append(".0");
+        } else {
+            sb.append(f);
+        }
+    }
+
+    // the CSV is plain ASCII, so chars are copied to bytes without an encoder
+    private static byte[] drain(StringBuilder sb, byte[] bytes, OutputStream out) throws IOException {
+        int n = sb.length();
+        if (bytes.length < n) bytes = new byte[n];
+        for (int i = 0; i < n; i++) {
+            bytes[i] = (byte) sb.charAt(i);
+        }
+        out.write(bytes, 0, n);
+        sb.setLength(0);
+        return bytes;
+    }
+
+
+    /**
+     * Writes the binary form to ch, which is left open.
+     */
+    public static void writeBinary(PairingDiagram d, WritableByteChannel ch) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(d.size()).putDouble(d.getElapsedTime());
+        buf = putBytes(buf, ch, d.getVTypeCodes());
+        buf = putBytes(buf, ch, d.getPTypeCodes());
+        buf = putFloats(buf, ch, d.getVValues());
+        buf = putFloats(buf, ch, d.getPValues());
+        buf = putFloats(buf, ch, d.getVRealValues());
+        buf = putFloats(buf, ch, d.getPRealValues());
+        buf = putInts(buf, ch, d.getVGlobalIDs());
+        buf = putInts(buf, ch, d.getPGlobalIDs());
+        flush(buf, ch);
+    }
+
+    public static void saveBinary(PairingDiagram d, String filename) throws IOException {
+        FileChannel ch = FileChannel.open(Paths.get(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            writeBinary(d, ch);
+        } finally {
+            ch.close();
+        }
+    }
+
+    private static ByteBuffer putBytes(ByteBuffer buf, WritableByteChannel ch, byte[] a) throws IOException {
+        for (int i = 0; i < a.length; ) {
+            if (!buf.hasRemaining()) flush(buf, ch);
+            int n = Math.min(buf.remaining(), a.length - i);
+            buf.put(a, i, n);
+            i += n;
+        }
+        return buf;
+    }
+
+    private static ByteBuffer putFloats(ByteBuffer buf, WritableByteChannel ch, float[] a) throws IOException {
+        for (int i = 0; i < a.length; ) {
+            if (buf.remaining() < 4) flush(buf, ch);
+            int n = Math.min(buf.remaining() / 4, a.length - i);
+            buf.asFloatBuffer().put(a, i, n);
+            buf.position(buf.position() + n * 4);
+            i += n;
+        }
+        return buf;
+    }
+
+    private static ByteBuffer putInts(ByteBuffer buf, WritableByteChannel ch, int[] a) throws IOException {
+        for (int i = 0; i < a.length; ) {
+            if (buf.remaining() < 4) flush(buf, ch);
+            int n = Math.min(buf.remaining() / 4, a.length - i);
+            buf.asIntBuffer().put(a, i, n);
+            buf.position(buf.position() + n * 4);
+            i += n;
+        }
+        return buf;
+    }
+
+    private static void flush(ByteBuffer buf, WritableByteChannel ch) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) ch.write(buf);
+        buf.clear();
+    }
+
+
+    /**
+     * Reads a diagram written by {@link #writeBinary}.
+     */
+    public static PairingDiagram readBinary(ReadableByteChannel ch) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        buf.limit(0);
+        buf = fill(buf, ch, 20);
+        if (buf.getInt() != MAGIC) throw new IOException("Not a pairing diagram");
+        int version = buf.getInt();
+        if (version != VERSION) throw new IOException("Unsupported pairing diagram version " + version);
+        int rowN = buf.getInt();
+        double elapsedTime = buf.getDouble();
+
+        byte[] vTypes = new byte[rowN], pTypes = new byte[rowN];
+        float[] vValues = new float[rowN], pValues = new float[rowN];
+        float[] vRealValues = new float[rowN], pRealValues = new float[rowN];
+        int[] vGlobalIDs = new int[rowN], pGlobalIDs = new int[rowN];
+        buf = getBytes(buf, ch, vTypes);
+        buf = getBytes(buf, ch, pTypes);
+        buf = getFloats(buf, ch, vValues);
+        buf = getFloats(buf, ch, pValues);
+        buf = getFloats(buf, ch, vRealValues);
+        buf = getFloats(buf, ch, pRealValues);
+        buf = getInts(buf, ch, vGlobalIDs);
+        getInts(buf, ch, pGlobalIDs);
+
+        return new PairingDiagram(vTypes, pTypes, vValues, pValues, vRealValues, pRealValues,
+                vGlobalIDs, pGlobalIDs, elapsedTime);
+    }
+
+    public static PairingDiagram loadBinary(String filename) throws IOException {
+        FileChannel ch = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try {
+            return readBinary(ch);
+        } finally {
+            ch.close();
+        }
+    }
+
+    // ensures at least min bytes are available to get
+    private static ByteBuffer fill(ByteBuffer buf, ReadableByteChannel ch, int min) throws IOException {
+        if (buf.remaining() >= min) return buf;
+        buf.compact();
+        while (buf.position() < min) {
+            if (ch.read(buf) < 0) throw new IOException("Truncated pairing diagram");
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static ByteBuffer getBytes(ByteBuffer buf, ReadableByteChannel ch, byte[] a) throws IOException {
+        for (int i = 0; i < a.length; ) {
+            buf = fill(buf, ch, 1);
+            int n = Math.min(buf.remaining(), a.length - i);
+            buf.get(a, i, n);
+            i += n;
+        }
+        return buf;
+    }
+
+    private static ByteBuffer getFloats(ByteBuffer buf, ReadableByteChannel ch, float[] a) throws IOException {
+        for (int i = 0; i < a.length; ) {
+            buf = fill(buf, ch, 4);
+            int n = Math.min(buf.remaining() / 4, a.length - i);
+            buf.asFloatBuffer().get(a, i, n);
+            buf.position(buf.position() + n * 4);
+            i += n;
+        }
+        return buf;
+    }
+
+    private static ByteBuffer getInts(ByteBuffer buf, ReadableByteChannel ch, int[] a) throws IOException {
+        for (int i = 0; i < a.length; ) {
+            buf = fill(buf, ch, 4);
+            int n = Math.min(buf.remaining() / 4, a.length - i);
+            buf.asIntBuffer().get(a, i, n);
+            buf.position(buf.position() + n * 4);
+            i += n;
+        }
+        return buf;
+    }
+
+
+
+    /**
+     * main() is test code. Each input file is paired, written as CSV and
+     * binary, and read back; the CSV must match lines built by plain string
+     * concatenation and the binary round trip must be exact.
+     */
+    public static void main(String[] args) throws Exception {
+        Timer t = new TimerNanosecond();
+        for (String ip : args) {
+            ArrayList<ReebGraph> rg = TestResults.runAlgo(ip, new MergePairing(), new TimerNanosecond(), false);
+            PairingDiagram d = PairingDiagram.of(rg, 0);
+
+            File csv = File.createTempFile("diagram", ".csv");
+            File bin = File.createTempFile("diagram", ".bin");
+            csv.deleteOnExit();
+            bin.deleteOnExit();
+
+            t.start();
+            saveCSV(d, csv.getPath());
+            t.end();
+            double csvMs = t.getElapsedMilliseconds();
+
+            t.start();
+            saveBinary(d, bin.getPath());
+            t.end();
+            double binMs = t.getElapsedMilliseconds();
+
+            String written = new String(Files.readAllBytes(csv.toPath()), "US-ASCII");
+            StringBuilder expected = new StringBuilder(CSV_HEADER + "\n");
+            float[] vReal = d.getVRealValues(), pReal = d.getPRealValues();
+            int[] vGID = d.getVGlobalIDs(), pGID = d.getPGlobalIDs();
+            String[] pTypes = d.getPTypes();
+            for (int i = 0; i < d.size(); i++) {
+                if (pTypes[i].equals("NULL")) {
+                    expected.append(vReal[i] + ",INF," + vGID[i] + ",-1\n");
+                } else {
+                    expected.append(vReal[i] + "," + pReal[i] + "," + vGID[i] + "," + pGID[i] + "\n");
+                }
+            }
+            boolean csvOk = written.equals(expected.toString());
+
+            PairingDiagram back = loadBinary(bin.getPath());
+            boolean binOk = Arrays.equals(d.toColumns(), back.toColumns());
+
+            System.out.printf("%s: %d rows, csv %.2fms (%s), binary %.2fms (%s)%n", ip, d.size(),
+                    csvMs, csvOk ? "ok" : "MISMATCH", binMs, binOk ? "ok" : "MISMATCH");
+        }
+    }
+}
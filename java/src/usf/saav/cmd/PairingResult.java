@@ -1,5 +1,6 @@
 package usf.saav.cmd;
 
+import usf.saav.common.StageProfile;
 import usf.saav.topology.reebgraph.ReebGraph;
 
 import java.util.ArrayList;
@@ -8,10 +9,16 @@ public class PairingResult {
 
     private ArrayList<ReebGraph> reebGraphArrayList;
     private double elapsedTime;
+    private StageProfile profile;
 
     public PairingResult(ArrayList<ReebGraph> reebGraphArrayList, double elapsedTime) {
+        this(reebGraphArrayList, elapsedTime, null);
+    }
+
+    public PairingResult(ArrayList<ReebGraph> reebGraphArrayList, double elapsedTime, StageProfile profile) {
         this.reebGraphArrayList = reebGraphArrayList;
         this.elapsedTime = elapsedTime;
+        this.profile = profile;
     }
 
     public ArrayList<ReebGraph> getReebGraphArrayList() {
@@ -29,4 +36,11 @@ public class PairingResult {
     public void setElapsedTime(double elapsedTime) {
         this.elapsedTime = elapsedTime;
     }
+
+    /**
+     * Stage breakdown of the run, or null if it was not profiled.
+     */
+    public StageProfile getProfile() {
+        return profile;
+    }
 }
@@ -0,0 +1,152 @@
+package usf.saav.cmd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import usf.saav.common.StageProfile;
+import usf.saav.common.TimerNanosecond;
+import usf.saav.topology.reebgraph.ReebGraphLoader;
+import usf.saav.topology.reebgraph.pairing.MergePairing;
+import usf.saav.topology.reebgraph.pairing.Pairing;
+import usf.saav.topology.reebgraph.pairing.PropagateAndPair;
+
+/**
+ * Pairs Reeb graphs given as vertex and edge arrays. A service holds only its
+ * configuration, and every call builds, pairs and summarises its own graphs,
+ * so one instance may be used from any number of threads at once. Results are
+ * returned as an immutable {@link PairingDiagram} rather than left in fields.
+ */
+public class PairingService {
+
+    private final Pairing pairing;
+    private final ReebGraphLoader.Options options;
+
+    public PairingService(Pairing pairing) {
+        this(pairing, new ReebGraphLoader.Options());
+    }
+
+    /**
+     * @param pairing algorithm to run; implementations keep no per-graph
+     *                state, so it is shared by all calls
+     * @param options how graphs are loaded and conditioned; each call adds
+     *                its own profile
+     */
+    public PairingService(Pairing pairing, ReebGraphLoader.Options options) {
+        this.pairing = pairing;
+        this.options = options;
+    }
+
+    /**
+     * Service for one of the R package's method names, "multi_pass" (merge
+     * pairing) or "single_pass" (propagate and pair).
+     */
+    public static PairingService forMethod(String method) {
+        if ("multi_pass".equals(method)) return new PairingService(new MergePairing());
+        if ("single_pass".equals(method)) return new PairingService(new PropagateAndPair());
+        throw new IllegalArgumentException("Unknown pairing method: " + method);
+    }
+
+    public String getName() {
+        return pairing.getName();
+    }
+
+    /**
+     * The diagram carries the time and allocation of each stage: "load",
+     * "rank", "split", "condition", "pair" and "diagram" (sorting the pairs).
+     */
+    public PairingDiagram pair(int[] vertexIds,
+                               float[] vertexWeights,
+                               int[] edgeOriginIds,
+                               int[] edgeDestinationIds) throws Exception {
+        StageProfile profile = new StageProfile();
+        PairingResult result = TestResults.runAlgo(vertexIds,
+                vertexWeights,
+                edgeOriginIds,
+                edgeDestinationIds,
+                pairing,
+                new TimerNanosecond(),
+                options.profile(profile));
+        PairingDiagram ret = PairingDiagram.of(result.getReebGraphArrayList(), result.getElapsedTime());
+        profile.mark("diagram");
+        return ret.withProfile(profile);
+    }
+
+    /**
+     * pair(), packed by {@link PairingDiagram#toColumns()} so that the whole
+     * result, profile included, crosses JNI in one call.
+     */
+    public double[] pairColumns(int[] vertexIds,
+                                float[] vertexWeights,
+                                int[] edgeOriginIds,
+                                int[] edgeDestinationIds) throws Exception {
+        return pair(vertexIds, vertexWeights, edgeOriginIds, edgeDestinationIds).toColumns();
+    }
+
+
+    /**
+     * main() is test code. Random graphs are paired by several threads through
+     * one shared service and again sequentially; every diagram must match.
+     */
+    public static void main(String[] args) throws Exception {
+        final int graphN = 64;
+        final int threadN = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        for (final String method : new String[]{"multi_pass", "single_pass"}) {
+            final PairingService service = forMethod(method);
+            final List<int[][]> edges = new ArrayList<int[][]>();
+            final List<float[]> weights = new ArrayList<float[]>();
+            Random rand = new Random(0);
+            for (int g = 0; g < graphN; g++) {
+                int vertN = 50 + rand.nextInt(500);
+                int edgeN = vertN + rand.nextInt(vertN);
+                float[] w = new float[vertN];
+                for (int i = 0; i < vertN; i++) w[i] = rand.nextFloat();
+                int[][] e = new int[2][edgeN];
+                for (int i = 0; i < edgeN; i++) {
+                    e[0][i] = (i < vertN - 1) ? i : rand.nextInt(vertN);
+                    e[1][i] = (i < vertN - 1) ? i + 1 : rand.nextInt(vertN);
+                }
+                weights.add(w);
+                edges.add(e);
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(threadN);
+            List<Future<PairingDiagram>> futures = new ArrayList<Future<PairingDiagram>>();
+            for (int g = 0; g < graphN; g++) {
+                final int gi = g;
+                futures.add(pool.submit(new Callable<PairingDiagram>() {
+                    @Override
+                    public PairingDiagram call() throws Exception {
+                        return service.pair(ids(weights.get(gi).length), weights.get(gi), edges.get(gi)[0], edges.get(gi)[1]);
+                    }
+                }));
+            }
+            pool.shutdown();
+
+            int errors = 0;
+            for (int g = 0; g < graphN; g++) {
+                PairingDiagram a = futures.get(g).get();
+                PairingDiagram b = service.pair(ids(weights.get(g).length), weights.get(g), edges.get(g)[0], edges.get(g)[1]);
+                double[] ca = a.toColumns(), cb = b.toColumns();
+                // the trailing elapsed time and profile are expected to differ
+                int n = a.size() * PairingDiagram.COLUMNS;
+                if (a.size() != b.size() || !Arrays.equals(Arrays.copyOf(ca, n), Arrays.copyOf(cb, n))) {
+                    errors++;
+                }
+            }
+            System.out.println(method + " (" + threadN + " threads): " + ((errors == 0) ? "ok" : (errors + " mismatched diagrams")));
+        }
+    }
+
+    private static int[] ids(int vertN) {
+        int[] ret = new int[vertN];
+        for (int i = 0; i < vertN; i++) ret[i] = i;
+        return ret;
+    }
+}
@@ -1,9 +1,11 @@
 package usf.saav.cmd;
 
+import usf.saav.common.Parallel;
+import usf.saav.common.FlightEvents;
+import usf.saav.common.StageProfile;
 import usf.saav.common.Timer;
 import usf.saav.common.TimerMillisecond;
 import usf.saav.common.TimerNanosecond;
-import usf.saav.topology.TopoTreeNode.NodeType;
 import usf.saav.topology.reebgraph.ReebGraph;
 import usf.saav.topology.reebgraph.ReebGraphLoader;
 import usf.saav.topology.reebgraph.ReebGraphVertex;
@@ -12,9 +14,13 @@ import usf.saav.topology.reebgraph.pairing.Pairing;
 import usf.saav.topology.reebgraph.pairing.PropagateAndPair;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 public class TestResults {
 
@@ -56,235 +62,193 @@ public class TestResults {
     }
 
     public static void savePersistentDiagram(ArrayList<ReebGraph> rg0, String filename) throws FileNotFoundException {
-        ArrayList<ReebGraphVertex> verts0 = new ArrayList<ReebGraphVertex>();
-        for (ReebGraph rg : rg0) {
-            verts0.addAll(rg);
-        }
-
+        PairingDiagram d = PairingDiagram.of(rg0, 0);
         PrintWriter pw = new PrintWriter(filename);
-        for (ReebGraphVertex v : verts0) {
-            ReebGraphVertex p = (ReebGraphVertex) v.getPartner();
-            if (p != null && v.value() > p.value()) continue;
-            pw.println(v.getBirth() + " " + v.getDeath());
+        StringBuilder sb = new StringBuilder(1 << 16);
+        for (int i = 0; i < d.size(); i++) {
+            PairingDiagramIO.appendFloat(sb, d.getBirth(i));
+            sb.append(' ');
+            PairingDiagramIO.appendFloat(sb, d.getDeath(i));
+            sb.append(System.lineSeparator());
+            if (sb.length() > (1 << 16) - 64) {
+                pw.append(sb);
+                sb.setLength(0);
+            }
         }
+        pw.append(sb);
         pw.close();
 
     }
 
 
     public static void printPersistentDiagram(ArrayList<ReebGraph> rg0) {
-        ArrayList<ReebGraphVertex> verts0 = new ArrayList<ReebGraphVertex>();
-        for (ReebGraph rg : rg0) {
-            verts0.addAll(rg);
-        }
-
-        verts0.sort(new Comparator<ReebGraphVertex>() {
-            @Override
-            public int compare(ReebGraphVertex o1, ReebGraphVertex o2) {
-                if (o1.getBirth() < o2.getBirth()) return -1;
-                if (o1.getBirth() > o2.getBirth()) return 1;
-                if (o1.getDeath() < o2.getDeath()) return -1;
-                if (o1.getDeath() > o2.getDeath()) return 1;
-                return 0;
-            }
-        });
-
-        for (ReebGraphVertex v : verts0) {
-            ReebGraphVertex p = (ReebGraphVertex) v.getPartner();
-            if (p == null) {
-                System.out.println("  [" + v.getRealValue() + ",INF) " + v.getGlobalID() + "/-1");
+        PairingDiagram d = PairingDiagram.of(rg0, 0);
+        float[] vReal = d.getVRealValues(), pReal = d.getPRealValues();
+        int[] vGID = d.getVGlobalIDs(), pGID = d.getPGlobalIDs();
+        byte[] pType = d.getPTypeCodes();
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < d.size(); i++) {
+            sb.append("  [");
+            PairingDiagramIO.appendFloat(sb, vReal[i]);
+            if (pType[i] < 0) {
+                sb.append(",INF) ").append(vGID[i]).append("/-1");
             } else {
-                if (v.value() > p.value()) continue;
-                System.out.println("  [" + v.getRealValue() + "," + p.getRealValue() + ") " + v.getGlobalID() + "/" + p.getGlobalID());
+                sb.append(',');
+                PairingDiagramIO.appendFloat(sb, pReal[i]);
+                sb.append(") ").append(vGID[i]).append('/').append(pGID[i]);
             }
+            sb.append(System.lineSeparator());
         }
+        System.out.print(sb);
     }
 
     //UFCHANGE
     public static String[] getPersistentDiagramCSV(ArrayList<ReebGraph> rg0) {
-        ArrayList<ReebGraphVertex> verts0 = new ArrayList<>();
-        for (ReebGraph rg : rg0) {
-            verts0.addAll(rg);
-        }
-
-        // Sort vertices by birth, then death
-        verts0.sort(new Comparator<ReebGraphVertex>() {
-            @Override
-            public int compare(ReebGraphVertex o1, ReebGraphVertex o2) {
-                if (o1.getBirth() < o2.getBirth()) return -1;
-                if (o1.getBirth() > o2.getBirth()) return 1;
-                if (o1.getDeath() < o2.getDeath()) return -1;
-                if (o1.getDeath() > o2.getDeath()) return 1;
-                return 0;
-            }
-        });
+        return getPersistentDiagramCSV(rg0, false);
+    }
 
-        // Prepare ArrayList<String> for output
-        ArrayList<String> lines = new ArrayList<>();
-        String header = "birth_value,death_value,birth_index,death_index";
-        System.out.println(header);
-        lines.add(header);
-
-        // Collect and print each line
-        for (ReebGraphVertex v : verts0) {
-            ReebGraphVertex p = (ReebGraphVertex) v.getPartner();
-            String line;
-            if (p == null) {
-                line = v.getRealValue() + ",INF," + v.getGlobalID() + ",-1";
-            } else {
-                if (v.value() > p.value()) continue;
-                line = v.getRealValue() + "," + p.getRealValue() + "," + v.getGlobalID() + "," + p.getGlobalID();
+    /**
+     * @param verbose also print the table to standard output
+     * @return the CSV lines, header first, for the R side
+     */
+    public static String[] getPersistentDiagramCSV(ArrayList<ReebGraph> rg0, boolean verbose) {
+        PairingDiagram d = PairingDiagram.of(rg0, 0);
+        if (verbose) {
+            try {
+                PairingDiagramIO.writeCSV(d, System.out);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            System.out.println(line);
-            lines.add(line);            // Add to list
         }
-
-        String[] finalArrayObject = new String[lines.size()];
-        for (int i = 0; i < lines.size(); i++) {
-            finalArrayObject[i] = lines.get(i);
-        }
-
-
-        return finalArrayObject; // Return list for R side
+        return PairingDiagramIO.toCSVLines(d);
     }
 
     public static ResultList getResultList(ArrayList<ReebGraph> rg0) {
-        ResultList resultList = new ResultList();
+        PairingDiagram d = PairingDiagram.of(rg0, 0);
+        String[] vTypes = d.getVTypes(), pTypes = d.getPTypes();
+        float[] vValues = d.blankUnpaired(d.getVValues()), pValues = d.getPValues();
+        float[] vRealValues = d.blankUnpaired(d.getVRealValues()), pRealValues = d.getPRealValues();
+        int[] vGlobalIDs = d.getVGlobalIDs(), pGlobalIDs = d.getPGlobalIDs();
 
-        ArrayList<ReebGraphVertex> verts0 = new ArrayList<>();
-        for (ReebGraph rg : rg0) {
-            verts0.addAll(rg);
-        }
-
-        // Sort vertices by birth, then death
-        verts0.sort(new Comparator<ReebGraphVertex>() {
-            @Override
-            public int compare(ReebGraphVertex o1, ReebGraphVertex o2) {
-                if (o1.getBirth() < o2.getBirth()) return -1;
-                if (o1.getBirth() > o2.getBirth()) return 1;
-                return Float.compare(o1.getDeath(), o2.getDeath());
-            }
-        });
-
-        for (ReebGraphVertex v : verts0) {
-            ReebGraphVertex p = (ReebGraphVertex) v.getPartner();
-            if (p == null) {
-                resultList.pTypes.add("NULL");
-                resultList.vTypes.add(v.getType().name());
-                resultList.pValues.add(-1.0f);
-                resultList.vValues.add(-1.0f);
-                resultList.pRealValues.add(-1.0f);
-                resultList.vRealValues.add(-1.0f);
-                resultList.vGlobalIDs.add(v.getGlobalID());
-            } else {
-                if (v.value() > p.value()) continue;
-                resultList.pTypes.add(p.getType().name());
-                resultList.vTypes.add(v.getType().name());
-                resultList.pValues.add(p.value());
-                resultList.vValues.add(v.value());
-                resultList.pRealValues.add(p.getRealValue());
-                resultList.vRealValues.add(v.getRealValue());
-                resultList.pGlobalIDs.add(p.getGlobalID());
-                resultList.vGlobalIDs.add(v.getGlobalID());
-            }
+        ResultList resultList = new ResultList();
+        for (int i = 0; i < d.size(); i++) {
+            resultList.pTypes.add(pTypes[i]);
+            resultList.vTypes.add(vTypes[i]);
+            resultList.pValues.add(pValues[i]);
+            resultList.vValues.add(vValues[i]);
+            resultList.pRealValues.add(pRealValues[i]);
+            resultList.vRealValues.add(vRealValues[i]);
+            resultList.pGlobalIDs.add(pGlobalIDs[i]);
+            resultList.vGlobalIDs.add(vGlobalIDs[i]);
         }
 
         return resultList;
     }
 
     public static void printPersistentDiagramCSV(ArrayList<ReebGraph> rg0) {
-        ArrayList<ReebGraphVertex> verts0 = new ArrayList<ReebGraphVertex>();
-        for (ReebGraph rg : rg0) {
-            verts0.addAll(rg);
-        }
-
-        verts0.sort(new Comparator<ReebGraphVertex>() {
-            @Override
-            public int compare(ReebGraphVertex o1, ReebGraphVertex o2) {
-                if (o1.getBirth() < o2.getBirth()) return -1;
-                if (o1.getBirth() > o2.getBirth()) return 1;
-                if (o1.getDeath() < o2.getDeath()) return -1;
-                if (o1.getDeath() > o2.getDeath()) return 1;
-                return 0;
-            }
-        });
-
-        System.out.println("birth_value,death_value,birth_index,death_index");
-        for (ReebGraphVertex v : verts0) {
-            ReebGraphVertex p = (ReebGraphVertex) v.getPartner();
-            if (p == null) {
-                System.out.println("" + v.getRealValue() + ",INF," + v.getGlobalID() + ",-1");
-            } else {
-                if (v.value() > p.value()) continue;
-                System.out.println("" + v.getRealValue() + "," + p.getRealValue() + "," + v.getGlobalID() + "," + p.getGlobalID());
-            }
+        try {
+            PairingDiagramIO.writeCSV(PairingDiagram.of(rg0, 0), System.out);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
     public static boolean compareDiagrams(ArrayList<ReebGraph> rg0, ArrayList<ReebGraph> rg1, boolean verbose) {
+        return compareDiagrams(PairingDiagram.of(rg0, 0), PairingDiagram.of(rg1, 0), true);
+    }
 
-        ArrayList<ReebGraphVertex> verts0 = new ArrayList<ReebGraphVertex>();
-        ArrayList<ReebGraphVertex> verts1 = new ArrayList<ReebGraphVertex>();
-        for (ReebGraph rg : rg0) {
-            verts0.addAll(rg);
-        }
-        for (ReebGraph rg : rg1) {
-            verts1.addAll(rg);
-        }
-
-        verts0.sort(new Comparator<ReebGraphVertex>() {
-            @Override
-            public int compare(ReebGraphVertex o1, ReebGraphVertex o2) {
-                if (o1.getBirth() < o2.getBirth()) return -1;
-                if (o1.getBirth() > o2.getBirth()) return 1;
-                if (o1.getDeath() < o2.getDeath()) return -1;
-                if (o1.getDeath() > o2.getDeath()) return 1;
-                return 0;
+    /**
+     * Compares two diagrams as multisets of (global id, partner global id)
+     * pairs, in expected linear time. The ends of a pair may be in either
+     * order; an unpaired point never matches.
+     *
+     * @param printErrors print each pair that is missing from one side
+     */
+    public static boolean compareDiagrams(PairingDiagram d0, PairingDiagram d1, boolean printErrors) {
+        int[] vGID0 = d0.getVGlobalIDs(), pGID0 = d0.getPGlobalIDs();
+        int[] vGID1 = d1.getVGlobalIDs(), pGID1 = d1.getPGlobalIDs();
+        byte[] pType0 = d0.getPTypeCodes(), pType1 = d1.getPTypeCodes();
+
+        HashMap<Long, Integer> pending = new HashMap<Long, Integer>(d1.size() * 2);
+        boolean ret = true;
+        for (int j = 0; j < d1.size(); j++) {
+            if (pType1[j] < 0) {
+                if (printErrors) System.out.println("  error == " + vGID1[j] + " | NULL (second)");
+                ret = false;
+                continue;
             }
-        });
+            Long key = pairKey(vGID1[j], pGID1[j]);
+            Integer cnt = pending.get(key);
+            pending.put(key, (cnt == null) ? 1 : cnt + 1);
+        }
 
-        boolean ret = true;
-        for (ReebGraphVertex v : verts0) {
-            ReebGraphVertex p = (ReebGraphVertex) v.getPartner();
-            if (p == null) {
-                System.out.println("  error == " + v + " | NULL");
+        for (int i = 0; i < d0.size(); i++) {
+            if (pType0[i] < 0) {
+                if (printErrors) System.out.println("  error == " + vGID0[i] + " | NULL");
                 ret = false;
                 continue;
             }
-            if (v.value() > p.value()) continue;
-            boolean found = false;
-            for (ReebGraphVertex o : verts1) {
-                found = v.getGlobalID() == o.getGlobalID() && ((ReebGraphVertex) v.getPartner()).getGlobalID() == ((ReebGraphVertex) o.getPartner()).getGlobalID();
-                if (found) break;
+            Long key = pairKey(vGID0[i], pGID0[i]);
+            Integer cnt = pending.get(key);
+            if (cnt == null) {
+                if (printErrors) System.out.println("  error == " + vGID0[i] + " | " + pGID0[i]);
+                ret = false;
+            } else if (cnt == 1) {
+                pending.remove(key);
+            } else {
+                pending.put(key, cnt - 1);
+            }
+        }
+
+        for (Map.Entry<Long, Integer> e : pending.entrySet()) {
+            if (printErrors) {
+                System.out.println("  error == " + (int) (e.getKey() >>> 32) + " | " + (int) (long) e.getKey()
+                        + " (second, x" + e.getValue() + ")");
             }
-            //if( verbose && found ) System.out.println("  ok ==== " + v + " | " + v.getPartner() );
-            if (!found) System.out.println("  error == " + v + " | " + v.getPartner());
-            ret = ret && found;
+            ret = false;
         }
         return ret;
     }
 
+    private static long pairKey(int gid0, int gid1) {
+        int lo = Math.min(gid0, gid1), hi = Math.max(gid0, gid1);
+        return ((long) lo << 32) | (hi & 0xffffffffL);
+    }
+
     public static ArrayList<ReebGraph> runAlgo(String inputfile, Pairing pairing, Timer timer, boolean verbose) throws Exception {
+        return runAlgo(inputfile, pairing, timer, new ReebGraphLoader.Options().showWarnings(verbose));
+    }
+
+    /**
+     * @param options how the graphs are loaded; progress is printed if they
+     *        show warnings, and a profile, if given, is also marked after
+     *        "pair"
+     */
+    public static ArrayList<ReebGraph> runAlgo(String inputfile, Pairing pairing, Timer timer, ReebGraphLoader.Options options) throws Exception {
+        boolean verbose = options.isShowWarnings();
+        StageProfile profile = options.getProfile();
+
         Timer t = new TimerMillisecond();
 
         if (verbose) System.out.println();
         if (verbose) System.out.println(pairing.getName());
 
         t.start();
-        ArrayList<ReebGraph> rm1 = ReebGraphLoader.load(inputfile, true, true, verbose);
+        ArrayList<ReebGraph> rm1 = ReebGraphLoader.load(inputfile, options);
         t.end();
         if (verbose) System.out.println(" Load time: " + t.getElapsedMilliseconds() + "ms");
         if (verbose) System.out.println(" Connected components: " + rm1.size());
 
         timer.start();
-        for (ReebGraph ccRG : rm1) {
-            pairing.pair(ccRG);
-        }
+        pairComponents(rm1, pairing);
         timer.end();
+        if (profile != null) profile.mark("pair");
 
         if (verbose) System.out.println(" Total Loops: " + countLoops(rm1));
         if (verbose)
             System.out.println(" " + pairing.getName() + " computation time: " + timer.getElapsedMilliseconds() + "ms\n");
+        if (verbose && profile != null) System.out.print(profile);
         if (verbose) System.out.println(" PERSISTENCE DIAGRAM");
         //if( verbose ) printPersistentDiagram(rm1);
 
@@ -300,7 +264,23 @@ public class TestResults {
                                         Pairing pairing,
                                         Timer timer,
                                         boolean verbose) throws Exception {
-        Timer t = new TimerMillisecond();
+        return runAlgo(vertexIds, vertexWeights, edgeOriginIds, edgeDestinationIds, pairing, timer,
+                new ReebGraphLoader.Options().showWarnings(verbose));
+    }
+
+    /**
+     * @param options as for the file form of runAlgo(); the profile, if
+     *        given, is returned with the result
+     */
+    public static PairingResult runAlgo(int[] vertexIds,
+                                        float[] vertexWeights,
+                                        int[] edgeOriginIds,
+                                        int[] edgeDestinationIds,
+                                        Pairing pairing,
+                                        Timer timer,
+                                        ReebGraphLoader.Options options) throws Exception {
+        boolean verbose = options.isShowWarnings();
+        StageProfile profile = options.getProfile();
 
         if (verbose) System.out.println();
         if (verbose) System.out.println(pairing.getName());
@@ -308,42 +288,75 @@ public class TestResults {
 
 
         MergePairingInput mergePairingInput = new MergePairingInput(vertexIds, vertexWeights, edgeOriginIds, edgeDestinationIds);
-        ArrayList<ReebGraph> rm1 = ReebGraphLoader.load(mergePairingInput, true, true, verbose);
+        ArrayList<ReebGraph> rm1 = ReebGraphLoader.load(mergePairingInput, options);
 
         if (verbose) System.out.println(" Connected components: " + rm1.size());
 
-        // TODO: Add information about elapsed time for the algorithm and send this back to R
         timer.start();
-        for (ReebGraph ccRG : rm1) {
-            pairing.pair(ccRG);
-        }
+        pairComponents(rm1, pairing);
         timer.end();
+        if (profile != null) profile.mark("pair");
 
-        PairingResult result = new PairingResult(rm1, timer.getElapsedMilliseconds());
+        PairingResult result = new PairingResult(rm1, timer.getElapsedMilliseconds(), profile);
 
         if (verbose) System.out.println(" Total Loops: " + countLoops(rm1));
         if (verbose)
             System.out.println(" " + pairing.getName() + " computation time: " + timer.getElapsedMilliseconds() + "ms\n");
+        if (verbose && profile != null) System.out.print(profile);
         if (verbose) System.out.println(" PERSISTENCE DIAGRAM");
 
         return result;
     }
 
 
-    private static int countLoops(ArrayList<ReebGraph> rg0) {
-        ArrayList<ReebGraphVertex> verts0 = new ArrayList<ReebGraphVertex>();
-        for (ReebGraph rg : rg0) {
-            verts0.addAll(rg);
+    /**
+     * Pairs independent components on the shared work-stealing pool. Components
+     * are submitted largest first so a single giant component does not become the
+     * tail; the order of {@code rm1} itself is left unchanged.
+     */
+    private static void pairComponents(ArrayList<ReebGraph> rm1, final Pairing pairing) throws Exception {
+        if (rm1.size() == 1) {
+            pairComponent(rm1.get(0), pairing);
+            return;
         }
-        int ret = 0;
-        for (ReebGraphVertex v : verts0) {
-            if (v.isEssential() && v.getType() == NodeType.DOWNFORK) {
-                //System.out.println("   " + v + " " + v.getPartner() );
-                ret++;
+
+        ArrayList<ReebGraph> bySize = new ArrayList<ReebGraph>(rm1);
+        bySize.sort(new Comparator<ReebGraph>() {
+            @Override
+            public int compare(ReebGraph o1, ReebGraph o2) {
+                return Integer.compare(o2.size(), o1.size());
             }
+        });
+
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(bySize.size());
+        for (final ReebGraph ccRG : bySize) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    pairComponent(ccRG, pairing);
+                    return null;
+                }
+            });
+        }
+        Parallel.invokeAll(tasks);
+    }
+
+    private static final FlightEvents.Type PAIR_EVENT = FlightEvents.define("PairComponent", "Pair Component",
+            new String[]{"algorithm", "vertices", "criticalPoints", "loops"},
+            new Class<?>[]{String.class, long.class, long.class, long.class});
+
+    private static void pairComponent(ReebGraph rg, Pairing pairing) {
+        FlightEvents.Span ev = PAIR_EVENT.begin();
+        pairing.pair(rg);
+        if (ev != null) {
+            ArrayList<ReebGraph> one = new ArrayList<ReebGraph>(1);
+            one.add(rg);
+            ev.set(0, pairing.getName()).set(1, rg.size()).set(2, rg.getCriticalPoints().size()).set(3, countLoops(one)).commit();
         }
+    }
 
-        return ret;
+    private static int countLoops(ArrayList<ReebGraph> rg0) {
+        return PairingDiagram.of(rg0, 0).countLoops();
     }
 
 
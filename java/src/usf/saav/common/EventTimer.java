@@ -68,6 +68,8 @@ public interface EventTimer {
 			events.add(e);
 		}
 
+		public Vector<EventTimer> getEvents(){ return events; }
+
 		@Override
 		public long getStartTime() {
 			long start = Long.MAX_VALUE;
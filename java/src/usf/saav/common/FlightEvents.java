@@ -0,0 +1,214 @@
+package usf.saav.common;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Custom Java Flight Recorder events, defined at run time through
+ * jdk.jfr.EventFactory so that the library still compiles and runs on JVMs
+ * without JFR. Event types are created once; while no recording is running,
+ * begin() is a single volatile read returning null, so call sites cost
+ * nothing beyond a null check:
+ *
+ * <pre>
+ *   FlightEvents.Span ev = LOAD.begin();
+ *   ...
+ *   if( ev != null ) ev.set( 0, vertexCount ).commit();
+ * </pre>
+ *
+ * Fields are long or String. Events are recorded under the "rgph" category
+ * and appear in a recording as rgph.&lt;name&gt;.
+ */
+public final class FlightEvents {
+
+	private static final Class<?>    eventClass;
+	private static final Method      newEvent;
+	private static final Method      begin;
+	private static final Method      end;
+	private static final Method      set;
+	private static final Method      commit;
+	private static final Set<Object> running = new HashSet<Object>();
+	private static volatile boolean  recording = false;
+
+	static {
+		Class<?> ec = null;
+		Method ne = null, b = null, e = null, s = null, c = null;
+		try {
+			ec = Class.forName( "jdk.jfr.Event" );
+			ne = Class.forName( "jdk.jfr.EventFactory" ).getMethod( "newEvent" );
+			b  = ec.getMethod( "begin" );
+			e  = ec.getMethod( "end" );
+			s  = ec.getMethod( "set", int.class, Object.class );
+			c  = ec.getMethod( "commit" );
+			listen();
+		} catch( Throwable t ) {
+			// JFR is not part of this JVM
+			ec = null;
+		}
+		eventClass = ec;
+		newEvent = ne;
+		begin = b;
+		end = e;
+		set = s;
+		commit = c;
+	}
+
+	private FlightEvents( ) { }
+
+	/**
+	 * True if events are being recorded, i.e. begin() may return non-null.
+	 */
+	public static boolean isRecording( ) { return recording; }
+
+	/**
+	 * Defines an event type.
+	 *
+	 * @param name   event name, without the "rgph." prefix
+	 * @param label  human readable name shown by JDK Mission Control
+	 * @param fields field names, in the order used by Span.set()
+	 * @param types  long.class or String.class for each field
+	 */
+	public static Type define( String name, String label, String [] fields, Class<?> [] types ) {
+		Object factory = null;
+		if( eventClass != null ) {
+			try {
+				factory = createFactory( name, label, fields, types );
+			} catch( Throwable t ) {
+				System.err.println( "WARNING: JFR event rgph." + name + " not available: " + t );
+			}
+		}
+		return new Type( factory );
+	}
+
+	public static final class Type {
+		private final Object factory;
+
+		private Type( Object factory ) {
+			this.factory = factory;
+		}
+
+		/**
+		 * Starts timing an event, or returns null if nothing is recording.
+		 */
+		public Span begin( ) {
+			if( !recording || factory == null ) return null;
+			try {
+				Object ev = newEvent.invoke( factory );
+				FlightEvents.begin.invoke( ev );
+				return new Span( ev );
+			} catch( Exception e ) {
+				return null;
+			}
+		}
+	}
+
+	public static final class Span {
+		private final Object event;
+
+		private Span( Object event ) {
+			this.event = event;
+		}
+
+		public Span set( int field, long value ) {
+			return setObject( field, Long.valueOf( value ) );
+		}
+
+		public Span set( int field, String value ) {
+			return setObject( field, value );
+		}
+
+		private Span setObject( int field, Object value ) {
+			try {
+				set.invoke( event, field, value );
+			} catch( Exception e ) {
+				// the event is still committed, without this field
+			}
+			return this;
+		}
+
+		/**
+		 * Ends timing and writes the event, if the recording still wants it.
+		 */
+		public void commit( ) {
+			try {
+				end.invoke( event );
+				FlightEvents.commit.invoke( event );
+			} catch( Exception e ) {
+				// dropped
+			}
+		}
+	}
+
+	private static Object createFactory( String name, String label, String [] fields, Class<?> [] types ) throws Exception {
+		Class<?> annotationElement = Class.forName( "jdk.jfr.AnnotationElement" );
+		Class<?> valueDescriptor   = Class.forName( "jdk.jfr.ValueDescriptor" );
+		Constructor<?> newAnnotation = annotationElement.getConstructor( Class.class, Object.class );
+		Constructor<?> newValue      = valueDescriptor.getConstructor( Class.class, String.class );
+
+		List<Object> annotations = new ArrayList<Object>();
+		annotations.add( newAnnotation.newInstance( Class.forName( "jdk.jfr.Name" ), "rgph." + name ) );
+		annotations.add( newAnnotation.newInstance( Class.forName( "jdk.jfr.Label" ), label ) );
+		annotations.add( newAnnotation.newInstance( Class.forName( "jdk.jfr.Category" ), new String[]{ "rgph" } ) );
+
+		List<Object> values = new ArrayList<Object>();
+		for( int i = 0; i < fields.length; i++ ) {
+			values.add( newValue.newInstance( types[i], fields[i] ) );
+		}
+
+		Method create = Class.forName( "jdk.jfr.EventFactory" ).getMethod( "create", List.class, List.class );
+		return create.invoke( null, annotations, values );
+	}
+
+	/**
+	 * Tracks the running recordings through a FlightRecorderListener proxy,
+	 * so that begin() never has to ask the recorder.
+	 */
+	private static void listen( ) throws Exception {
+		final Class<?> recorder = Class.forName( "jdk.jfr.FlightRecorder" );
+		Class<?> listener = Class.forName( "jdk.jfr.FlightRecorderListener" );
+		Object proxy = Proxy.newProxyInstance( listener.getClassLoader(), new Class<?>[]{ listener }, new InvocationHandler() {
+			@Override public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+				String m = method.getName();
+				if( m.equals( "recordingStateChanged" ) ) {
+					update( args[0] );
+					return null;
+				}
+				if( m.equals( "equals" ) )   return proxy == args[0];
+				if( m.equals( "hashCode" ) ) return System.identityHashCode( proxy );
+				if( m.equals( "toString" ) ) return "FlightEvents listener";
+				return null;
+			}
+		});
+		recorder.getMethod( "addListener", listener ).invoke( null, proxy );
+
+		// recordings started before this class was loaded, e.g. by
+		// -XX:StartFlightRecording
+		if( (Boolean) recorder.getMethod( "isInitialized" ).invoke( null ) ) {
+			Object fr = recorder.getMethod( "getFlightRecorder" ).invoke( null );
+			for( Object r : (List<?>) recorder.getMethod( "getRecordings" ).invoke( fr ) ) {
+				update( r );
+			}
+		}
+	}
+
+	private static void update( Object rec ) {
+		synchronized( running ) {
+			try {
+				Object state = Class.forName( "jdk.jfr.Recording" ).getMethod( "getState" ).invoke( rec );
+				if( "RUNNING".equals( state.toString() ) )
+					running.add( rec );
+				else
+					running.remove( rec );
+			} catch( Exception e ) {
+				running.remove( rec );
+			}
+			recording = !running.isEmpty();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package usf.saav.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+public class Parallel {
+
+	public interface RangeTask {
+		public void run( int start, int end );
+	}
+
+	public static ForkJoinPool getPool( ){
+		return ForkJoinPool.commonPool();
+	}
+
+	public static int getParallelism( ){
+		return getPool().getParallelism();
+	}
+
+	/**
+	 *  invokeAll() runs the tasks on the shared work-stealing pool and
+	 *  returns their results in task order.  The first task failure is
+	 *  rethrown as-is.
+	 **/
+	public static <T> List<T> invokeAll( List<Callable<T>> tasks ) throws Exception {
+		List<T> ret = new ArrayList<T>( tasks.size() );
+		for( Future<T> f : getPool().invokeAll( tasks ) ){
+			try {
+				ret.add( f.get() );
+			} catch (ExecutionException e) {
+				if( e.getCause() instanceof Exception ) throw (Exception)e.getCause();
+				throw new RuntimeException( e.getCause() );
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 *  forRange() splits [0,elemN) into chunks of at least minChunk elements
+	 *  and runs task on each chunk in parallel.
+	 **/
+	public static void forRange( int elemN, int minChunk, final RangeTask task ) throws Exception {
+		int chunkN = Math.max( 1, Math.min( getParallelism()*4, elemN/Math.max(1,minChunk) ) );
+		if( chunkN == 1 ){
+			task.run( 0, elemN );
+			return;
+		}
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>( chunkN );
+		for( int c = 0; c < chunkN; c++ ){
+			final int start = (int)( (long)elemN*c/chunkN );
+			final int end   = (int)( (long)elemN*(c+1)/chunkN );
+			tasks.add( new Callable<Void>(){
+				@Override public Void call() {
+					task.run( start, end );
+					return null;
+				}
+			});
+		}
+		invokeAll( tasks );
+	}
+
+}
@@ -0,0 +1,112 @@
+package usf.saav.common;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+
+/**
+ * Wall time and allocation of the consecutive stages of one computation.
+ * Each call to mark() closes the stage running since the previous mark (or
+ * since construction); marking the same name again adds to that stage.
+ *
+ * Allocation is read from the JVM's per-thread counter, so it covers the
+ * thread that owns the profile only: work handed to pool threads is timed
+ * but its allocation is not counted. Where the JVM has no such counter the
+ * bytes are reported as -1. A profile is not thread-safe.
+ */
+public class StageProfile {
+
+	private static final com.sun.management.ThreadMXBean allocBean = allocationBean();
+
+	private final ArrayList<String> names = new ArrayList<String>();
+	private final ArrayList<long[]> stages = new ArrayList<long[]>();
+	private final long thread = Thread.currentThread().getId();
+	private long lastTime;
+	private long lastBytes;
+
+	public StageProfile() {
+		lastTime  = System.nanoTime();
+		lastBytes = allocatedBytes();
+	}
+
+	public void mark( String stage ) {
+		long time  = System.nanoTime();
+		long bytes = allocatedBytes();
+
+		int i = names.indexOf( stage );
+		if( i < 0 ) {
+			names.add( stage );
+			stages.add( new long[2] );
+			i = names.size()-1;
+		}
+		stages.get(i)[0] += time - lastTime;
+		stages.get(i)[1] += ( bytes < 0 || lastBytes < 0 ) ? 0 : bytes - lastBytes;
+
+		lastTime  = System.nanoTime();
+		lastBytes = allocatedBytes();
+	}
+
+	public int size() { return names.size(); }
+
+	public String getName( int i ) { return names.get(i); }
+
+	public long getNanoseconds( int i ) { return stages.get(i)[0]; }
+
+	public long getAllocatedBytes( int i ) {
+		return ( allocBean == null ) ? -1 : stages.get(i)[1];
+	}
+
+	/**
+	 * Names for {@link #getValues()}: "<stage>_ms" and "<stage>_bytes" for
+	 * every stage, in the order stages were first marked.
+	 */
+	public String [] getNames() {
+		String [] ret = new String[names.size()*2];
+		for( int i = 0; i < names.size(); i++ ) {
+			ret[i*2]   = names.get(i) + "_ms";
+			ret[i*2+1] = names.get(i) + "_bytes";
+		}
+		return ret;
+	}
+
+	/**
+	 * Milliseconds and allocated bytes of every stage, flattened to match
+	 * {@link #getNames()}, i.e. a named numeric vector once it reaches R.
+	 */
+	public double [] getValues() {
+		double [] ret = new double[names.size()*2];
+		for( int i = 0; i < names.size(); i++ ) {
+			ret[i*2]   = getNanoseconds(i) * 1.0e-6;
+			ret[i*2+1] = getAllocatedBytes(i);
+		}
+		return ret;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for( int i = 0; i < names.size(); i++ ) {
+			sb.append( String.format( " %-10s %10.3fms %14d bytes%n", names.get(i), getNanoseconds(i)*1.0e-6, getAllocatedBytes(i) ) );
+		}
+		return sb.toString();
+	}
+
+	private long allocatedBytes() {
+		if( allocBean == null || Thread.currentThread().getId() != thread ) return -1;
+		return allocBean.getThreadAllocatedBytes( thread );
+	}
+
+	private static com.sun.management.ThreadMXBean allocationBean() {
+		try {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if( !(bean instanceof com.sun.management.ThreadMXBean) ) return null;
+			com.sun.management.ThreadMXBean ret = (com.sun.management.ThreadMXBean) bean;
+			if( !ret.isThreadAllocatedMemorySupported() ) return null;
+			if( !ret.isThreadAllocatedMemoryEnabled() ) ret.setThreadAllocatedMemoryEnabled( true );
+			return ret;
+		} catch( Throwable e ) {
+			// not a HotSpot-derived JVM, or not permitted to enable the counter
+			return null;
+		}
+	}
+}
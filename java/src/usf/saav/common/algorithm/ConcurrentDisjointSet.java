@@ -0,0 +1,129 @@
+package usf.saav.common.algorithm;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ *  Lock-free disjoint set over the integers [0,elemN).  Roots are always the
+ *  lowest index in their set, so parent pointers strictly decrease along any
+ *  path.  find() is therefore wait-free (at most elem steps) and the root of a
+ *  set does not depend on thread interleaving.
+ **/
+public class ConcurrentDisjointSet {
+
+	protected AtomicIntegerArray sets;
+
+	public ConcurrentDisjointSet( int elemN ){
+		clear( elemN );
+	}
+
+	public void clear( int elemN ){
+		sets = new AtomicIntegerArray( elemN );
+		for( int i = 0; i < elemN; i++ ){
+			sets.set( i, i );
+		}
+	}
+
+	public int size(){ return sets.length(); }
+
+
+	/**
+	 *  find() finds the root of the set containing a given element.  Performs
+	 *  path halving with a single compareAndSet per step; a failed CAS is
+	 *  ignored since another thread has already shortened the path.
+	 *
+	 *  @param elem the element sought.
+	 *  @return the lowest index in the set containing elem.
+	 **/
+	public int find( int elem ){
+		while( true ){
+			int parent = sets.get( elem );
+			if( parent == elem ) return elem;
+			int grand = sets.get( parent );
+			if( parent != grand ) sets.compareAndSet( elem, parent, grand );
+			elem = grand;
+		}
+	}
+
+
+	/**
+	 *  union() unites two disjoint sets into a single set.  The root with the
+	 *  higher index is attached to the root with the lower index.
+	 *
+	 *  @param set1 a member of the first set.
+	 *  @param set2 a member of the other set.
+	 *  @return the root of the combined set.
+	 **/
+	public int union( int set1, int set2 ){
+		while( true ){
+			int r0 = find( set1 );
+			int r1 = find( set2 );
+			if( r0 == r1 ) return r0;
+			if( r0 > r1 ){ int tmp = r0; r0 = r1; r1 = tmp; }
+			if( sets.compareAndSet( r1, r1, r0 ) ) return r0;
+		}
+	}
+
+
+	/**
+	 *  sameSet() tests whether two elements share a root.  The test is retried
+	 *  if the first root is merged away while the second is being found.
+	 **/
+	public boolean sameSet( int set1, int set2 ){
+		while( true ){
+			int r0 = find( set1 );
+			int r1 = find( set2 );
+			if( r0 == r1 ) return true;
+			if( sets.get( r0 ) == r0 ) return false;
+		}
+	}
+
+
+
+	/**
+	 *  main() is test code.  Several threads union the same random pairs that
+	 *  are then replayed sequentially through ArrayDisjointSet; both must
+	 *  report identical roots for every element.
+	 **/
+	public static void main( String[] args ) throws InterruptedException {
+		final int elemN   = 1<<20;
+		final int unionN  = 1<<21;
+		final int threadN = Math.max( 2, Runtime.getRuntime().availableProcessors() );
+
+		Random rand = new Random(0);
+		final int [] pairs = new int[unionN*2];
+		for( int i = 0; i < pairs.length; i++ ){
+			pairs[i] = rand.nextInt( elemN );
+		}
+
+		for( int trial = 0; trial < 5; trial++ ){
+			final ConcurrentDisjointSet cdjs = new ConcurrentDisjointSet( elemN );
+			Thread [] workers = new Thread[threadN];
+			for( int t = 0; t < threadN; t++ ){
+				final int offset = t;
+				workers[t] = new Thread( new Runnable(){
+					@Override public void run() {
+						for( int i = offset; i < unionN; i += threadN ){
+							cdjs.union( pairs[i*2], pairs[i*2+1] );
+							cdjs.find( pairs[(i*7)%unionN] );
+						}
+					}
+				});
+				workers[t].start();
+			}
+			for( Thread w : workers ) w.join();
+
+			ArrayDisjointSet adjs = new ArrayDisjointSet( elemN );
+			for( int i = 0; i < unionN; i++ ){
+				adjs.union( pairs[i*2], pairs[i*2+1] );
+			}
+
+			int errors = 0;
+			for( int i = 0; i < elemN; i++ ){
+				if( cdjs.find(i) != adjs.find(i) ) errors++;
+			}
+			System.out.println( "trial " + trial + " (" + threadN + " threads): " + ((errors==0) ? "ok" : (errors + " mismatched elements")) );
+		}
+	}
+
+}
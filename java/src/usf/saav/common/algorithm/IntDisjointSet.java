@@ -0,0 +1,160 @@
+package usf.saav.common.algorithm;
+
+import java.util.Arrays;
+
+/**
+ *  Disjoint set over the integers [0,elemN) using union-by-rank and
+ *  iterative path halving.  Optionally keeps an undo log, so that a single
+ *  instance can be reused across many local searches by rolling back to a
+ *  checkpoint instead of reallocating.
+ **/
+public class IntDisjointSet {
+
+	protected int [] sets;
+	protected int [] rank;
+
+	private boolean undoable;
+	private int [] undo = new int[0];
+	private int undoN = 0;
+
+	public IntDisjointSet( int elemN ){
+		this( elemN, false );
+	}
+
+	/**
+	 *  @param elemN number of elements.
+	 *  @param _undoable record unions so they can be rolled back.  Path
+	 *         halving is disabled in this mode (union-by-rank alone keeps
+	 *         trees O(log n) deep) so that only unions need to be undone.
+	 **/
+	public IntDisjointSet( int elemN, boolean _undoable ){
+		undoable = _undoable;
+		clear( elemN );
+	}
+
+	public void clear( int elemN ){
+		if( sets == null || sets.length != elemN ){
+			sets = new int[elemN];
+			rank = new int[elemN];
+		}
+		for( int i = 0; i < elemN; i++ ){
+			sets[i] = i;
+		}
+		Arrays.fill( rank, 0 );
+		undoN = 0;
+	}
+
+	public int size(){ return sets.length; }
+
+	public boolean isUndoable(){ return undoable; }
+
+
+	/**
+	 *  find() finds the root of the set containing a given element.
+	 *
+	 *  @param elem the element sought.
+	 *  @return the root of the set containing elem.
+	 **/
+	public int find( int elem ){
+		if( undoable ){
+			while( sets[elem] != elem ) elem = sets[elem];
+			return elem;
+		}
+		while( sets[elem] != elem ){
+			sets[elem] = sets[ sets[elem] ];
+			elem = sets[elem];
+		}
+		return elem;
+	}
+
+	public boolean sameSet( int set1, int set2 ){
+		return find( set1 ) == find( set2 );
+	}
+
+
+	/**
+	 *  union() unites two disjoint sets into a single set.  The root of lower
+	 *  rank is attached to the root of higher rank.
+	 *
+	 *  @param set1 a member of the first set.
+	 *  @param set2 a member of the other set.
+	 *  @return the root of the combined set.
+	 **/
+	public int union( int set1, int set2 ){
+		int r0 = find( set1 );
+		int r1 = find( set2 );
+		if( r0 == r1 ) return r0;
+
+		if( rank[r0] < rank[r1] ){ int tmp = r0; r0 = r1; r1 = tmp; }
+
+		if( undoable ){
+			if( undoN+2 > undo.length ) undo = Arrays.copyOf( undo, Math.max( 16, undo.length*2 ) );
+			undo[undoN++] = r1;
+			undo[undoN++] = rank[r0];
+		}
+
+		sets[r1] = r0;
+		if( rank[r0] == rank[r1] ) rank[r0]++;
+		return r0;
+	}
+
+
+	/**
+	 *  checkpoint() marks the current state for a later rollback().
+	 **/
+	public int checkpoint(){
+		if( !undoable ) throw new IllegalStateException("IntDisjointSet was not constructed with an undo log");
+		return undoN;
+	}
+
+	/**
+	 *  rollback() undoes every union made since the checkpoint, in reverse
+	 *  order.  Cost is proportional to the number of unions undone.
+	 **/
+	public void rollback( int checkpoint ){
+		if( !undoable ) throw new IllegalStateException("IntDisjointSet was not constructed with an undo log");
+		while( undoN > checkpoint ){
+			int oldRank = undo[--undoN];
+			int r1      = undo[--undoN];
+			int r0      = sets[r1];
+			rank[r0] = oldRank;
+			sets[r1] = r1;
+		}
+	}
+
+
+
+	/**
+	 *  main() is test code.  All the find()s on the same output line should be
+	 *  identical, and every element should be its own set after rollback.
+	 **/
+	public static void main( String[] args ){
+		int NumElements = 128;
+		int NumInSameSet = 16;
+
+		IntDisjointSet s = new IntDisjointSet( NumElements, true );
+		int cp = s.checkpoint();
+
+		for( int k = 1; k < NumInSameSet; k *= 2 ){
+			for( int j = 0; j + k < NumElements; j += 2 * k ){
+				s.union( j, j+k );
+			}
+		}
+
+		for( int i = 0; i < NumElements; i++ ){
+			System.out.print( s.find(i) + "*" );
+			if( i % NumInSameSet == NumInSameSet - 1 ){
+				System.out.println();
+			}
+		}
+		System.out.println();
+
+		s.rollback( cp );
+		int joined = 0;
+		for( int i = 0; i < NumElements; i++ ){
+			if( s.find(i) != i ) joined++;
+		}
+		System.out.println( "after rollback: " + ((joined==0) ? "ok" : (joined + " elements still joined")) );
+	}
+
+}
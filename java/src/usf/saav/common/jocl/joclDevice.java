@@ -66,6 +66,7 @@ import static org.jocl.CL.clReleaseContext;
 import static org.jocl.CL.stringFor_cl_device_fp_config;
 
 import java.io.IOException;
+import java.util.HashMap;
 
 import org.jocl.Pointer;
 import org.jocl.cl_command_queue;
@@ -80,6 +81,11 @@ public class joclDevice {
 	cl_command_queue commandQueue;
 	cl_context       context;
 	cl_device_id     device_id;
+	long             queueProperties;
+	boolean          ownsContext = true;
+
+	// built programs by source and options, shared by the queues of a context
+	HashMap<String,joclProgram> programs = new HashMap<String,joclProgram>();
 
 	public joclDevice( cl_context_properties contextProperties, cl_device_id device, boolean profile) {
         this.device_id = device;
@@ -91,12 +97,54 @@ public class joclDevice {
         long properties = 0;
         if( profile ) properties |= CL_QUEUE_PROFILING_ENABLE;
        	commandQueue = clCreateCommandQueue(context, device, properties, null);
+       	queueProperties = properties;
 		
 	}
+
+	private joclDevice( joclDevice shared ) {
+		this.device_id       = shared.device_id;
+		this.context         = shared.context;
+		this.queueProperties = shared.queueProperties;
+		this.ownsContext     = false;
+		this.programs        = shared.programs;
+		this.commandQueue    = clCreateCommandQueue(context, device_id, queueProperties, null);
+	}
+
+	/**
+	 * The same device and context with a command queue of its own. Buffers
+	 * may be shared with this device; kernels and memory created through
+	 * the returned object enqueue on the new queue, so work on it can
+	 * overlap with work on this one. Releasing it releases only the queue.
+	 */
+	public joclDevice createQueue( ) {
+		return new joclDevice( this );
+	}
 	
 	public void release( ){
         clReleaseCommandQueue(commandQueue);
-        clReleaseContext(context);		
+        if( ownsContext ){
+        	synchronized( programs ){
+        		for( joclProgram p : programs.values() ) p.release();
+        		programs.clear();
+        	}
+        	clReleaseContext(context);
+        }
+	}
+
+	/**
+	 * The program for source and options, built (or loaded from the disk
+	 * cache) on first use and shared by every later kernel on this context.
+	 */
+	joclProgram getProgram( String source, String options, String name ){
+		String key = joclProgram.key( source, options );
+		synchronized( programs ){
+			joclProgram ret = programs.get( key );
+			if( ret == null ){
+				ret = new joclProgram( this, source, options, name );
+				programs.put( key, ret );
+			}
+			return ret;
+		}
 	}
 
 
@@ -108,6 +156,13 @@ public class joclDevice {
 	public joclKernel buildProgram( joclLoader program, String main_func ) throws IOException {
 		return new joclKernel( this, program, main_func );
 	}
+
+	/**
+	 * @param options compiler options, e.g. "-D LOCAL_SIZE=256"
+	 */
+	public joclKernel buildProgram( joclLoader program, String main_func, String options ) throws IOException {
+		return new joclKernel( this, program, main_func, options );
+	}
 	
 	
 
@@ -157,6 +212,14 @@ public class joclDevice {
         long deviceType = joclController.getLong(device_id, CL_DEVICE_TYPE);
         return ( (deviceType & CL_DEVICE_TYPE_ACCELERATOR) != 0);
 	}
+
+	/**
+	 * @return true if the queue records profiling data, so the events it
+	 *         returns have start and end times
+	 */
+	public boolean isProfiling(){
+		return ( (queueProperties & CL_QUEUE_PROFILING_ENABLE) != 0);
+	}
 	
 	
 	
@@ -172,6 +235,18 @@ public class joclDevice {
 		return joclController.getSize(device_id, CL_DEVICE_MAX_WORK_GROUP_SIZE);
 	}
 
+	public long getLocalMemSize() {
+		return joclController.getLong(device_id, CL_DEVICE_LOCAL_MEM_SIZE);
+	}
+
+	public String getName() {
+		return joclController.getString(device_id, CL_DEVICE_NAME);
+	}
+
+	public String getDriverVersion() {
+		return joclController.getString(device_id, CL_DRIVER_VERSION);
+	}
+
 
 
 	@Override
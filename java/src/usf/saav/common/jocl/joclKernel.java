@@ -25,9 +25,7 @@ import static org.jocl.CL.CL_KERNEL_ARG_NAME;
 import static org.jocl.CL.CL_KERNEL_ARG_TYPE_NAME;
 import static org.jocl.CL.CL_KERNEL_ARG_TYPE_QUALIFIER;
 import static org.jocl.CL.CL_KERNEL_NUM_ARGS;
-import static org.jocl.CL.clBuildProgram;
 import static org.jocl.CL.clCreateKernel;
-import static org.jocl.CL.clCreateProgramWithSource;
 import static org.jocl.CL.clEnqueueNDRangeKernel;
 import static org.jocl.CL.clGetKernelArgInfo;
 import static org.jocl.CL.clGetKernelInfo;
@@ -36,7 +34,6 @@ import static org.jocl.CL.clSetKernelArg;
 import java.util.Arrays;
 
 import org.jocl.CL;
-import org.jocl.CLException;
 import org.jocl.Pointer;
 import org.jocl.Sizeof;
 import org.jocl.cl_event;
@@ -52,11 +49,15 @@ public class joclKernel {
 
 
 	joclKernel( joclDevice device, String programSource, String kernel_main ) {
-		init( device, programSource, kernel_main );
+		init( device, programSource, kernel_main, null );
 	}
 
 	joclKernel( joclDevice device, joclLoader program, String kernel_main ){
-		init( device, program.toString(), kernel_main );
+		init( device, program.toString(), kernel_main, null );
+	}
+
+	joclKernel( joclDevice device, joclLoader program, String kernel_main, String options ){
+		init( device, program.toString(), kernel_main, options );
 	}
 
 	
@@ -65,23 +66,14 @@ public class joclKernel {
 		for(String s : programSource){
 			newProgram.append( s + "\n" );
 		}
-		init( device, newProgram.toString(), kernel_main );
+		init( device, newProgram.toString(), kernel_main, null );
 	}
 		
-	private void init(joclDevice device, String programSource, String kernel_main){
+	private void init(joclDevice device, String programSource, String kernel_main, String options){
 		//System.out.print(programSource);
 		this.name = kernel_main;
 
-		cl_program program = clCreateProgramWithSource(device.context, 1, new String[]{programSource}, null, null);
-        
-        // Build the program
-		try{ 
-			clBuildProgram(program, 0, null, null, null, null);
-		} catch ( CLException e ){
-			System.err.println("Compile error: " + kernel_main);
-			e.printStackTrace();
-			System.exit(0);
-		}
+		cl_program program = device.getProgram( programSource, options, kernel_main ).program;
         
         // Create the kernel
         this.device = device;
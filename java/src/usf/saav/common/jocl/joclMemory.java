@@ -33,6 +33,7 @@ public class joclMemory {
 
 	private joclDevice device;
 	private long	   size;
+	private long	   flags;
 	private String	   name;
 
 	cl_mem memory;
@@ -41,6 +42,7 @@ public class joclMemory {
 	joclMemory(joclDevice device, String name, long flags, long size, Pointer host_data, int[] err_codes){
 		this.device = device;
 		this.size   = size;
+		this.flags  = flags;
 		this.memory = CL.clCreateBuffer( device.context, flags, size, host_data, err_codes );
 		this.name   = name;
 	}
@@ -54,6 +56,14 @@ public class joclMemory {
 		return size;
 	}
 
+	public long flags() {
+		return flags;
+	}
+
+	public joclDevice getDevice() {
+		return device;
+	}
+
 	
 
 	public joclEvent enqueueWriteBuffer( boolean blocking_write, long offset, long cb, Pointer ptr, int num_events_in_wait_list, cl_event[] event_wait_list ) throws joclException {
@@ -242,4 +252,32 @@ public class joclMemory {
 
 
 	
+	/**
+	 * Maps part of the buffer into host memory. For buffers created with
+	 * CL_MEM_ALLOC_HOST_PTR this is pinned memory the device can reach
+	 * directly. The buffer must be unmapped before kernels use it.
+	 *
+	 * @param map_flags CL_MAP_READ and/or CL_MAP_WRITE
+	 * @return direct, little-endian view of the mapped region
+	 */
+	public ByteBuffer enqueueMapBuffer( boolean blocking, long map_flags, long offset, long cb, cl_event...wait_events ) throws joclException {
+		if( memory == null ) return null;
+		int [] err = new int[1];
+		ByteBuffer ret = CL.clEnqueueMapBuffer( device.commandQueue, memory, blocking, map_flags, offset, cb, wait_events.length, (wait_events.length==0)?null:wait_events, null, err );
+		if( err[0] != CL.CL_SUCCESS || ret == null ){
+			throw new joclException();
+		}
+		ret.order( ByteOrder.LITTLE_ENDIAN );
+		return ret;
+	}
+
+	public joclEvent enqueueUnmapBuffer( ByteBuffer mapped, cl_event...wait_events ) throws joclException {
+		if( memory == null ) return null;
+		cl_event event = new cl_event();
+		if( CL.clEnqueueUnmapMemObject( device.commandQueue, memory, mapped, wait_events.length, (wait_events.length==0)?null:wait_events, event ) != CL.CL_SUCCESS ){
+			throw new joclException();
+		}
+		return new joclEvent(name+".EnqueueUnmapBuffer", event);
+	}
+
 }
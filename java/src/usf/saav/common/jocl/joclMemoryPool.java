@@ -0,0 +1,100 @@
+/*
+ *     saav-core - A (very boring) software development support library.
+ *     Copyright (C) 2016 PAUL ROSEN
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     You may contact the Paul Rosen at <prosen@usf.edu>.
+ */
+package usf.saav.common.jocl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Device buffers kept for reuse. Requests are rounded up to a power-of-two
+ * size class, so a stream of fields of similar size keeps getting the same
+ * buffers back instead of allocating new ones. Buffers are only freed by
+ * release().
+ */
+public class joclMemoryPool {
+
+	/** Smallest size class, in bytes. */
+	public static final long MIN_SIZE = 4096;
+
+	private joclDevice device;
+	private HashMap<String,ArrayList<joclMemory>> free = new HashMap<String,ArrayList<joclMemory>>();
+	private ArrayList<joclMemory> all = new ArrayList<joclMemory>();
+	private long allocated = 0;
+
+	public joclMemoryPool( joclDevice device ){
+		this.device = device;
+	}
+
+	public static long sizeClass( long size ){
+		long ret = MIN_SIZE;
+		while( ret < size ) ret *= 2;
+		return ret;
+	}
+
+	/**
+	 * A buffer of at least size bytes with the given flags, reused if the
+	 * pool holds one of the same size class.
+	 */
+	public joclMemory acquire( String name, long flags, long size ){
+		long cls = sizeClass( size );
+		ArrayList<joclMemory> list = free.get( key( flags, cls ) );
+		if( list != null && !list.isEmpty() ){
+			return list.remove( list.size()-1 );
+		}
+		joclMemory ret = device.createBuffer( name, flags, cls );
+		all.add( ret );
+		allocated += cls;
+		return ret;
+	}
+
+	/**
+	 * Returns a buffer from acquire() to the pool. It must not be mapped or
+	 * still in use by enqueued commands.
+	 */
+	public void recycle( joclMemory mem ){
+		if( mem == null ) return;
+		String key = key( mem.flags(), mem.size() );
+		ArrayList<joclMemory> list = free.get( key );
+		if( list == null ){
+			list = new ArrayList<joclMemory>();
+			free.put( key, list );
+		}
+		list.add( mem );
+	}
+
+	/** Bytes of device memory held by the pool, in use or not. */
+	public long getAllocatedBytes( ){
+		return allocated;
+	}
+
+	public void release( ){
+		for( joclMemory mem : all ){
+			mem.release();
+		}
+		all.clear();
+		free.clear();
+		allocated = 0;
+	}
+
+	private static String key( long flags, long size ){
+		return flags + ":" + size;
+	}
+
+}
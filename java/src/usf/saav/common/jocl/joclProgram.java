@@ -0,0 +1,173 @@
+/*
+ *     saav-core - A (very boring) software development support library.
+ *     Copyright (C) 2016 PAUL ROSEN
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     You may contact the Paul Rosen at <prosen@usf.edu>.
+ */
+package usf.saav.common.jocl;
+
+import static org.jocl.CL.CL_PROGRAM_BINARIES;
+import static org.jocl.CL.CL_PROGRAM_BINARY_SIZES;
+import static org.jocl.CL.clBuildProgram;
+import static org.jocl.CL.clCreateProgramWithBinary;
+import static org.jocl.CL.clCreateProgramWithSource;
+import static org.jocl.CL.clGetProgramInfo;
+import static org.jocl.CL.clReleaseProgram;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.jocl.CLException;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_device_id;
+import org.jocl.cl_program;
+
+/**
+ * A built program, shared by all kernels created from the same source and
+ * options on a context (see joclDevice.getProgram()).
+ *
+ * Program binaries can also be kept on disk, named by a hash of the
+ * device name, driver version, options and source, so later runs skip the
+ * compiler. The disk cache is off unless the system property
+ * rgph.opencl.cache names a directory; nothing is written otherwise, as a
+ * library must not write to the user's home uninvited. From R, e.g. the
+ * directory of tools::R_user_dir("rgph", "cache"). A binary the driver
+ * rejects is deleted and the program rebuilt from source.
+ */
+public class joclProgram {
+
+	public static final String CACHE_PROPERTY = "rgph.opencl.cache";
+
+	cl_program program;
+	private boolean fromCache = false;
+
+	/**
+	 * @param name used in compiler error messages, e.g. the first kernel
+	 */
+	joclProgram( joclDevice device, String source, String options, String name ){
+		File file = cacheFile( device, source, options );
+		if( file != null && file.isFile() ){
+			program = loadBinary( device, file, options );
+			fromCache = ( program != null );
+		}
+		if( program == null ){
+			program = clCreateProgramWithSource( device.context, 1, new String[]{source}, null, null );
+			try{
+				clBuildProgram( program, 0, null, options, null, null );
+			} catch ( CLException e ){
+				System.err.println( "Compile error: " + name );
+				e.printStackTrace();
+				System.exit(0);
+			}
+			if( file != null ) storeBinary( file );
+		}
+	}
+
+	/** Whether the program was loaded from the disk cache. */
+	public boolean isFromCache( ){
+		return fromCache;
+	}
+
+	public void release( ){
+		if( program != null ) clReleaseProgram( program );
+		program = null;
+	}
+
+
+	static String key( String source, String options ){
+		return hash( (options == null ? "" : options) + "\0" + source );
+	}
+
+	private static File cacheFile( joclDevice device, String source, String options ){
+		String dir = System.getProperty( CACHE_PROPERTY );
+		if( dir == null || dir.length() == 0 ) return null;
+		String name = hash( device.getName().trim() + "\0" + device.getDriverVersion().trim() + "\0" + key( source, options ) );
+		return new File( dir, name + ".bin" );
+	}
+
+	private static cl_program loadBinary( joclDevice device, File file, String options ){
+		cl_program ret = null;
+		try {
+			byte [] binary = new byte[(int)file.length()];
+			DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+			try {
+				in.readFully( binary );
+			} finally {
+				in.close();
+			}
+			ret = clCreateProgramWithBinary( device.context, 1, new cl_device_id[]{ device.device_id },
+											 new long[]{ binary.length }, new byte[][]{ binary }, new int[1], null );
+			clBuildProgram( ret, 0, null, options, null, null );
+			return ret;
+		} catch( IOException e ){
+			System.err.println( "WARNING: unable to read " + file + ": " + e.getMessage() );
+		} catch( CLException e ){
+			// stale or foreign binary, rebuild from source
+			if( ret != null ) clReleaseProgram( ret );
+			file.delete();
+		}
+		return null;
+	}
+
+	private void storeBinary( File file ){
+		long [] size = new long[1];
+		clGetProgramInfo( program, CL_PROGRAM_BINARY_SIZES, Sizeof.size_t, Pointer.to( size ), null );
+		if( size[0] == 0 ) return;
+		byte [] binary = new byte[(int)size[0]];
+		clGetProgramInfo( program, CL_PROGRAM_BINARIES, Sizeof.POINTER, Pointer.to( Pointer.to( binary ) ), null );
+
+		// write under a temporary name, so concurrent runs never read half a file
+		File tmp = new File( file.getPath() + "." + System.nanoTime() + ".tmp" );
+		OutputStream out = null;
+		try {
+			file.getParentFile().mkdirs();
+			out = new FileOutputStream( tmp );
+			out.write( binary );
+			out.close();
+			out = null;
+			if( !tmp.renameTo( file ) ) tmp.delete();
+		} catch( IOException e ){
+			System.err.println( "WARNING: unable to write " + file + ": " + e.getMessage() );
+			tmp.delete();
+		} finally {
+			try { if( out != null ) out.close(); } catch( IOException e ){ }
+		}
+	}
+
+	private static String hash( String str ){
+		try {
+			byte [] digest = MessageDigest.getInstance( "SHA-256" ).digest( str.getBytes( "UTF-8" ) );
+			StringBuilder ret = new StringBuilder();
+			for( byte b : digest ){
+				ret.append( Character.forDigit( (b>>4)&0xF, 16 ) ).append( Character.forDigit( b&0xF, 16 ) );
+			}
+			return ret.toString();
+		} catch( NoSuchAlgorithmException e ){
+			throw new RuntimeException( e );
+		} catch( UnsupportedEncodingException e ){
+			throw new RuntimeException( e );
+		}
+	}
+
+}
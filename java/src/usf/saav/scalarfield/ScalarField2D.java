@@ -28,6 +28,8 @@ import java.util.Comparator;
 import java.util.Random;
 import java.util.Vector;
 
+import usf.saav.common.algorithm.ZOrder;
+
 
 public interface ScalarField2D extends ScalarFieldND {
 
@@ -150,6 +152,90 @@ public interface ScalarField2D extends ScalarFieldND {
 
 	}
 
+
+	/**
+	 * A field stored in Z-order (Morton order) instead of by rows, so values
+	 * near each other in x and y are near each other in memory whatever the
+	 * direction of a scan or the shape of a stencil. The field is cut into
+	 * square tiles stored one after another by rows, each in Z-order, which
+	 * keeps the padding under one tile per axis. Storage positions come from
+	 * a table per axis, so an access is two loads and an add. Node ids are
+	 * row-major, as for every other field.
+	 */
+	public class ZOrderField extends ScalarField2D.Default {
+
+		public static final int DEFAULT_TILE = 32;
+
+		float [] data;
+		int width, height;
+		int [] offX, offY;
+
+		public ZOrderField( int w, int h ){
+			this( w, h, DEFAULT_TILE );
+		}
+
+		/**
+		 * @param tile side of the tiles, a power of two
+		 */
+		public ZOrderField( int w, int h, int tile ){
+			if( tile <= 0 || (tile&(tile-1)) != 0 ) throw new IllegalArgumentException( "tile size must be a power of two, got " + tile );
+			int tilesX = (w+tile-1)/tile;
+			int tilesY = (h+tile-1)/tile;
+			long size = (long)tilesX*tilesY*tile*tile;
+			if( size > Integer.MAX_VALUE ) throw new IllegalArgumentException( w + "x" + h + " is too large for a Z-order field" );
+
+			width  = w;
+			height = h;
+			data   = new float[(int)size];
+			Arrays.fill( data, Float.NaN );
+
+			offX = new int[w];
+			offY = new int[h];
+			for( int x = 0; x < w; x++ ) offX[x] = (x/tile)*tile*tile        + (int)ZOrder.getOrdered2( x%tile, 0 );
+			for( int y = 0; y < h; y++ ) offY[y] = (y/tile)*tilesX*tile*tile + (int)ZOrder.getOrdered2( 0, y%tile );
+		}
+
+		public ZOrderField( ScalarField2D src ){
+			this( src, DEFAULT_TILE );
+		}
+
+		public ZOrderField( ScalarField2D src, int tile ){
+			this( src.getWidth(), src.getHeight(), tile );
+			for( int y = 0; y < height; y++ ){
+				for( int x = 0; x < width; x++ ){
+					data[offX[x]+offY[y]] = src.getValue( x, y );
+				}
+			}
+		}
+
+		public void setValue( int x, int y, float val ){ data[offX[x]+offY[y]] = val; }
+
+		/** Position of (x,y) in storage, for stencils that index it directly. */
+		public int getStorageIndex( int x, int y ){ return offX[x]+offY[y]; }
+
+		/** Values stored, including the padding, which is NaN. */
+		public int getStorageSize( ){ return data.length; }
+
+		@Override public int getWidth() { return width; }
+		@Override public int getHeight() { return height; }
+		@Override public float getValue( int x, int y ) { return data[offX[x]+offY[y]]; }
+		@Override public float getValue( int nodeID ) { return data[offX[nodeID%width]+offY[nodeID/width]]; }
+
+		// reads storage in order; the padding is NaN, so it is skipped
+		@Override
+		public double [] getValueRange(){
+			double min =  Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+			for( float v : data ){
+				if( Float.isNaN(v) ) continue;
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+			return new double[]{min,max};
+		}
+
+	}
+
 	
 	public class MedianFilterField extends ScalarField2D.ArrayField {
 		
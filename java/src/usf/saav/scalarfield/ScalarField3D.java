@@ -0,0 +1,270 @@
+/*
+ *     jPSimp - Persistence calculation and simplification of scalar fields.
+ *     Copyright (C) 2016 PAUL ROSEN
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     You may contact the Paul Rosen at <prosen@usf.edu>.
+ */
+package usf.saav.scalarfield;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import usf.saav.common.algorithm.ZOrder;
+
+
+/**
+ * A volume on a regular grid, x fastest, then y, then z.
+ */
+public interface ScalarField3D extends ScalarFieldND {
+
+	public int getWidth();
+	public int getHeight();
+	public int getDepth();
+
+	public float     getValue( int x, int y, int z );
+	public double [] getCoordinate( int x, int y, int z );
+
+
+	/**
+	 * Neighborhoods of a grid vertex: the 6 face neighbors, or all 26
+	 * vertices of the surrounding 3x3x3 block.
+	 */
+	public enum Connectivity {
+		SIX, TWENTY_SIX;
+
+		/**
+		 * Offsets {dx,dy,dz} of the neighbors and of the vertex itself, in
+		 * memory order; the vertex itself is at getCenter().
+		 */
+		public int [][] getOffsets( ){
+			int [][] ret = new int[getCenter()*2+1][];
+			int n = 0;
+			for( int dz = -1; dz <= 1; dz++ ){
+				for( int dy = -1; dy <= 1; dy++ ){
+					for( int dx = -1; dx <= 1; dx++ ){
+						int dist = Math.abs(dx) + Math.abs(dy) + Math.abs(dz);
+						if( this == SIX && dist > 1 ) continue;
+						ret[n++] = new int[]{ dx, dy, dz };
+					}
+				}
+			}
+			return ret;
+		}
+
+		public int getCenter( ){
+			return ( this == SIX ) ? 3 : 13;
+		}
+
+		public int getNeighborCount( ){
+			return getCenter()*2;
+		}
+	}
+
+
+	public abstract class Default extends ScalarFieldND.Default implements ScalarField3D {
+
+		protected Default( ){ }
+
+		@Override public double [] getCoordinate( int x, int y, int z ){ return new double[]{x,y,z}; }
+		@Override public int getSize() { return getWidth()*getHeight()*getDepth(); }
+		@Override public float getValue( int nodeID ) {
+			int w = getWidth(), h = getHeight();
+			return getValue( nodeID%w, (nodeID/w)%h, nodeID/(w*h) );
+		}
+
+	}
+
+
+	public class ArrayField extends ScalarField3D.Default {
+
+		float [] data;
+		int width, height, depth;
+
+		public ArrayField( int w, int h, int d ){
+			this( w, h, d, new float[w*h*d] );
+		}
+
+		public ArrayField( int w, int h, int d, float [] _data ){
+			if( _data.length != w*h*d ) throw new IllegalArgumentException( "expected " + (w*h*d) + " values, got " + _data.length );
+			data   = _data;
+			width  = w;
+			height = h;
+			depth  = d;
+		}
+
+		public void setValue( int x, int y, int z, float val ){ data[(z*height+y)*width+x] = val; }
+
+		@Override public int getWidth() { return width; }
+		@Override public int getHeight() { return height; }
+		@Override public int getDepth() { return depth; }
+		@Override public float getValue( int x, int y, int z ) { return data[(z*height+y)*width+x]; }
+		@Override public float getValue( int idx ) { return data[idx]; }
+
+	}
+
+
+	/**
+	 * A volume stored in Z-order, as ScalarField2D.ZOrderField: cubic tiles
+	 * stored by rows, then slices, each in Z-order, so a 26-neighborhood
+	 * mostly falls in one or two cache lines instead of nine rows spread
+	 * over three slices. Node ids are row-major.
+	 */
+	public class ZOrderField extends ScalarField3D.Default {
+
+		public static final int DEFAULT_TILE = 16;
+
+		float [] data;
+		int width, height, depth;
+		int [] offX, offY, offZ;
+
+		public ZOrderField( int w, int h, int d ){
+			this( w, h, d, DEFAULT_TILE );
+		}
+
+		/**
+		 * @param tile side of the tiles, a power of two
+		 */
+		public ZOrderField( int w, int h, int d, int tile ){
+			if( tile <= 0 || (tile&(tile-1)) != 0 ) throw new IllegalArgumentException( "tile size must be a power of two, got " + tile );
+			int tilesX = (w+tile-1)/tile;
+			int tilesY = (h+tile-1)/tile;
+			int tilesZ = (d+tile-1)/tile;
+			int tileSize = tile*tile*tile;
+			long size = (long)tilesX*tilesY*tilesZ*tileSize;
+			if( size > Integer.MAX_VALUE ) throw new IllegalArgumentException( w + "x" + h + "x" + d + " is too large for a Z-order field" );
+
+			width  = w;
+			height = h;
+			depth  = d;
+			data   = new float[(int)size];
+			Arrays.fill( data, Float.NaN );
+
+			offX = new int[w];
+			offY = new int[h];
+			offZ = new int[d];
+			for( int x = 0; x < w; x++ ) offX[x] = (x/tile)*tileSize               + (int)ZOrder.getOrdered3( x%tile, 0, 0 );
+			for( int y = 0; y < h; y++ ) offY[y] = (y/tile)*tilesX*tileSize        + (int)ZOrder.getOrdered3( 0, y%tile, 0 );
+			for( int z = 0; z < d; z++ ) offZ[z] = (z/tile)*tilesX*tilesY*tileSize + (int)ZOrder.getOrdered3( 0, 0, z%tile );
+		}
+
+		public ZOrderField( ScalarField3D src ){
+			this( src, DEFAULT_TILE );
+		}
+
+		public ZOrderField( ScalarField3D src, int tile ){
+			this( src.getWidth(), src.getHeight(), src.getDepth(), tile );
+			for( int z = 0; z < depth; z++ ){
+				for( int y = 0; y < height; y++ ){
+					for( int x = 0; x < width; x++ ){
+						data[offX[x]+offY[y]+offZ[z]] = src.getValue( x, y, z );
+					}
+				}
+			}
+		}
+
+		public void setValue( int x, int y, int z, float val ){ data[offX[x]+offY[y]+offZ[z]] = val; }
+
+		/** Position of (x,y,z) in storage, for stencils that index it directly. */
+		public int getStorageIndex( int x, int y, int z ){ return offX[x]+offY[y]+offZ[z]; }
+
+		/** Values stored, including the padding, which is NaN. */
+		public int getStorageSize( ){ return data.length; }
+
+		@Override public int getWidth() { return width; }
+		@Override public int getHeight() { return height; }
+		@Override public int getDepth() { return depth; }
+		@Override public float getValue( int x, int y, int z ) { return data[offX[x]+offY[y]+offZ[z]]; }
+		@Override public float getValue( int idx ) {
+			int slice = width*height;
+			return data[offX[idx%width]+offY[(idx%slice)/width]+offZ[idx/slice]];
+		}
+
+		// reads storage in order; the padding is NaN, so it is skipped
+		@Override
+		public double [] getValueRange(){
+			double min =  Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+			for( float v : data ){
+				if( Float.isNaN(v) ) continue;
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+			return new double[]{min,max};
+		}
+
+	}
+
+
+	/**
+	 * Raw 32-bit floats in a file, memory mapped, so volumes larger than
+	 * the heap are paged in as they are read. Volumes over 2 GB are mapped
+	 * in several pieces of whole z-slices.
+	 */
+	public class MappedField extends ScalarField3D.Default {
+
+		int width, height, depth;
+		int slicesPerMap;
+		FloatBuffer [] maps;
+
+		/**
+		 * @param offset bytes to skip at the start of the file, e.g. a header
+		 */
+		public MappedField( File file, int w, int h, int d, long offset, ByteOrder order ) throws IOException {
+			width  = w;
+			height = h;
+			depth  = d;
+
+			long sliceBytes = 4L*w*h;
+			slicesPerMap = (int)Math.max( 1, Integer.MAX_VALUE / sliceBytes );
+			maps = new FloatBuffer[(d+slicesPerMap-1)/slicesPerMap];
+
+			RandomAccessFile raf = new RandomAccessFile( file, "r" );
+			try {
+				FileChannel ch = raf.getChannel();
+				if( ch.size() < offset + sliceBytes*d ) throw new IOException( file + " is too short for a " + w + "x" + h + "x" + d + " volume" );
+				for( int i = 0; i < maps.length; i++ ){
+					int slices = Math.min( slicesPerMap, d-i*slicesPerMap );
+					maps[i] = ch.map( FileChannel.MapMode.READ_ONLY, offset + sliceBytes*i*slicesPerMap, sliceBytes*slices ).order( order ).asFloatBuffer();
+				}
+			} finally {
+				// the mappings stay valid after the channel is closed
+				raf.close();
+			}
+		}
+
+		public MappedField( File file, int w, int h, int d ) throws IOException {
+			this( file, w, h, d, 0, ByteOrder.LITTLE_ENDIAN );
+		}
+
+		@Override public int getWidth() { return width; }
+		@Override public int getHeight() { return height; }
+		@Override public int getDepth() { return depth; }
+		@Override public float getValue( int x, int y, int z ) {
+			return maps[z/slicesPerMap].get( ((z%slicesPerMap)*height+y)*width+x );
+		}
+		@Override public float getValue( int idx ) {
+			int slice = width*height;
+			return getValue( idx%width, (idx%slice)/width, idx/slice );
+		}
+
+	}
+
+}
@@ -19,51 +19,37 @@
  */
 package usf.saav.topology.merge;
 
-import static org.jocl.CL.CL_MEM_READ_ONLY;
-import static org.jocl.CL.CL_MEM_READ_WRITE;
-
-import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.HashMap;
 import java.util.Vector;
 
 import usf.saav.common.EventTimer;
+import usf.saav.common.FlightEvents;
 import usf.saav.common.algorithm.ArrayDisjointSet;
 import usf.saav.common.jocl.joclDevice;
-import usf.saav.common.jocl.joclEvent;
-import usf.saav.common.jocl.joclException;
-import usf.saav.common.jocl.joclKernel;
-import usf.saav.common.jocl.joclMemory;
-import usf.saav.common.jocl.joclResourceLoader;
 import usf.saav.scalarfield.ScalarField2D;
+import usf.saav.scalarfield.ScalarField3D;
+import usf.saav.scalarfield.ScalarFieldND;
 import usf.saav.topology.TopoGraph;
 import usf.saav.topology.TopoTreeNode;
 
 public abstract class PAugmentedMergeTree  extends AbstractAugmentedMergeTree {
 
-	private joclDevice   device;
-
-	//private joclKernel kernel_djs_init;
-	//private joclKernel kernel_djs_simplify;
-	private joclKernel kernel_djs;
-	private joclKernel kernel_cps_extract;
-	private joclKernel kernel_cps_bin;
-	private joclKernel kernel_cps_bin_sort;
-	private joclKernel kernel_cps_propagate;
-
-	private joclMemory d_field;
-	private joclMemory d_djs;
-	private joclMemory d_cps;
-	private joclMemory d_scratch;
-	private joclMemory d_histogram;
+	private static final FlightEvents.Type PHASE_EVENT = FlightEvents.define( "MergeTreeStage", "Merge Tree Stage",
+			new String[]{ "phase", "cells", "elapsedNanos" },
+			new Class<?>[]{ String.class, long.class, long.class } );
+
+	private PMergeTreeBackend backend;
 	
 	ScalarField2D sf = null;
+
+	// the field of the last calculate(), 2D or 3D; nodes index into it
+	ScalarFieldND field = null;
 	
 	Vector<EventTimer> events = new Vector<EventTimer>();
 
-	int histogramBinN = 128;
 
 	boolean verbose = false;
 	
@@ -75,217 +61,53 @@ public abstract class PAugmentedMergeTree  extends AbstractAugmentedMergeTree {
 	}
 
 	public PAugmentedMergeTree( joclDevice _device, boolean _verbose ){
+		this( joclBackend( _device, _verbose ), _verbose );
+	}
+
+	private static PMergeTreeJOCL joclBackend( joclDevice _device, boolean _verbose ){
+		PMergeTreeJOCL ret = new PMergeTreeJOCL( _device );
+		ret.setVerbose( _verbose );
+		return ret;
+	}
+
+	/**
+	 * @param _backend runs the parallel stages, see PMergeTreeForkJoin for
+	 *        one that needs no OpenCL device
+	 */
+	public PAugmentedMergeTree( PMergeTreeBackend _backend, boolean _verbose ){
 		//super(verbose);
 		
 		verbose = _verbose;
 		
-		this.device = _device;
-
-		String dir = "/usf/saav/topology/join/parallel";
-		
-		try {
-				
-			kernel_djs   		= device.buildProgram( new joclResourceLoader(dir,"kernel_djs.cl"), 		    "kernel_djs"     );
-			kernel_cps_bin		= device.buildProgram( new joclResourceLoader(dir,"kernel_cps_bucket_sort.cl"),	"kernel_cps_bucket" );
-			kernel_cps_bin_sort	= device.buildProgram( new joclResourceLoader(dir,"kernel_cps_bucket_sort.cl"),	"kernel_cps_bucket_sort" );
-			
-			if( device.getMaxWorkGroupSize() == 256 ){
-				kernel_cps_extract		= device.buildProgram( new joclResourceLoader(dir,"kernel_cps_extract.cl"),		"kernel_cps_extract_256" );
-				kernel_cps_propagate	= device.buildProgram( new joclResourceLoader(dir,"kernel_cps_propagate.cl"),	"kernel_cps_propagate_256" );
-			}
-			else if( device.getMaxWorkGroupSize() == 1024 ){
-				kernel_cps_extract		= device.buildProgram( new joclResourceLoader(dir,"kernel_cps_extract.cl"),		"kernel_cps_extract_1024" );
-				kernel_cps_propagate	= device.buildProgram( new joclResourceLoader(dir,"kernel_cps_propagate.cl"),	"kernel_cps_propagate_1024" );
-			}
-			
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		this.backend = _backend;
 	}
+
+	public PMergeTreeBackend getBackend( ){ return backend; }
 	
 	
 	public void release( ){
-		 
-		if( sf != null ){
-			d_field.release();
-			d_djs.release();
-			d_cps.release();
-			d_scratch.release();
-			d_histogram.release();
-		}		
+		backend.release();
 		sf = null;
-		
+		field = null;
 	}
 		
 
+	// device state, available from the OpenCL backend only
+
 	public void writeDJSInfo( PrintStream ps, boolean showIdx ){
-		try {
-			ByteBuffer tmp_djs = ByteBuffer.allocate( (int)sf.getSize()*4 );
-			tmp_djs.order( ByteOrder.LITTLE_ENDIAN );
-			d_djs.enqueueReadBuffer( true, tmp_djs );
-			ps.println( sf.getWidth() + " " + sf.getHeight() );
-			for( int i = 0; i < sf.getSize(); i++ ){
-				if( showIdx ) ps.print( "["+i+"]"+tmp_djs.getInt() + " " );
-				else ps.print( tmp_djs.getInt() + " " );
-				if( (i%sf.getWidth()) == (sf.getWidth()-1) ) ps.println();
-			}
-		} catch (joclException e) {
-			e.printStackTrace();
-		}
-	}
-	
-	class HashDJSRecord {
-		int key;
-		int value;
-		float data;
-		int next;
+		if( backend instanceof PMergeTreeJOCL ) ((PMergeTreeJOCL)backend).writeDJSInfo( ps, showIdx );
 	}
 
 	public void writeDJSHashInfo( PrintStream ps ){
-		try {
-			ByteBuffer tmp_djs = ByteBuffer.allocate( (int)d_djs.size() );
-			tmp_djs.order( ByteOrder.LITTLE_ENDIAN );
-			d_djs.enqueueReadBuffer( true, tmp_djs );
-			
-			int heapp = tmp_djs.getInt();
-			System.out.println("heap: " + heapp);
-	
-			int [] pntr = new int[2048];
-			for(int i = 0; i < pntr.length; i++){
-				pntr[i] = tmp_djs.getInt();
-			}
-			
-			HashDJSRecord [] rec = new HashDJSRecord[heapp]; 
-			for(int i = 0; i < rec.length; i++){
-				rec[i] = new HashDJSRecord();
-				rec[i].key = tmp_djs.getInt();
-				rec[i].value = tmp_djs.getInt();
-				rec[i].data = tmp_djs.getFloat();
-				rec[i].next = tmp_djs.getInt();
-			}
-
-			for(int i = 0; i < pntr.length; i++ ){
-				int cur = pntr[i];
-				if( cur != -1 ){
-					System.out.print("  [" + i + "] ");
-					while(cur != -1){
-						System.out.print( "[" + rec[cur].key + "->" + rec[cur].value + " (" + rec[cur].data + ")] " );
-						cur = rec[cur].next;
-					}
-					System.out.println();
-				}
-			}
-
-		} catch (joclException e) {
-			e.printStackTrace();
-		}
+		if( backend instanceof PMergeTreeJOCL ) ((PMergeTreeJOCL)backend).writeDJSHashInfo( ps );
 	}
 
 	public void writeCPInfo( PrintStream ps ){
-		
-		ByteBuffer tmp_cps = ByteBuffer.allocate( (int)d_cps.size() );
-		tmp_cps.order( ByteOrder.LITTLE_ENDIAN );
-		
-		try {
-			d_cps.enqueueReadBuffer(true, tmp_cps);
-		} catch (joclException e) {
-			e.printStackTrace();
-		}
-
-		CPSTransfer currCP = new CPSTransfer( );
-
-		int hpointer = tmp_cps.getInt();
-		int cpsN = (hpointer-1)/CPSTransfer.size();
-	
-		int disp = 0;
-		ps.println("heap pointer: " + hpointer + " (" + cpsN + " cps)");
-		for(int i = 0; i < sf.getSize() && i < cpsN*2; i++){
-			currCP.loadNext(tmp_cps);
-			//if( currCP.ref > 1 ){
-			System.out.print("("+disp+")");
-			currCP.print( ps );
-			disp++;
-			//if(disp>50) break;
-			//}
-		}
-		ps.println();
-		
-	}
-	
-	class HashRecord {
-		int value;
-		int data;
-		int next;
+		if( backend instanceof PMergeTreeJOCL ) ((PMergeTreeJOCL)backend).writeCPInfo( ps );
 	}
-	
-	public void writeScratchInfo( PrintStream ps, boolean showLocks ){
-		ByteBuffer tmp_scratch = ByteBuffer.allocate( (int)d_scratch.size() );
-		tmp_scratch.order( ByteOrder.LITTLE_ENDIAN );
-
-		try {
-			d_scratch.enqueueReadBuffer(true, tmp_scratch);
-		} catch (joclException e) {
-			e.printStackTrace();
-		}
 
-		for( int loop = 0; loop < 2; loop++ ){
-			tmp_scratch.position(loop*2048*4);
-			int heapp = tmp_scratch.getInt();
-			System.out.println("heap: " + heapp);
-	
-			int [] pntr = new int[64];
-			for(int i = 0; i < pntr.length; i++){
-				pntr[i] = tmp_scratch.getInt();
-			}
-			
-			HashRecord [] rec = new HashRecord[heapp]; 
-			for(int i = 0; i < rec.length; i++){
-				rec[i] = new HashRecord();
-				rec[i].value = tmp_scratch.getInt();
-				rec[i].data = tmp_scratch.getInt();
-				rec[i].next = tmp_scratch.getInt();
-			}
-			for(int i = 0; i < pntr.length; i++ ){
-				System.out.print("  [" + i + "] ");
-				int cur = pntr[i];
-				while(cur != -1){
-					//System.out.print( cur + "  ");
-					System.out.print( "(" + rec[cur].value + "->" + rec[cur].data + ") " );
-					cur = rec[cur].next;
-				}
-				
-				System.out.println();
-			}
-		}		
-		
-		/*
-			for(int i = 0; i < sf.getSize(); i++){
-				int val = tmp_scratch.getInt();
-				if( showLocks ){
-					if( val >= sf.getSize() ) ;// ps.print("["+i+"]-- ");
-					else ps.print( "["+i+"]" + val + " " );
-					//if( (i%sf.getWidth()) == (sf.getWidth()-1) ){
-					//	ps.println();
-					//}
-				}
-			}
-			ps.println();
-			*/
-			/*
-			int count = tmp_scratch.getInt();
-			ps.println( count );
-			int iter = tmp_scratch.getInt();
-			ps.println( iter );
-			
-		
-			for( int i = sf.getSize()+2, j =0; i < d_scratch.size()/4 && j < iter; i++, j++ ){
-				int off = tmp_scratch.getInt();
-				int cnt = tmp_scratch.getInt();
-				ps.print( "["+j+"]" + off + "/" + cnt + " " );
-				if( (j%10) == 9 ) ps.println();
-			}
-			ps.println();
-			*/
+	public void writeScratchInfo( PrintStream ps, boolean showLocks ){
+		if( backend instanceof PMergeTreeJOCL ) ((PMergeTreeJOCL)backend).writeScratchInfo( ps, showLocks );
 	}
 	
 
@@ -322,217 +144,152 @@ public abstract class PAugmentedMergeTree  extends AbstractAugmentedMergeTree {
   public abstract void calculate( ScalarField2D _sf ) ;
   
 
+	/**
+	 * The tree of an 8-connected grid. Node ids are positions in the field,
+	 * x fastest; the backends take any width and height, so the field is
+	 * not padded.
+	 */
 	protected void calculate( ScalarField2D __sf, boolean invert ){
 		
-		ScalarField2D _sf = new ScalarField2D.Padded( __sf, 16, 16 );
-
-		events.clear();
+		begin( __sf );
 		
-		if( sf != null && sf.getSize() < _sf.getSize() ){
-			d_field.release();
-			d_djs.release();
-			d_cps.release();
-			d_scratch.release();
-			d_histogram.release();
-			sf = null;
+		try {
+			
+			FloatBuffer data = backend.getFieldBuffer( sf.getWidth(), sf.getHeight() );
+			float [] range = fill( data, sf, invert );
+			build( backend.calculate( data, sf.getWidth(), sf.getHeight(), range[0], range[1], events ) );
+			
+		} catch (Exception e) {
+			e.printStackTrace();
 		}
 		
-		if( sf == null ){
-			d_field     = device.createBuffer( "field",     CL_MEM_READ_ONLY,  4*_sf.getSize() );
-			d_djs       = device.createBuffer( "djs",       CL_MEM_READ_WRITE, Math.max(4*_sf.getSize(), 4*(1+2048+2048*4) ) );
-			d_cps       = device.createBuffer( "cps",       CL_MEM_READ_WRITE, 4*_sf.getSize()*CPSTransfer.size() );
-			d_scratch   = device.createBuffer( "scratch",   CL_MEM_READ_WRITE, 4*_sf.getSize() );
-			d_histogram = device.createBuffer( "histogram", CL_MEM_READ_WRITE, 4* (1 + 2 + histogramBinN + histogramBinN) ); // 1 for bin count, 2 for min/max, N for bins, N for bin offsets
-		}
+		end( );
 		
-		sf = _sf;
+	}
 
-		EventTimer.Default complete_time = new EventTimer.Default("start_to_finish");
-		events.add(complete_time);
-		complete_time.start();
+	/**
+	 * The tree of a volume, with 6- or 26-connected neighborhoods. Node
+	 * ids are positions in the volume, x fastest.
+	 */
+	protected void calculate( ScalarField3D _sf, ScalarField3D.Connectivity connectivity, boolean invert ){
+		
+		begin( _sf );
 		
 		try {
 			
-			float [] data = new float[sf.getSize()];
-			float minV =  Float.MAX_VALUE;
-			float maxV = -Float.MAX_VALUE;
-			if( invert ){
-				for(int i = 0; i < data.length; i++){
-					data[i] = -sf.getValue(i);
-					minV = Math.min(minV, data[i]);
-					maxV = Math.max(maxV, data[i]);
+			int w = _sf.getWidth(), h = _sf.getHeight(), d = _sf.getDepth();
+			FloatBuffer data = backend.getFieldBuffer( w, h*d );
+			float [] range = fill( data, _sf, invert );
+			build( backend.calculate( data, w, h, d, connectivity, range[0], range[1], events ) );
+			
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		
+		end( );
+		
+	}
+
+	// copies the (negated) field into data; returns its {min, max}. Grids
+	// are read by coordinates, which saves a divide per value for mapped
+	// and Z-order fields.
+	static float [] fill( FloatBuffer data, ScalarFieldND field, boolean invert ){
+		float minV =  Float.MAX_VALUE;
+		float maxV = -Float.MAX_VALUE;
+		float sign = invert ? -1 : 1;
+		if( field instanceof ScalarField2D ){
+			ScalarField2D f = (ScalarField2D)field;
+			int w = f.getWidth(), h = f.getHeight();
+			for(int y = 0, i = 0; y < h; y++){
+				for(int x = 0; x < w; x++, i++){
+					float v = sign*f.getValue(x, y);
+					data.put(i, v);
+					minV = Math.min(minV, v);
+					maxV = Math.max(maxV, v);
 				}
 			}
-			else{
-				for(int i = 0; i < data.length; i++){
-					data[i] = sf.getValue(i);
-					minV = Math.min(minV, data[i]);
-					maxV = Math.max(maxV, data[i]);
+		}
+		else if( field instanceof ScalarField3D ){
+			ScalarField3D f = (ScalarField3D)field;
+			int w = f.getWidth(), h = f.getHeight(), d = f.getDepth();
+			for(int z = 0, i = 0; z < d; z++){
+				for(int y = 0; y < h; y++){
+					for(int x = 0; x < w; x++, i++){
+						float v = sign*f.getValue(x, y, z);
+						data.put(i, v);
+						minV = Math.min(minV, v);
+						maxV = Math.max(maxV, v);
+					}
 				}
 			}
-			joclEvent event_field_write   = d_field.enqueueWriteBuffer(false, data);
-			events.add(event_field_write);
-			
-			joclEvent event_djs_write     = d_djs.enqueueFillBuffer( new byte[]{0} );
-			events.add(event_djs_write);
-			
-			joclEvent event_cps_write     = d_cps.enqueueFillBuffer( new byte[]{0} );
-			events.add(event_cps_write);
-
-			joclEvent event_scratch_write = d_scratch.enqueueFillBuffer( new byte[]{0} );
-			events.add(event_scratch_write);
-
-			
-
-			ByteBuffer histogram = ByteBuffer.allocate(4*(1+2+histogramBinN*2));
-			histogram.order( ByteOrder.LITTLE_ENDIAN );
-			histogram.putInt( histogramBinN );
-			histogram.putFloat( minV );
-			histogram.putFloat( maxV );
-			for(int i = 0; i < histogramBinN; i++ ){
-				histogram.putInt( 0 );
-				histogram.putInt( 0 );
+		}
+		else {
+			for(int i = 0; i < field.getSize(); i++){
+				float v = sign*field.getValue(i);
+				data.put(i, v);
+				minV = Math.min(minV, v);
+				maxV = Math.max(maxV, v);
 			}
-			joclEvent event_histogram_write = d_histogram.enqueueWriteBuffer( false, histogram );
-			events.add(event_histogram_write);
+		}
+		return new float[]{ minV, maxV };
+	}
 
-			
-			int arg = 0;
-			
-			/*
-			arg = 0;
-			kernel_djs_init.setKernelArg( arg++, sf.getWidth() ); 
-			kernel_djs_init.setKernelArg( arg++, sf.getHeight() );
-			kernel_djs_init.setKernelArg( arg++, d_field );
-			kernel_djs_init.setKernelArg( arg++, d_djs );
-			joclEvent event_init_djs = kernel_djs_init.enqueueNDRangeKernel( new long[]{sf.getWidth(),sf.getHeight()}, event_histogram_write.event, event_field_write.event, event_djs_write.event );
-			events.add(event_init_djs);
-			
-			
-			arg = 0;
-			kernel_djs_simplify.setKernelArg( arg++, sf.getWidth() );
-			kernel_djs_simplify.setKernelArg( arg++, sf.getHeight() );
-			kernel_djs_simplify.setKernelArg( arg++, d_djs );
-			joclEvent event_simplify_djs = kernel_djs_simplify.enqueueNDRangeKernel( new long[]{sf.getWidth(),sf.getHeight()}, event_init_djs.event );
-			events.add(event_simplify_djs);
-			 */
-
-			kernel_djs.setKernelArg( 0, sf.getWidth() ); 
-			kernel_djs.setKernelArg( 1, sf.getHeight() );
-			kernel_djs.setKernelArg( 2, d_field );
-			kernel_djs.setKernelArg( 3, d_djs );
-			kernel_djs.setKernelArg( 4, (int)1 );
-			joclEvent event_init_djs = kernel_djs.enqueueNDRangeKernel( new long[]{sf.getWidth(),sf.getHeight()}, event_histogram_write.event, event_field_write.event, event_djs_write.event );
-			events.add(event_init_djs);
-
-			kernel_djs.setKernelArg( 4, (int)2 );
-			joclEvent event_simplify_djs = kernel_djs.enqueueNDRangeKernel( new long[]{sf.getWidth(),sf.getHeight()}, event_init_djs.event );
-			events.add(event_simplify_djs);
-
-			arg = 0;
-			kernel_cps_extract.setKernelArg( arg++, sf.getWidth() );
-			kernel_cps_extract.setKernelArg( arg++, sf.getHeight() );
-			kernel_cps_extract.setKernelArg( arg++, d_field );
-			kernel_cps_extract.setKernelArg( arg++, d_djs );
-			kernel_cps_extract.setKernelArg( arg++, d_cps );
-			kernel_cps_extract.setKernelArg( arg++, d_histogram );
-			joclEvent event_extract_cps = kernel_cps_extract.enqueueNDRangeKernel( new long[]{sf.getWidth(),sf.getHeight()}, event_cps_write.event, event_simplify_djs.event );
-			events.add(event_extract_cps);
-			
-			
-						arg = 0;
-			kernel_cps_bin.setKernelArg( arg++, d_cps );
-			kernel_cps_bin.setKernelArg( arg++, d_histogram );
-			joclEvent event_cps_bucket = kernel_cps_bin.enqueueNDRangeKernel( new long[]{sf.getWidth()*sf.getHeight()}, event_extract_cps.event );
-			events.add(event_cps_bucket);
+	// calculate() in three steps, so that PJoinSplitTrees can build two
+	// trees from one backend call and PTiledMergeTree can build one from
+	// many
 
-			
-			arg = 0;
-			kernel_cps_bin_sort.setKernelArg( arg++, d_cps );
-			kernel_cps_bin_sort.setKernelArg( arg++, d_histogram );
-			joclEvent event_cps_bucket_sort = kernel_cps_bin_sort.enqueueNDRangeKernel( new long[]{device.getMaxWorkGroupSize()*histogramBinN}, new long[]{device.getMaxWorkGroupSize()}, event_cps_bucket.event );
-			events.add(event_cps_bucket_sort);
+	private EventTimer.Default complete_time;
 
+	void begin( ScalarFieldND _field ){
+		field = _field;
+		sf    = ( _field instanceof ScalarField2D ) ? (ScalarField2D)_field : null;
 
+		events.clear();
+		grid.clear();
+		head = null;
 
-			ByteBuffer tmp_cpsN = ByteBuffer.allocate( 4 );
-			tmp_cpsN.order( ByteOrder.LITTLE_ENDIAN );
-			joclEvent event_cpsN_read = d_cps.enqueueReadBuffer(true, tmp_cpsN, event_cps_bucket_sort.event );
-			events.add(event_cpsN_read);
-
-			int hpointer = tmp_cpsN.getInt();
-			int cpsN = (hpointer-1)/CPSTransfer.size();
+		complete_time = new EventTimer.Default("start_to_finish");
+		events.add(complete_time);
+		complete_time.start();
+	}
 
-			System.out.println( "CPS=" + cpsN );
-			kernel_cps_propagate.setKernelArg( 0, d_cps );
-			kernel_cps_propagate.setKernelArg( 1, d_djs );
-			kernel_cps_propagate.setKernelArg( 3, d_scratch );
-			kernel_cps_propagate.setKernelArg( 4, (int)0 );
-			
-			long wgs = device.getMaxWorkGroupSize();
-			long cpsWork = (cpsN+wgs-1) - ( (cpsN+wgs-1)%wgs ); 
-			joclEvent lastEvent = event_cpsN_read;
-			
+	void build( ByteBuffer tmp_cps ){
+		EventTimer.Default proc_cps = new EventTimer.Default("processCPS");
+		proc_cps.start();
+		//processCPS( tmp_cps );
+		fastProcessCPS( tmp_cps );
+		proc_cps.stop();
+		events.add(proc_cps);
+	}
 
-			joclEvent event_cps_propagate_clear_djs = d_djs.enqueueFillBuffer( Integer.MAX_VALUE, lastEvent.event );
-			events.add(event_cps_propagate_clear_djs);
-			lastEvent = event_cps_propagate_clear_djs;
-
-			joclEvent event_cps_propagate_clear_scratch = d_scratch.enqueueFillBuffer( new int[]{0,Integer.MAX_VALUE}, lastEvent.event  );
-			events.add(event_cps_propagate_clear_scratch);
-			lastEvent = event_cps_propagate_clear_scratch;
-
-			int [] res = {0,0};
-			int cpsOffset = 0;
-			int phase;
-			EventTimer.CombinedEvents prop_event = new EventTimer.CombinedEvents( "event_cps_propagate" );
-			events.add(prop_event);
-			for( phase = 1; phase <= 40; phase++ ){
-				kernel_cps_propagate.setKernelArg( 2, phase );
-				kernel_cps_propagate.setKernelArg( 4, cpsOffset );
-
-				joclEvent event_cps_propagate_phase_X = kernel_cps_propagate.enqueueNDRangeKernel( new long[]{cpsWork-cpsOffset}, lastEvent.event );
-				prop_event.add(event_cps_propagate_phase_X);
-				lastEvent = event_cps_propagate_phase_X;
-				
-				if( phase > 1 ){
-					d_scratch.enqueueReadBuffer(true, (phase-1)*8, res, lastEvent.event );
-					cpsOffset = (int) (res[1]-(res[1]%wgs));
-					System.out.println( "Phase:" + (phase-1) + " {modified:" + res[0] + ", minimium:" + res[1] + "} Offset:" + cpsOffset + " Work Remaining:" + (cpsWork-cpsOffset) );
-					if( res[1] > cpsN ) break;
-				}
-			}
-			
-			
-			
-			//ByteBuffer tmp_cps = ByteBuffer.allocate( (int) d_cps.size() );
-			ByteBuffer tmp_cps = ByteBuffer.allocate( hpointer*4 );
-			tmp_cps.order( ByteOrder.LITTLE_ENDIAN );
-			joclEvent event_cps_read = d_cps.enqueueReadBuffer(true, tmp_cps, lastEvent.event );
-			events.add(event_cps_read);
-			
-			EventTimer.Default proc_cps = new EventTimer.Default("processCPS");
-			proc_cps.start();
-			//processCPS( tmp_cps );
-			fastProcessCPS( tmp_cps );
-			proc_cps.stop();
-			events.add(proc_cps);
-			
-		} catch (joclException e) {
-			e.printStackTrace();
-		}
-		
+	void end( ){
 		complete_time.stop();
+		if( FlightEvents.isRecording() ) recordPhases( events );
 		
 		calculatePersistence();
 		
 		operationComplete = true;
-		
 	}
 
 
 	
-	static private class CPSTransfer {
+	/**
+	 * Emits one event per timed step, with its device-side (or, for host
+	 * steps, wall) duration; the propagation phases are reported
+	 * individually. Called only once every command has completed.
+	 */
+	private void recordPhases( Vector<EventTimer> list ){
+		for( EventTimer e : list ){
+			if( e instanceof EventTimer.CombinedEvents ){
+				recordPhases( ((EventTimer.CombinedEvents)e).getEvents() );
+				continue;
+			}
+			FlightEvents.Span ev = PHASE_EVENT.begin();
+			if( ev != null ) ev.set( 0, e.getName() ).set( 1, field.getSize() ).set( 2, e.getElapsedTime() ).commit();
+		}
+	}
+
+	static class CPSTransfer {
 		int read = 0;
 		int id;
 		float val;
@@ -578,7 +335,7 @@ public abstract class PAugmentedMergeTree  extends AbstractAugmentedMergeTree {
 		
 		int hpointer = tmp_cps.getInt();
 		int cpsN     = (hpointer-1)/CPSTransfer.size();
-		System.out.println( "CPS: " + cpsN );
+		if( verbose ) System.out.println( "CPS: " + cpsN );
 		for(int i = 0; i < cpsN; i++ ){
 			currCP.loadNext( tmp_cps );
 
@@ -591,11 +348,11 @@ public abstract class PAugmentedMergeTree  extends AbstractAugmentedMergeTree {
 				PAugmentedMergeTreeNode currPJTN = createTreeNode( currCP.id );
 				grid.add(currPJTN);
 				total++;
-				System.out.print( currCP.id + " -- " );
+				if( verbose ) System.out.print( currCP.id + " -- " );
 				
 				for(int j = 0; j < currCP.ref; j++){
 					PAugmentedMergeTreeNode chldPJTN = cp_map.get( currCP.setID[j] );
-					System.out.print( currCP.setID[j] + ", " );
+					if( verbose ) System.out.print( currCP.setID[j] + ", " );
 					if( chldPJTN == null ){
 						chldPJTN = createTreeNode( currCP.setID[j] );
 						grid.add(chldPJTN);
@@ -605,7 +362,7 @@ public abstract class PAugmentedMergeTree  extends AbstractAugmentedMergeTree {
 					
 					cp_map.put( currCP.setID[j], currPJTN );
 				}
-				System.out.println();
+				if( verbose ) System.out.println();
 				this.head = currPJTN;
 			}
 		}
@@ -620,13 +377,13 @@ public abstract class PAugmentedMergeTree  extends AbstractAugmentedMergeTree {
 		unprocessed = 0;
 
 		HashMap<Integer,PAugmentedMergeTreeNode> cp_map = new HashMap<Integer,PAugmentedMergeTreeNode>( );
-		ArrayDisjointSet djs = new ArrayDisjointSet( sf.getSize() );
+		ArrayDisjointSet djs = new ArrayDisjointSet( field.getSize() );
 		
 		CPSTransfer currCP = new CPSTransfer( );
 		
 		int hpointer = tmp_cps.getInt();
 		int cpsN = (hpointer-1)/CPSTransfer.size();
-		System.out.println( "Heap Pointer: " + hpointer + " cps:" + cpsN);
+		if( verbose ) System.out.println( "Heap Pointer: " + hpointer + " cps:" + cpsN);
 		for(int i = 0; i < cpsN; i++ ){
 			currCP.loadNext( tmp_cps );
 
@@ -705,7 +462,7 @@ public abstract class PAugmentedMergeTree  extends AbstractAugmentedMergeTree {
 			
 		}
 		
-		@Override public float   getValue(){ return sf.getValue(idx); }
+		@Override public float   getValue(){ return field.getValue(idx); }
 		//@Override public int     getPosition(){ return idx; }
 		
 		@Override public void addChild( AbstractMergeTreeNode c ){
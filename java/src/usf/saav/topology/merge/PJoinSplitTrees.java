@@ -0,0 +1,125 @@
+package usf.saav.topology.merge;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import usf.saav.common.EventTimer;
+import usf.saav.common.jocl.joclDevice;
+import usf.saav.scalarfield.ScalarField2D;
+
+/**
+ * The join and split trees of a field from one backend call. The field is
+ * written and uploaded once; the OpenCL backend negates it on the device for
+ * the join tree and runs both with the same programs and buffers, where a
+ * PJoinTree and a PSplitTree side by side would each fill, upload and
+ * allocate for the field. The fork-join backend computes both orientations
+ * at the same time.
+ */
+public class PJoinSplitTrees {
+
+	private final PMergeTreeBackend backend;
+	private final PJoinTree  join;
+	private final PSplitTree split;
+
+	public PJoinSplitTrees( ){
+		this( new PMergeTreeForkJoin() );
+	}
+
+	public PJoinSplitTrees( joclDevice _device ){
+		this( new PMergeTreeJOCL( _device ) );
+	}
+
+	public PJoinSplitTrees( PMergeTreeBackend _backend ){
+		backend = _backend;
+		join    = new PJoinTree( backend );
+		split   = new PSplitTree( backend );
+	}
+
+	public PMergeTreeBackend getBackend( ){ return backend; }
+
+	public PJoinTree  getJoinTree( ){  return join; }
+	public PSplitTree getSplitTree( ){ return split; }
+
+	public void calculate( ScalarField2D sf ){
+
+		join.begin( sf );
+		split.begin( sf );
+
+		try {
+
+			FloatBuffer data = backend.getFieldBuffer( sf.getWidth(), sf.getHeight() );
+			float [] range = PAugmentedMergeTree.fill( data, sf, false );
+
+			// the backend's timings belong to both trees
+			Vector<EventTimer> events = new Vector<EventTimer>();
+			ByteBuffer [] cps = backend.calculatePair( data, sf.getWidth(), sf.getHeight(), range[0], range[1], events );
+			split.events.addAll( events );
+			join.events.addAll( events );
+
+			split.build( cps[0] );
+			join.build( cps[1] );
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		split.end( );
+		join.end( );
+	}
+
+	public void release( ){
+		join.release();
+		split.sf    = null;
+		split.field = null;
+	}
+
+
+	/**
+	 * Checks that the combined trees of random fields match a PJoinTree and
+	 * a PSplitTree computed separately.
+	 */
+	public static void main( String[] args ) throws Exception {
+		Random rand = new Random( 3 );
+		PJoinSplitTrees both = new PJoinSplitTrees( );
+		PJoinTree  join  = new PJoinTree( );
+		PSplitTree split = new PSplitTree( );
+		boolean ok = true;
+		int [][] sizes = { {16,16}, {33,17}, {64,64}, {100,75} };
+		for( int [] size : sizes ){
+			final int w = size[0], h = size[1];
+			final float [] vals = new float[w*h];
+			for( int i = 0; i < vals.length; i++ ) vals[i] = rand.nextFloat();
+			ScalarField2D sf = new ScalarField2D.Default() {
+				@Override public int getWidth() { return w; }
+				@Override public int getHeight() { return h; }
+				@Override public float getValue( int x, int y ) { return vals[y*w+x]; }
+			};
+			both.calculate( sf );
+			join.calculate( sf );
+			split.calculate( sf );
+			boolean same = persistence( both.getJoinTree() ).equals( persistence( join ) )
+						&& persistence( both.getSplitTree() ).equals( persistence( split ) );
+			System.out.println( w + "x" + h + ( same ? " ok" : " FAILED" ) );
+			ok &= same;
+		}
+		both.release();
+		join.release();
+		split.release();
+		System.out.println( ok ? "ok" : "FAILED" );
+	}
+
+	private static List<Float> persistence( AbstractMergeTree tree ){
+		List<Float> ret = new ArrayList<Float>();
+		for( int i = 0; i < tree.size(); i++ ){
+			ret.add( tree.getPersistence( i ) );
+		}
+		Collections.sort( ret );
+		return ret;
+	}
+
+}
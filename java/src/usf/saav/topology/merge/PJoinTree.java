@@ -21,19 +21,35 @@ package usf.saav.topology.merge;
 
 import usf.saav.common.jocl.joclDevice;
 import usf.saav.scalarfield.ScalarField2D;
+import usf.saav.scalarfield.ScalarField3D;
 import usf.saav.topology.TopoGraph;
 
 public class PJoinTree extends PAugmentedMergeTree {
 
+	public PJoinTree( ) {
+		super( new PMergeTreeForkJoin(), false );
+	}
+
 	public PJoinTree(joclDevice _device) {
 		super(_device);
 	}
+
+	public PJoinTree(PMergeTreeBackend _backend) {
+		super(_backend, false);
+	}
 	
 	@Override
 	public void calculate( ScalarField2D _sf ){
 		calculate(_sf,true);
 		//calculatePersistence();
 	}
+
+	/**
+	 * The tree of a volume, with 6- or 26-connected neighborhoods.
+	 */
+	public void calculate( ScalarField3D _sf, ScalarField3D.Connectivity connectivity ){
+		calculate( _sf, connectivity, true );
+	}
 	
 
 	@Override
@@ -0,0 +1,258 @@
+package usf.saav.topology.merge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Vector;
+
+import usf.saav.common.EventTimer;
+import usf.saav.common.jocl.joclController;
+import usf.saav.common.jocl.joclDevice;
+import usf.saav.scalarfield.ScalarField2D;
+import usf.saav.scalarfield.Synthetic2D;
+
+/**
+ * Chooses PMergeTreeJOCL work-group sizes and histogram size for a device
+ * by timing split trees of a benchmark field. Parameters are tuned one at a
+ * time (extraction tile, propagation group, sort group, buckets), each
+ * keeping the best value found so far for the others. A configuration only
+ * wins if its tree has the same persistence pairs as the fork-join backend.
+ *
+ * Results are cached per device name and driver version for the life of
+ * the JVM, and, if the system property rgph.opencl.tuning names a file,
+ * stored there as properties and reused by later runs. Setting the
+ * property also makes PMergeTreeJOCL(joclDevice) use the tuned
+ * configuration, see getDefaultConfig().
+ */
+public class PMergeTreeAutotuner {
+
+	public static final String CACHE_PROPERTY = "rgph.opencl.tuning";
+
+	private static final HashMap<String,PMergeTreeJOCL.Config> cache = new HashMap<String,PMergeTreeJOCL.Config>();
+
+	private PMergeTreeAutotuner( ) { }
+
+	/**
+	 * The cached configuration for a device, tuning it on first use with a
+	 * 1024x1024 benchmark field.
+	 */
+	public static synchronized PMergeTreeJOCL.Config getConfig( joclDevice device ){
+		String key = key( device );
+		PMergeTreeJOCL.Config ret = cache.get( key );
+		if( ret == null ) ret = loadCached( key );
+		if( ret == null ) ret = tune( device, benchmarkField( 1024, 1024 ), 3 );
+		cache.put( key, ret );
+		return ret;
+	}
+
+	/**
+	 * The configuration PMergeTreeJOCL(joclDevice) runs with: getConfig()
+	 * if rgph.opencl.tuning is set, so a device is tuned once and the result
+	 * stored in that file, and Config.defaults() otherwise.
+	 */
+	public static PMergeTreeJOCL.Config getDefaultConfig( joclDevice device ){
+		if( System.getProperty( CACHE_PROPERTY ) == null ) return PMergeTreeJOCL.Config.defaults( device );
+		return getConfig( device );
+	}
+
+	/**
+	 * Tunes a device and caches the result, replacing any earlier one.
+	 *
+	 * @param repetitions timed runs per configuration; the fastest counts
+	 */
+	public static synchronized PMergeTreeJOCL.Config tune( joclDevice device, ScalarField2D field, int repetitions ){
+		float [] reference = signature( new PSplitTree( new PMergeTreeForkJoin() ), field );
+
+		int maxGroup = PMergeTreeJOCL.Config.maxGroupSize( device );
+		long [] maxDims = device.getMaxWorkDimensionSizes();
+
+		PMergeTreeJOCL.Config best = PMergeTreeJOCL.Config.defaults( device );
+		long bestTime = time( device, best, field, repetitions, reference );
+
+		List<PMergeTreeJOCL.Config> candidates = new ArrayList<PMergeTreeJOCL.Config>();
+		for( int w = 4; w <= maxGroup && w <= maxDims[0]; w *= 2 ){
+			for( int h = Math.max( 1, w/4 ); h <= w && h <= maxDims[1]; h *= 2 ){
+				if( w*h < 32 || w*h > maxGroup ) continue;
+				candidates.add( new PMergeTreeJOCL.Config( w, h, best.propagateSize, best.sortSize, best.binN ) );
+			}
+		}
+		for( PMergeTreeJOCL.Config c : candidates ){
+			long t = time( device, c, field, repetitions, reference );
+			if( t < bestTime ){ best = c; bestTime = t; }
+		}
+
+		candidates.clear();
+		for( int s = 32; s <= maxGroup; s *= 2 ){
+			candidates.add( new PMergeTreeJOCL.Config( best.extractW, best.extractH, s, best.sortSize, best.binN ) );
+		}
+		for( PMergeTreeJOCL.Config c : candidates ){
+			long t = time( device, c, field, repetitions, reference );
+			if( t < bestTime ){ best = c; bestTime = t; }
+		}
+
+		candidates.clear();
+		for( int s = 32; s <= maxGroup; s *= 2 ){
+			candidates.add( new PMergeTreeJOCL.Config( best.extractW, best.extractH, best.propagateSize, s, best.binN ) );
+		}
+		for( PMergeTreeJOCL.Config c : candidates ){
+			long t = time( device, c, field, repetitions, reference );
+			if( t < bestTime ){ best = c; bestTime = t; }
+		}
+
+		candidates.clear();
+		for( int b = 32; b <= 1024; b *= 2 ){
+			candidates.add( new PMergeTreeJOCL.Config( best.extractW, best.extractH, best.propagateSize, best.sortSize, b ) );
+		}
+		for( PMergeTreeJOCL.Config c : candidates ){
+			long t = time( device, c, field, repetitions, reference );
+			if( t < bestTime ){ best = c; bestTime = t; }
+		}
+
+		String key = key( device );
+		cache.put( key, best );
+		storeCached( key, best );
+		return best;
+	}
+
+	/**
+	 * Fastest of the timed runs, in nanoseconds, after the untimed run that
+	 * checks the tree; or Long.MAX_VALUE if the configuration fails or
+	 * builds a different tree. Only the backend's calculate() is timed, not
+	 * filling the field or building the tree on the host: from the first
+	 * start to the last end of its events where the device profiles, by
+	 * the wall clock around the call otherwise.
+	 */
+	private static long time( joclDevice device, PMergeTreeJOCL.Config config, ScalarField2D field, int repetitions, float [] reference ){
+		PMergeTreeJOCL backend = new PMergeTreeJOCL( device, config );
+		int w = field.getWidth(), h = field.getHeight();
+		try {
+			if( !Arrays.equals( signature( new PSplitTree( backend ), field ), reference ) ){
+				System.err.println( "WARNING: " + config + " does not match the reference tree, skipped" );
+				return Long.MAX_VALUE;
+			}
+			long ret = Long.MAX_VALUE;
+			for( int i = 0; i < repetitions; i++ ){
+				FloatBuffer data = backend.getFieldBuffer( w, h );
+				float [] range = PAugmentedMergeTree.fill( data, field, false );
+				Vector<EventTimer> events = new Vector<EventTimer>();
+				long start = System.nanoTime();
+				backend.calculate( data, w, h, range[0], range[1], events );
+				long elapsed = System.nanoTime()-start;
+				if( device.isProfiling() && !events.isEmpty() ){
+					EventTimer.CombinedEvents all = new EventTimer.CombinedEvents( "calculate" );
+					for( EventTimer e : events ) all.add( e );
+					elapsed = all.getEndTime()-all.getStartTime();
+				}
+				ret = Math.min( ret, elapsed );
+			}
+			return ret;
+		} catch( Exception e ){
+			System.err.println( "WARNING: " + config + " failed: " + e );
+			return Long.MAX_VALUE;
+		} finally {
+			backend.release();
+		}
+	}
+
+	// sorted persistence of every node
+	private static float [] signature( PSplitTree tree, ScalarField2D field ){
+		tree.calculate( field );
+		float [] ret = new float[tree.size()];
+		for( int i = 0; i < ret.length; i++ ){
+			ret[i] = tree.getPersistence( i );
+		}
+		Arrays.sort( ret );
+		return ret;
+	}
+
+	/**
+	 * Smooth peaks and valleys under uniform noise, so that both the
+	 * extraction and the propagation see realistic amounts of work.
+	 */
+	public static ScalarField2D benchmarkField( final int width, final int height ){
+		final Synthetic2D base = new Synthetic2D.GaussianMixing( width, height );
+		final float [] noise = new float[width*height];
+		Random rand = new Random( 1 );
+		for( int i = 0; i < noise.length; i++ ) noise[i] = rand.nextFloat();
+		return new ScalarField2D.Default() {
+			@Override public int getWidth() { return width; }
+			@Override public int getHeight() { return height; }
+			@Override public float getValue( int x, int y ) { return base.getValue( x, y ) + noise[y*width+x]; }
+		};
+	}
+
+	private static String key( joclDevice device ){
+		return device.getName().trim() + " / " + device.getDriverVersion().trim();
+	}
+
+	private static PMergeTreeJOCL.Config loadCached( String key ){
+		Properties props = readCacheFile();
+		if( props == null || props.getProperty( key ) == null ) return null;
+		try {
+			return PMergeTreeJOCL.Config.parse( props.getProperty( key ) );
+		} catch( IllegalArgumentException e ){
+			return null;
+		}
+	}
+
+	private static void storeCached( String key, PMergeTreeJOCL.Config config ){
+		String file = System.getProperty( CACHE_PROPERTY );
+		if( file == null ) return;
+		Properties props = readCacheFile();
+		if( props == null ) props = new Properties();
+		props.setProperty( key, config.toString() );
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream( file );
+			props.store( out, "PMergeTreeJOCL work-group configurations" );
+		} catch( IOException e ){
+			System.err.println( "WARNING: unable to write " + file + ": " + e.getMessage() );
+		} finally {
+			try { if( out != null ) out.close(); } catch( IOException e ){ }
+		}
+	}
+
+	private static Properties readCacheFile( ){
+		String file = System.getProperty( CACHE_PROPERTY );
+		if( file == null || !new File( file ).isFile() ) return null;
+		Properties ret = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream( file );
+			ret.load( in );
+			return ret;
+		} catch( IOException e ){
+			System.err.println( "WARNING: unable to read " + file + ": " + e.getMessage() );
+			return null;
+		} finally {
+			try { if( in != null ) in.close(); } catch( IOException e ){ }
+		}
+	}
+
+	/**
+	 * Tunes the best device of every platform and prints its configuration.
+	 * Usage: PMergeTreeAutotuner [size]
+	 */
+	public static void main( String[] args ){
+		int size = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 1024;
+		// profiling queues, so configurations are timed on the device
+		joclController ctrl = new joclController( true );
+		for( int i = 0; i < ctrl.getPlatformCount(); i++ ){
+			joclDevice device = ctrl.getPlatform( i ).selectBestDevice();
+			if( device == null ) continue;
+			PMergeTreeJOCL.Config cfg = tune( device, benchmarkField( size, size ), 3 );
+			System.out.println( key( device ) + ": " + cfg );
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+package usf.saav.topology.merge;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Vector;
+
+import usf.saav.common.EventTimer;
+import usf.saav.scalarfield.ScalarField3D;
+
+/**
+ * The stages of PAugmentedMergeTree that run in parallel over the field:
+ * steepest-ascent disjoint sets (kernel_djs), saddle extraction
+ * (kernel_cps_extract), bucket sorting (kernel_cps_bucket and
+ * kernel_cps_bucket_sort) and set propagation (kernel_cps_propagate). The
+ * merge tree itself is assembled from their output by PAugmentedMergeTree,
+ * so every backend produces the same tree.
+ */
+public interface PMergeTreeBackend {
+
+	public String getName( );
+
+	/**
+	 * A host buffer for the next field's width*height values. Writing the
+	 * field into it, rather than into a buffer of the caller's, lets a
+	 * backend skip copying it again.
+	 */
+	public FloatBuffer getFieldBuffer( int width, int height ) throws Exception;
+
+	/**
+	 * @param data   row-major field values, preferably in the buffer from
+	 *               getFieldBuffer(); maxima are the leaves, so a join tree
+	 *               passes the negated field
+	 * @param minV   smallest value in data
+	 * @param maxV   largest value in data
+	 * @param events receives a timer for each stage
+	 * @return little-endian critical point stream, as laid out on the
+	 *         device: the heap pointer (1 + 11 ints per critical point),
+	 *         then each critical point's location, value, set count and 8
+	 *         set ids, in decreasing value order; it may be reused by the
+	 *         next call
+	 */
+	public ByteBuffer calculate( FloatBuffer data, int width, int height, float minV, float maxV, Vector<EventTimer> events ) throws Exception;
+
+	/**
+	 * Both orientations of one field: element 0 is the stream calculate()
+	 * returns for data (maxima as leaves, a split tree), element 1 the one
+	 * for the negated data (minima as leaves, a join tree). Both may be
+	 * reused by the next call.
+	 */
+	public ByteBuffer [] calculatePair( FloatBuffer data, int width, int height, float minV, float maxV, Vector<EventTimer> events ) throws Exception;
+
+	/**
+	 * The stream for a volume, x fastest, then y, then z, held in
+	 * getFieldBuffer( width, height*depth ). Neighbors are the 6 or 26 of
+	 * the connectivity, and a saddle whose upper neighbors reach more than
+	 * 8 sets is written as several critical points at the same location,
+	 * each but the first repeating the first's largest set.
+	 */
+	public ByteBuffer calculate( FloatBuffer data, int width, int height, int depth, ScalarField3D.Connectivity connectivity, float minV, float maxV, Vector<EventTimer> events ) throws Exception;
+
+	public void release( );
+
+}
@@ -0,0 +1,225 @@
+package usf.saav.topology.merge;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import usf.saav.common.jocl.joclDevice;
+import usf.saav.scalarfield.ScalarField2D;
+
+/**
+ * Computes merge trees for a sequence of fields, e.g. the frames of a
+ * simulation, with several frames in flight. Each slot is a tree with its
+ * own backend running on its own thread; for OpenCL the slots also have
+ * their own command queues, so while one frame's kernels run the next
+ * frame is uploaded and the previous frame's critical points are turned
+ * into a tree. With three slots the frame rate is bound by the kernels
+ * rather than by transfers and host processing.
+ *
+ * Trees are handed to the consumer in frame order, one at a time, and are
+ * only valid during the call: the slot's tree is reused for a later frame.
+ */
+public class PMergeTreeBatch {
+
+	public interface Consumer {
+		void accept( int frame, PAugmentedMergeTree tree ) throws Exception;
+	}
+
+	private final List<PAugmentedMergeTree> slots;
+	private final List<joclDevice> queues;
+
+	// state of the current run
+	private Iterator<? extends ScalarField2D> frames;
+	private int nextFrame;
+	private int nextConsumed;
+	private final Object turn = new Object();
+	private Exception failure;
+
+	/**
+	 * @param _slots trees to compute with, one frame each at a time; they
+	 *        must not share a backend
+	 */
+	public PMergeTreeBatch( List<? extends PAugmentedMergeTree> _slots ){
+		this( _slots, new ArrayList<joclDevice>() );
+	}
+
+	private PMergeTreeBatch( List<? extends PAugmentedMergeTree> _slots, List<joclDevice> _queues ){
+		slots  = new ArrayList<PAugmentedMergeTree>( _slots );
+		queues = _queues;
+	}
+
+	/**
+	 * Join (or split) trees on one OpenCL device, each slot with its own
+	 * command queue on the device's context.
+	 */
+	public static PMergeTreeBatch create( joclDevice device, PMergeTreeJOCL.Config config, boolean joinTrees, int slotN ){
+		List<PAugmentedMergeTree> trees = new ArrayList<PAugmentedMergeTree>();
+		List<joclDevice> queues = new ArrayList<joclDevice>();
+		for( int i = 0; i < slotN; i++ ){
+			joclDevice queue = device.createQueue();
+			queues.add( queue );
+			PMergeTreeJOCL backend = new PMergeTreeJOCL( queue, config );
+			trees.add( joinTrees ? new PJoinTree( backend ) : new PSplitTree( backend ) );
+		}
+		return new PMergeTreeBatch( trees, queues );
+	}
+
+	/**
+	 * Join (or split) trees computed on the fork-join pool.
+	 */
+	public static PMergeTreeBatch create( boolean joinTrees, int slotN ){
+		List<PAugmentedMergeTree> trees = new ArrayList<PAugmentedMergeTree>();
+		for( int i = 0; i < slotN; i++ ){
+			PMergeTreeForkJoin backend = new PMergeTreeForkJoin();
+			trees.add( joinTrees ? new PJoinTree( backend ) : new PSplitTree( backend ) );
+		}
+		return new PMergeTreeBatch( trees );
+	}
+
+	public int getSlotCount( ){ return slots.size(); }
+
+	/**
+	 * Computes a tree for every field, calling the consumer for each in
+	 * order. Returns once all frames are consumed; the first exception
+	 * thrown by the consumer stops the run and is rethrown.
+	 *
+	 * @return number of frames consumed
+	 */
+	public int run( Iterator<? extends ScalarField2D> _frames, final Consumer consumer ) throws Exception {
+		synchronized( this ){
+			frames       = _frames;
+			nextFrame    = 0;
+			failure      = null;
+		}
+		synchronized( turn ){
+			nextConsumed = 0;
+		}
+
+		Thread [] workers = new Thread[slots.size()];
+		for( int t = 0; t < workers.length; t++ ){
+			final PAugmentedMergeTree tree = slots.get( t );
+			workers[t] = new Thread( new Runnable(){
+				@Override public void run(){
+					work( tree, consumer );
+				}
+			}, "PMergeTreeBatch-" + t );
+			workers[t].setDaemon( true );
+			workers[t].start();
+		}
+		for( Thread w : workers ){
+			w.join();
+		}
+
+		synchronized( this ){
+			frames = null;
+			if( failure != null ) throw failure;
+		}
+		synchronized( turn ){
+			return nextConsumed;
+		}
+	}
+
+	private void work( PAugmentedMergeTree tree, Consumer consumer ){
+		while( true ){
+			ScalarField2D field;
+			int frame;
+			synchronized( this ){
+				if( failure != null || !frames.hasNext() ) return;
+				field = frames.next();
+				frame = nextFrame++;
+			}
+
+			tree.calculate( field );
+
+			// frames are consumed in order, so wait for this frame's turn
+			synchronized( turn ){
+				while( nextConsumed != frame && !failed() ){
+					try {
+						turn.wait();
+					} catch( InterruptedException e ){
+						fail( e );
+					}
+				}
+				if( !failed() ){
+					try {
+						consumer.accept( frame, tree );
+					} catch( Exception e ){
+						fail( e );
+					}
+				}
+				nextConsumed++;
+				turn.notifyAll();
+			}
+		}
+	}
+
+	private synchronized boolean failed( ){ return failure != null; }
+
+	private synchronized void fail( Exception e ){
+		if( failure == null ) failure = e;
+	}
+
+	/**
+	 * Releases the slots' backends and any command queues created for them.
+	 */
+	public void release( ){
+		for( PAugmentedMergeTree tree : slots ){
+			tree.release();
+		}
+		for( joclDevice q : queues ){
+			q.release();
+		}
+		queues.clear();
+	}
+
+
+	/**
+	 * Checks that batched split trees of random frames match trees computed
+	 * one at a time.
+	 */
+	public static void main( String[] args ) throws Exception {
+		final int w = 96, h = 64, frameN = 12;
+		Random rand = new Random( 2 );
+		List<ScalarField2D> fields = new ArrayList<ScalarField2D>();
+		for( int f = 0; f < frameN; f++ ){
+			final float [] vals = new float[w*h];
+			for( int i = 0; i < vals.length; i++ ) vals[i] = rand.nextFloat();
+			fields.add( new ScalarField2D.Default() {
+				@Override public int getWidth() { return w; }
+				@Override public int getHeight() { return h; }
+				@Override public float getValue( int x, int y ) { return vals[y*w+x]; }
+			});
+		}
+
+		final List<List<Float>> expected = new ArrayList<List<Float>>();
+		PSplitTree single = new PSplitTree();
+		for( ScalarField2D sf : fields ){
+			single.calculate( sf );
+			expected.add( persistence( single ) );
+		}
+
+		final boolean [] ok = { true };
+		final int [] order = { 0 };
+		PMergeTreeBatch batch = PMergeTreeBatch.create( false, 3 );
+		int n = batch.run( fields.iterator(), new Consumer(){
+			@Override public void accept( int frame, PAugmentedMergeTree tree ){
+				ok[0] &= ( frame == order[0]++ );
+				ok[0] &= persistence( tree ).equals( expected.get( frame ) );
+			}
+		});
+		batch.release();
+		System.out.println( ( ok[0] && n == frameN ) ? "ok" : "FAILED" );
+	}
+
+	private static List<Float> persistence( AbstractMergeTree tree ){
+		List<Float> ret = new ArrayList<Float>();
+		for( int i = 0; i < tree.size(); i++ ){
+			ret.add( tree.getPersistence( i ) );
+		}
+		Collections.sort( ret );
+		return ret;
+	}
+
+}
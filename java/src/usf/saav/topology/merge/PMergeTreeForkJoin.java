@@ -0,0 +1,812 @@
+package usf.saav.topology.merge;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import usf.saav.common.EventTimer;
+import usf.saav.common.Parallel;
+import usf.saav.common.algorithm.IntDisjointSet;
+import usf.saav.scalarfield.ScalarField2D;
+import usf.saav.scalarfield.ScalarField3D;
+
+/**
+ * Runs the PAugmentedMergeTree stages on the shared fork-join pool, so merge
+ * trees can be computed without an OpenCL device. Each stage follows its
+ * kernel, one task per row, tile or bucket in place of a work group; where a
+ * kernel relies on racing work items (the in-tile set propagation, the
+ * in-place propagation phases) the result is computed in a fixed order, which
+ * is the state the kernel converges to. Sorts are stable, so ties are broken
+ * by field position rather than by scheduling.
+ */
+public class PMergeTreeForkJoin implements PMergeTreeBackend {
+
+	/** Work items per side of an extraction tile, as for a 256-wide work group. */
+	private static final int TILE = 16;
+
+	/** Length of a critical point record, in ints. */
+	private static final int CP_SIZE = 11;
+
+	private static final int SET_N = 8;
+
+	// ring order of kernel_cps_extract
+	private static final int [] neighborU = {-1, -1, -1,  0,  1,  1,  1,  0 };
+	private static final int [] neighborV = {-1,  0,  1,  1,  1,  0, -1, -1 };
+
+	/** Field values, reused by consecutive fields of the same size. */
+	private float [] field = null;
+
+	/** Number of value buckets critical points are sorted into. */
+	private final int binN;
+
+	public PMergeTreeForkJoin( ){
+		this( 128 );
+	}
+
+	public PMergeTreeForkJoin( int _binN ){
+		binN = _binN;
+	}
+
+	@Override public String getName( ){ return "Fork-join (" + Parallel.getParallelism() + " threads)"; }
+
+	@Override public void release( ){ field = null; }
+
+	@Override
+	public FloatBuffer getFieldBuffer( int width, int height ){
+		if( field == null || field.length != width*height ) field = new float[width*height];
+		return FloatBuffer.wrap( field );
+	}
+
+	@Override
+	public ByteBuffer calculate( FloatBuffer buffer, int width, int height, float minV, float maxV, Vector<EventTimer> events ) throws Exception {
+		return calculate( toArray( buffer, width*height ), width, height, minV, maxV, events );
+	}
+
+	/**
+	 * The two orientations run as two tasks of the shared pool.
+	 */
+	@Override
+	public ByteBuffer [] calculatePair( FloatBuffer buffer, final int width, final int height, final float minV, final float maxV, final Vector<EventTimer> events ) throws Exception {
+		final float [] data = toArray( buffer, width*height );
+		final float [] neg  = new float[data.length];
+		for( int i = 0; i < data.length; i++ ) neg[i] = -data[i];
+
+		final Vector<EventTimer> negEvents = new Vector<EventTimer>();
+		List<Callable<ByteBuffer>> tasks = new ArrayList<Callable<ByteBuffer>>();
+		tasks.add( new Callable<ByteBuffer>() {
+			@Override public ByteBuffer call() throws Exception { return calculate( data, width, height, minV, maxV, events ); }
+		});
+		tasks.add( new Callable<ByteBuffer>() {
+			@Override public ByteBuffer call() throws Exception { return calculate( neg, width, height, -maxV, -minV, negEvents ); }
+		});
+		List<ByteBuffer> ret = Parallel.invokeAll( tasks );
+		events.addAll( negEvents );
+		return new ByteBuffer[]{ ret.get(0), ret.get(1) };
+	}
+
+	private static float [] toArray( FloatBuffer buffer, int size ){
+		if( buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == size ){
+			return buffer.array();
+		}
+		float [] ret = new float[size];
+		buffer.rewind();
+		buffer.get( ret );
+		return ret;
+	}
+
+	private ByteBuffer calculate( float [] data, int width, int height, float minV, float maxV, Vector<EventTimer> events ) throws Exception {
+
+		EventTimer.Default t = new EventTimer.Default( "kernel_djs" );
+		t.start();
+		int [] djs = djs( data, width, height );
+		t.stop();
+		events.add( t );
+
+		t = new EventTimer.Default( "kernel_cps_extract" );
+		t.start();
+		CriticalPoints cps = extract( data, djs, width, height );
+		t.stop();
+		events.add( t );
+
+		return sortAndPropagate( cps, width*height, minV, maxV, events );
+	}
+
+	@Override
+	public ByteBuffer calculate( FloatBuffer buffer, int width, int height, int depth, ScalarField3D.Connectivity connectivity, float minV, float maxV, Vector<EventTimer> events ) throws Exception {
+		float [] data = toArray( buffer, width*height*depth );
+
+		EventTimer.Default t = new EventTimer.Default( "kernel_djs3d" );
+		t.start();
+		int [] djs = djs3D( data, width, height, depth, connectivity );
+		t.stop();
+		events.add( t );
+
+		t = new EventTimer.Default( "kernel_cps_extract3d" );
+		t.start();
+		CriticalPoints cps = extract3D( data, djs, width, height, depth, connectivity );
+		t.stop();
+		events.add( t );
+
+		return sortAndPropagate( cps, data.length, minV, maxV, events );
+	}
+
+	// the stages that only see the critical points, for any dimension
+	private ByteBuffer sortAndPropagate( CriticalPoints cps, int fieldSize, float minV, float maxV, Vector<EventTimer> events ) throws Exception {
+
+		EventTimer.Default t = new EventTimer.Default( "kernel_cps_bucket" );
+		t.start();
+		int [] bucketBase = new int[binN+1];
+		int [] order = bucket( cps, minV, maxV, binN, bucketBase );
+		t.stop();
+		events.add( t );
+
+		t = new EventTimer.Default( "kernel_cps_bucket_sort" );
+		t.start();
+		bucketSort( cps, order, bucketBase, binN );
+		cps = cps.permute( order );
+		t.stop();
+		events.add( t );
+
+		EventTimer.Default prop = new EventTimer.Default( "kernel_cps_propagate" );
+		prop.start();
+		propagate( cps, fieldSize );
+		prop.stop();
+		events.add( prop );
+
+		return cps.toStream();
+	}
+
+
+	/**
+	 * kernel_djs: every cell points at the largest value of its 3x3
+	 * neighborhood (the first, in row-major order, on ties), then pointers
+	 * are jumped until every cell points at its root maximum.
+	 */
+	private static int [] djs( final float [] data, final int w, final int h ) throws Exception {
+		final int [] parent = new int[w*h];
+		Parallel.forRange( h, 8, new Parallel.RangeTask() {
+			@Override public void run( int start, int end ) {
+				for( int y = start; y < end; y++ ) {
+					for( int x = 0; x < w; x++ ) {
+						float largestVal = -Float.MAX_VALUE;
+						int   largestIdx = -1;
+						for( int v = y-1; v <= y+1; v++ ) {
+							for( int u = x-1; u <= x+1; u++ ) {
+								if( u < 0 || u >= w || v < 0 || v >= h ) continue;
+								if( data[v*w+u] > largestVal ) {
+									largestVal = data[v*w+u];
+									largestIdx = v*w+u;
+								}
+							}
+						}
+						parent[y*w+x] = largestIdx;
+					}
+				}
+			}
+		});
+
+		return jump( parent );
+	}
+
+	/**
+	 * kernel_djs3d: as kernel_djs, over the vertex and its 6 or 26
+	 * neighbors, the first in memory order on ties.
+	 */
+	private static int [] djs3D( final float [] data, final int w, final int h, final int d, ScalarField3D.Connectivity connectivity ) throws Exception {
+		final int [][] offsets = connectivity.getOffsets();
+		final int [] parent = new int[w*h*d];
+		Parallel.forRange( h*d, 8, new Parallel.RangeTask() {
+			@Override public void run( int start, int end ) {
+				for( int row = start; row < end; row++ ) {
+					int y = row%h, z = row/h;
+					for( int x = 0; x < w; x++ ) {
+						float largestVal = -Float.MAX_VALUE;
+						int   largestIdx = -1;
+						for( int [] o : offsets ) {
+							int u = x+o[0], v = y+o[1], s = z+o[2];
+							if( u < 0 || u >= w || v < 0 || v >= h || s < 0 || s >= d ) continue;
+							int idx = (s*h+v)*w+u;
+							if( data[idx] > largestVal ) {
+								largestVal = data[idx];
+								largestIdx = idx;
+							}
+						}
+						parent[row*w+x] = largestIdx;
+					}
+				}
+			}
+		});
+		return jump( parent );
+	}
+
+	// pointer jumping until every cell points at its root, reading one
+	// array and writing the other
+	private static int [] jump( int [] parent ) throws Exception {
+		int [] cur = parent, next = new int[parent.length];
+		final AtomicBoolean modified = new AtomicBoolean( true );
+		while( modified.get() ) {
+			modified.set( false );
+			final int [] src = cur, dst = next;
+			Parallel.forRange( parent.length, 4096, new Parallel.RangeTask() {
+				@Override public void run( int start, int end ) {
+					boolean mod = false;
+					for( int i = start; i < end; i++ ) {
+						dst[i] = src[src[i]];
+						mod |= dst[i] != src[i];
+					}
+					if( mod ) modified.set( true );
+				}
+			});
+			cur = dst;
+			next = src;
+		}
+		return cur;
+	}
+
+
+	/**
+	 * Critical points as parallel arrays: location, value and set count, and
+	 * SET_N set ids each, largest first and -1 padded.
+	 */
+	static class CriticalPoints {
+		final int   [] location;
+		final float [] value;
+		final int   [] ref;
+		final int   [] set;
+
+		CriticalPoints( int n ) {
+			location = new int[n];
+			value    = new float[n];
+			ref      = new int[n];
+			set      = new int[n*SET_N];
+			Arrays.fill( set, -1 );
+		}
+
+		int size( ) { return location.length; }
+
+		CriticalPoints permute( int [] order ) {
+			CriticalPoints ret = new CriticalPoints( order.length );
+			for( int i = 0; i < order.length; i++ ) {
+				int j = order[i];
+				ret.location[i] = location[j];
+				ret.value[i]    = value[j];
+				ret.ref[i]      = ref[j];
+				System.arraycopy( set, j*SET_N, ret.set, i*SET_N, SET_N );
+			}
+			return ret;
+		}
+
+		ByteBuffer toStream( ) {
+			int n = size();
+			ByteBuffer ret = ByteBuffer.allocate( 4*(1+n*CP_SIZE) );
+			ret.order( ByteOrder.LITTLE_ENDIAN );
+			ret.putInt( 1+n*CP_SIZE );
+			for( int i = 0; i < n; i++ ) {
+				ret.putInt( location[i] );
+				ret.putFloat( value[i] );
+				ret.putInt( ref[i] );
+				for( int j = 0; j < SET_N; j++ ) {
+					ret.putInt( set[i*SET_N+j] );
+				}
+			}
+			ret.flip();
+			return ret;
+		}
+	}
+
+
+	/**
+	 * kernel_cps_extract: finds the saddles of each tile and the root sets
+	 * they touch, then, in value order within the tile, replaces sets that a
+	 * higher saddle of the tile already merged. Saddles left touching two or
+	 * more sets are kept, tile by tile.
+	 */
+	private static CriticalPoints extract( final float [] data, final int [] djs, final int w, final int h ) throws Exception {
+		final int tilesX = (w+TILE-1)/TILE;
+		final int tilesY = (h+TILE-1)/TILE;
+		final int [][] tileSets = new int[tilesX*tilesY][];
+		final int [][] tileLocs = new int[tilesX*tilesY][];
+
+		Parallel.forRange( tilesX*tilesY, 1, new Parallel.RangeTask() {
+			@Override public void run( int start, int end ) {
+				int [] iring = new int[8];
+				int [] sid   = new int[8];
+				for( int t = start; t < end; t++ ) {
+					int x0 = (t%tilesX)*TILE, y0 = (t/tilesX)*TILE;
+					int x1 = Math.min( x0+TILE, w ), y1 = Math.min( y0+TILE, h );
+
+					int [] locs = new int[(x1-x0)*(y1-y0)];
+					int [] sets = new int[locs.length*6];
+					int [] setN = new int[locs.length];
+					int n = 0;
+					for( int y = y0; y < y1; y++ ) {
+						for( int x = x0; x < x1; x++ ) {
+							if( !extractSaddle( data, djs, x, y, w, h, iring, sid ) ) continue;
+							Arrays.fill( sets, n*6, n*6+6, -1 );
+							for( int i = 0; i < 8; i++ ) {
+								if( sid[i] >= 0 ) setN[n] += setInsert( sets, n*6, 6, sid[i] );
+							}
+							if( setN[n] >= 2 ) locs[n++] = y*w+x;
+							else setN[n] = 0;
+						}
+					}
+
+					// value order within the tile, highest first
+					long [] keys = new long[n];
+					for( int i = 0; i < n; i++ ) {
+						keys[i] = descendingKey( data[locs[i]], i );
+					}
+					Arrays.sort( keys );
+
+					int [] outLocs = new int[n];
+					int [] outSets = new int[n*SET_N];
+					int [] curr = new int[6];
+					int keep = 0;
+					for( int k = 0; k < n; k++ ) {
+						int i = (int)keys[k];
+						System.arraycopy( sets, i*6, curr, 0, 6 );
+						int currN = setN[i];
+
+						// sets merged by higher saddles of this tile
+						boolean modified = false;
+						for( int p = 0; p < keep; p++ ) {
+							for( int q = 1; q < SET_N && outSets[p*SET_N+q] >= 0; q++ ) {
+								for( int j = 0; j < currN; j++ ) {
+									if( curr[j] == outSets[p*SET_N+q] ) {
+										curr[j] = outSets[p*SET_N];
+										modified = true;
+									}
+								}
+							}
+						}
+						if( modified ) currN = setFix( curr, 0, currN );
+						if( currN < 2 ) continue;
+
+						outLocs[keep] = locs[i];
+						Arrays.fill( outSets, keep*SET_N, keep*SET_N+SET_N, -1 );
+						System.arraycopy( curr, 0, outSets, keep*SET_N, currN );
+						keep++;
+					}
+					tileLocs[t] = Arrays.copyOf( outLocs, keep );
+					tileSets[t] = Arrays.copyOf( outSets, keep*SET_N );
+				}
+			}
+		});
+
+		int cpsN = 0;
+		for( int [] l : tileLocs ) cpsN += l.length;
+		CriticalPoints ret = new CriticalPoints( cpsN );
+		int c = 0;
+		for( int t = 0; t < tileLocs.length; t++ ) {
+			for( int i = 0; i < tileLocs[t].length; i++, c++ ) {
+				ret.location[c] = tileLocs[t][i];
+				ret.value[c]    = data[tileLocs[t][i]];
+				System.arraycopy( tileSets[t], i*SET_N, ret.set, c*SET_N, SET_N );
+				int n = 0;
+				while( n < SET_N && ret.set[c*SET_N+n] >= 0 ) n++;
+				ret.ref[c] = n;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * kernel_cps_extract3d: every vertex whose upper neighbors reach two or
+	 * more sets, with those sets. There is no saddle test on the link and no
+	 * merging within tiles; propagation drops the candidates whose sets a
+	 * higher saddle already merged. More than SET_N sets are written as a
+	 * chain of critical points at the vertex, each after the first
+	 * repeating the largest set.
+	 */
+	private static CriticalPoints extract3D( final float [] data, final int [] djs, final int w, final int h, final int d, final ScalarField3D.Connectivity connectivity ) throws Exception {
+		final int [][] offsets = connectivity.getOffsets();
+		final int center = connectivity.getCenter();
+		final int chunkN = Math.max( 1, Math.min( Parallel.getParallelism()*4, h*d ) );
+		final int [][] chunkLocs = new int[chunkN][];
+		final int [][] chunkSets = new int[chunkN][];
+
+		Parallel.forRange( chunkN, 1, new Parallel.RangeTask() {
+			@Override public void run( int start, int end ) {
+				int [] sets = new int[offsets.length];
+				for( int c = start; c < end; c++ ) {
+					int [] locs = new int[64];
+					int [] out  = new int[64*SET_N];
+					int n = 0;
+					for( int row = (int)((long)h*d*c/chunkN); row < (int)((long)h*d*(c+1)/chunkN); row++ ) {
+						int y = row%h, z = row/h;
+						for( int x = 0; x < w; x++ ) {
+							int   idx   = row*w+x;
+							float myVal = data[idx];
+							Arrays.fill( sets, -1 );
+							int setN = 0;
+							for( int i = 0; i < offsets.length; i++ ) {
+								int u = x+offsets[i][0], v = y+offsets[i][1], s = z+offsets[i][2];
+								if( i == center || u < 0 || u >= w || v < 0 || v >= h || s < 0 || s >= d ) continue;
+								int nbr = (s*h+v)*w+u;
+								if( data[nbr] > myVal || ( data[nbr] == myVal && nbr < idx ) ) {
+									setN += setInsert( sets, 0, sets.length, djs[nbr] );
+								}
+							}
+							if( setN < 2 ) continue;
+
+							for( int next = 0; next < setN; ) {
+								if( n == locs.length ) {
+									locs = Arrays.copyOf( locs, n*2 );
+									out  = Arrays.copyOf( out,  n*2*SET_N );
+								}
+								Arrays.fill( out, n*SET_N, (n+1)*SET_N, -1 );
+								int k = 0;
+								if( next > 0 ) out[n*SET_N+k++] = sets[0];
+								while( k < SET_N && next < setN ) out[n*SET_N+k++] = sets[next++];
+								locs[n++] = idx;
+							}
+						}
+					}
+					chunkLocs[c] = Arrays.copyOf( locs, n );
+					chunkSets[c] = Arrays.copyOf( out, n*SET_N );
+				}
+			}
+		});
+
+		int cpsN = 0;
+		for( int [] l : chunkLocs ) cpsN += l.length;
+		CriticalPoints ret = new CriticalPoints( cpsN );
+		int c = 0;
+		for( int t = 0; t < chunkN; t++ ) {
+			for( int i = 0; i < chunkLocs[t].length; i++, c++ ) {
+				ret.location[c] = chunkLocs[t][i];
+				ret.value[c]    = data[chunkLocs[t][i]];
+				System.arraycopy( chunkSets[t], i*SET_N, ret.set, c*SET_N, SET_N );
+				int n = 0;
+				while( n < SET_N && ret.set[c*SET_N+n] >= 0 ) n++;
+				ret.ref[c] = n;
+			}
+		}
+		return ret;
+	}
+
+	// cp_extract_l(): saddle test on the 8-ring, and the roots of upper neighbors
+	private static boolean extractSaddle( float [] data, int [] djs, int u, int v, int w, int h, int [] iring, int [] sid ) {
+		float myVal = data[v*w+u];
+		for( int i = 0; i < 8; i++ ) {
+			int cu = u+neighborU[i];
+			int cv = v+neighborV[i];
+			iring[i] = 0;
+			sid[i]   = -1;
+			if( cu >= 0 && cu < w && cv >= 0 && cv < h ) {
+				float curVal = data[cv*w+cu];
+				iring[i] = (curVal < myVal) ? -1 : 1;
+				if( curVal >= myVal ) sid[i] = djs[cv*w+cu];
+			}
+		}
+
+		boolean boundary = false;
+		int transition = 0;
+		for( int i = 0; i < 8; i++ ) {
+			if( iring[i] == 0 || iring[(i+1)%8] == 0 ) boundary = true;
+			else if( iring[i] != iring[(i+1)%8] ) transition++;
+		}
+		return boundary ? transition >= 2 : transition >= 4;
+	}
+
+	// set_insert_l(): keeps the ids in decreasing order; returns 1 if inserted
+	private static int setInsert( int [] set, int off, int len, int val ) {
+		for( int i = 0; i < len; i++ ) {
+			if( set[off+i] == val ) return 0;
+			if( set[off+i] == -1 ) {
+				set[off+i] = val;
+				return 1;
+			}
+			if( set[off+i] < val ) {
+				int tmp = set[off+i];
+				set[off+i] = val;
+				val = tmp;
+			}
+		}
+		return 0;
+	}
+
+	// set_fix_l(): sorts the first setN ids decreasing, dropping repeats; returns the new count
+	private static int setFix( int [] set, int off, int setN ) {
+		int ret = 0;
+		for( int i = 0; i < setN; i++ ) {
+			for( int j = i+1; j < setN; j++ ) {
+				if( set[off+i] < set[off+j] ) {
+					int tmp = set[off+i];
+					set[off+i] = set[off+j];
+					set[off+j] = tmp;
+				}
+				else if( set[off+i] == set[off+j] ) {
+					set[off+j] = -1;
+				}
+			}
+			if( set[off+i] >= 0 ) ret++;
+		}
+		// the kernels leave dropped ids at the end as -1
+		int k = 0;
+		for( int i = 0; i < setN; i++ ) {
+			if( set[off+i] >= 0 ) set[off+k++] = set[off+i];
+		}
+		for( int i = k; i < setN; i++ ) set[off+i] = -1;
+		return ret;
+	}
+
+	// float order reversed, ties by position
+	static long descendingKey( float val, int position ) {
+		if( val == 0.0f ) val = 0.0f;
+		int bits = Float.floatToIntBits( val );
+		bits ^= (bits >> 31) & 0x7fffffff;
+		return ((long)~bits << 32) | (position & 0xffffffffL);
+	}
+
+
+	/**
+	 * kernel_cps_bucket: histogram buckets by value, highest values in
+	 * bucket 0, counted per chunk so that the scatter keeps extraction order.
+	 * Returns the scattered order and fills bucketBase with bucket offsets.
+	 */
+	private static int [] bucket( final CriticalPoints cps, final float minV, final float maxV, final int binN, int [] bucketBase ) throws Exception {
+		final int n = cps.size();
+		final int [] bucket = new int[n];
+		final int chunkN = Math.max( 1, Math.min( Parallel.getParallelism()*4, n/4096 ) );
+		final int [][] counts = new int[chunkN][binN];
+
+		Parallel.forRange( chunkN, 1, new Parallel.RangeTask() {
+			@Override public void run( int start, int end ) {
+				for( int c = start; c < end; c++ ) {
+					for( int i = (int)((long)n*c/chunkN); i < (int)((long)n*(c+1)/chunkN); i++ ) {
+						float fpos = 1 - ( cps.value[i]-minV ) / ( maxV-minV );
+						int   ipos = (int)( binN * fpos );
+						bucket[i] = Math.max( 0, Math.min( ipos, binN-1 ) );
+						counts[c][bucket[i]]++;
+					}
+				}
+			}
+		});
+
+		// each chunk scatters from its own offset in every bucket
+		for( int b = 0; b < binN; b++ ) {
+			int offset = bucketBase[b];
+			for( int c = 0; c < chunkN; c++ ) {
+				int cnt = counts[c][b];
+				counts[c][b] = offset;
+				offset += cnt;
+			}
+			bucketBase[b+1] = offset;
+		}
+
+		final int [] order = new int[n];
+		Parallel.forRange( chunkN, 1, new Parallel.RangeTask() {
+			@Override public void run( int start, int end ) {
+				for( int c = start; c < end; c++ ) {
+					for( int i = (int)((long)n*c/chunkN); i < (int)((long)n*(c+1)/chunkN); i++ ) {
+						order[ counts[c][bucket[i]]++ ] = i;
+					}
+				}
+			}
+		});
+		return order;
+	}
+
+	/**
+	 * kernel_cps_bucket_sort: sorts each bucket by decreasing value, one
+	 * task per bucket.
+	 */
+	private static void bucketSort( final CriticalPoints cps, final int [] order, final int [] bucketBase, int binN ) throws Exception {
+		Parallel.forRange( binN, 1, new Parallel.RangeTask() {
+			@Override public void run( int start, int end ) {
+				for( int b = start; b < end; b++ ) {
+					int base = bucketBase[b], size = bucketBase[b+1]-base;
+					if( size < 2 ) continue;
+					long [] keys = new long[size];
+					for( int i = 0; i < size; i++ ) {
+						keys[i] = descendingKey( cps.value[order[base+i]], i );
+					}
+					Arrays.sort( keys );
+					int [] sorted = new int[size];
+					for( int i = 0; i < size; i++ ) {
+						sorted[i] = order[ base + (int)keys[i] ];
+					}
+					System.arraycopy( sorted, 0, order, base, size );
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * kernel_cps_propagate: phase 1 fixes every set list and records, for
+	 * each set, the first saddle that merges it into another; each later
+	 * phase relabels merged sets with the set they were merged into, until
+	 * a phase changes nothing. Phases run over the saddles from the lowest
+	 * one changed in the previous phase, as the kernel does, and without the
+	 * kernel's 40-phase cap.
+	 */
+	private static void propagate( final CriticalPoints cps, int fieldSize ) throws Exception {
+		final int n = cps.size();
+		final AtomicIntegerArray locks = new AtomicIntegerArray( fieldSize );
+		for( int i = 0; i < fieldSize; i++ ) locks.set( i, Integer.MAX_VALUE );
+
+		Parallel.forRange( n, 1024, new Parallel.RangeTask() {
+			@Override public void run( int start, int end ) {
+				for( int k = start; k < end; k++ ) {
+					cps.ref[k] = setFix( cps.set, k*SET_N, cps.ref[k] );
+					for( int i = 1; i < cps.ref[k]; i++ ) {
+						atomicMin( locks, cps.set[k*SET_N+i], k );
+					}
+				}
+			}
+		});
+
+		// the first set of every saddle, as of the previous phase
+		final int [] first = new int[n];
+		final AtomicInteger minModified = new AtomicInteger( 0 );
+		while( minModified.get() < n ) {
+			for( int k = 0; k < n; k++ ) first[k] = cps.set[k*SET_N];
+			final int offset = minModified.getAndSet( Integer.MAX_VALUE );
+
+			Parallel.forRange( n-offset, 1024, new Parallel.RangeTask() {
+				@Override public void run( int start, int end ) {
+					int lowest = Integer.MAX_VALUE;
+					for( int k = offset+start; k < offset+end; k++ ) {
+						if( relabel( cps, k, locks, first ) && k < lowest ) lowest = k;
+					}
+					atomicMin( minModified, lowest );
+				}
+			});
+		}
+	}
+
+	// kernel_cps_propagate_merges_phase_2() for saddle k
+	private static boolean relabel( CriticalPoints cps, int k, AtomicIntegerArray locks, int [] first ) {
+		boolean modified = false;
+		int off = k*SET_N;
+		for( int i = 0; i < cps.ref[k]; i++ ) {
+			int owner    = k;
+			int newOwner = locks.get( cps.set[off+i] );
+			while( newOwner < owner ) {
+				owner = newOwner;
+				int oldsid = cps.set[off+i];
+				int newsid = first[newOwner];
+				cps.set[off+i] = newsid;
+				modified = modified || oldsid != newsid;
+				newOwner = locks.get( newsid );
+			}
+		}
+		if( !modified ) return false;
+
+		cps.ref[k] = setFix( cps.set, off, cps.ref[k] );
+		for( int i = 1; i < cps.ref[k]; i++ ) {
+			atomicMin( locks, cps.set[off+i], k );
+		}
+		return true;
+	}
+
+	private static void atomicMin( AtomicInteger a, int val ) {
+		int cur = a.get();
+		while( val < cur && !a.compareAndSet( cur, val ) ) {
+			cur = a.get();
+		}
+	}
+
+	private static void atomicMin( AtomicIntegerArray a, int i, int val ) {
+		int cur = a.get( i );
+		while( val < cur && !a.compareAndSet( i, cur, val ) ) {
+			cur = a.get( i );
+		}
+	}
+
+	/**
+	 * Checks the split and join trees of random fields against the
+	 * persistence pairs of the 8-connected superlevel (sublevel) sets,
+	 * found by a sequential union-find sweep.
+	 */
+	public static void main( String[] args ) throws Exception {
+		Random rand = new Random( 1 );
+		int [][] sizes = { {16,16}, {64,48}, {128,128}, {256,160}, {50,40}, {33,29} };
+		boolean ok = true;
+		for( int [] sz : sizes ) {
+			final int w = sz[0], h = sz[1];
+			final float [] vals = new float[w*h];
+			for( int i = 0; i < vals.length; i++ ) vals[i] = 1.0f + rand.nextFloat();
+			ScalarField2D sf = new ScalarField2D.Default() {
+				@Override public int getWidth() { return w; }
+				@Override public int getHeight() { return h; }
+				@Override public float getValue( int x, int y ) { return vals[y*w+x]; }
+			};
+
+			PSplitTree st = new PSplitTree();
+			st.calculate( sf );
+			PJoinTree  jt = new PJoinTree();
+			jt.calculate( sf );
+
+			boolean split = treePairs( st ).equals( sweepPairs( vals, w, h, 1, SQUARE, false ) );
+			boolean join  = treePairs( jt ).equals( sweepPairs( vals, w, h, 1, SQUARE, true ) );
+			System.out.println( w + "x" + h + " split tree: " + (split ? "ok" : "MISMATCH") + ", join tree: " + (join ? "ok" : "MISMATCH") );
+			ok &= split && join;
+		}
+
+		int [][] volumes = { {16,12,10}, {24,24,24} };
+		for( int [] sz : volumes ) {
+			int w = sz[0], h = sz[1], d = sz[2];
+			float [] vals = new float[w*h*d];
+			for( int i = 0; i < vals.length; i++ ) vals[i] = 1.0f + rand.nextFloat();
+			ScalarField3D vol = new ScalarField3D.ArrayField( w, h, d, vals );
+
+			for( ScalarField3D.Connectivity conn : ScalarField3D.Connectivity.values() ) {
+				PSplitTree st = new PSplitTree();
+				st.calculate( vol, conn );
+				PJoinTree  jt = new PJoinTree();
+				jt.calculate( vol, conn );
+
+				boolean split = treePairs( st ).equals( sweepPairs( vals, w, h, d, conn.getOffsets(), false ) );
+				boolean join  = treePairs( jt ).equals( sweepPairs( vals, w, h, d, conn.getOffsets(), true ) );
+				System.out.println( w + "x" + h + "x" + d + " " + conn + " split tree: " + (split ? "ok" : "MISMATCH") + ", join tree: " + (join ? "ok" : "MISMATCH") );
+				ok &= split && join;
+			}
+		}
+		System.out.println( ok ? "ok" : "FAILED" );
+	}
+
+	// the 8-neighborhood of the 2D kernels, as {dx,dy,dz}
+	private static final int [][] SQUARE = new int[9][];
+	static {
+		for( int i = 0; i < 9; i++ ) SQUARE[i] = new int[]{ i%3-1, i/3-1, 0 };
+	}
+
+	private static List<String> treePairs( AbstractMergeTree tree ) {
+		List<String> ret = new ArrayList<String>();
+		for( AbstractMergeTreeNode n : tree.getAll() ) {
+			if( n.childCount() == 0 && n.getPartner() != null ) {
+				ret.add( n.getValue() + " " + n.getPartner().getValue() );
+			}
+		}
+		Collections.sort( ret );
+		return ret;
+	}
+
+	private static List<String> sweepPairs( float [] vals, int w, int h, int d, int [][] offsets, boolean sublevel ) {
+		Integer [] order = new Integer[vals.length];
+		for( int i = 0; i < order.length; i++ ) order[i] = i;
+		final float [] key = new float[vals.length];
+		for( int i = 0; i < vals.length; i++ ) key[i] = sublevel ? vals[i] : -vals[i];
+		Arrays.sort( order, new java.util.Comparator<Integer>() {
+			@Override public int compare( Integer a, Integer b ) { return Float.compare( key[a], key[b] ); }
+		});
+
+		IntDisjointSet djs = new IntDisjointSet( vals.length );
+		int [] elder = new int[vals.length];
+		boolean [] seen = new boolean[vals.length];
+		List<String> ret = new ArrayList<String>();
+		for( int i : order ) {
+			seen[i] = true;
+			elder[i] = i;
+			int x = i%w, y = (i/w)%h, z = i/(w*h);
+			for( int [] o : offsets ) {
+				int u = x+o[0], v = y+o[1], t = z+o[2];
+				if( u < 0 || u >= w || v < 0 || v >= h || t < 0 || t >= d ) continue;
+				int n = (t*h+v)*w+u;
+				if( !seen[n] ) continue;
+				int r0 = djs.find( i ), r1 = djs.find( n );
+				if( r0 == r1 ) continue;
+				int e0 = elder[r0], e1 = elder[r1];
+				int young = ( key[e0] > key[e1] ) ? e0 : e1;
+				if( young != i ) ret.add( vals[young] + " " + vals[i] );
+				elder[ djs.union( r0, r1 ) ] = ( young == e0 ) ? e1 : e0;
+			}
+		}
+		Collections.sort( ret );
+		return ret;
+	}
+
+}
@@ -0,0 +1,742 @@
+/*
+ *     jPSimp - Persistence calculation and simplification of scalar fields.
+ *     Copyright (C) 2016 PAUL ROSEN
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     You may contact the Paul Rosen at <prosen@usf.edu>.
+ */
+package usf.saav.topology.merge;
+
+import static org.jocl.CL.CL_MAP_READ;
+import static org.jocl.CL.CL_MAP_WRITE;
+import static org.jocl.CL.CL_MEM_ALLOC_HOST_PTR;
+import static org.jocl.CL.CL_MEM_READ_ONLY;
+import static org.jocl.CL.CL_MEM_READ_WRITE;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Vector;
+
+import org.jocl.cl_event;
+
+import usf.saav.common.EventTimer;
+import usf.saav.common.jocl.joclDevice;
+import usf.saav.common.jocl.joclEvent;
+import usf.saav.common.jocl.joclException;
+import usf.saav.common.jocl.joclKernel;
+import usf.saav.common.jocl.joclMemory;
+import usf.saav.common.jocl.joclMemoryPool;
+import usf.saav.common.jocl.joclResourceLoader;
+import usf.saav.scalarfield.ScalarField3D;
+import usf.saav.topology.merge.PAugmentedMergeTree.CPSTransfer;
+
+/**
+ * Runs the PAugmentedMergeTree stages as OpenCL kernels on a JOCL device.
+ * Device buffers come from a joclMemoryPool and are kept between calls, so
+ * a series of fields reuses them. The field is written into a mapped pinned
+ * buffer and the critical points are read into another, which stays mapped
+ * until the next call. Work-group
+ * sizes are compiled into the kernels from a Config, so any device limit
+ * can be used.
+ */
+public class PMergeTreeJOCL implements PMergeTreeBackend {
+
+	private joclDevice   device;
+
+	//private joclKernel kernel_djs_init;
+	//private joclKernel kernel_djs_simplify;
+	private joclKernel kernel_djs;
+	private joclKernel kernel_negate;
+	private joclKernel kernel_cps_extract;
+	private joclKernel kernel_cps_bin;
+	private joclKernel kernel_cps_bin_sort;
+	private joclKernel kernel_cps_propagate;
+
+	// volume kernels by connectivity, built on first use
+	private joclKernel [] kernel_djs3d         = new joclKernel[ScalarField3D.Connectivity.values().length];
+	private joclKernel [] kernel_cps_extract3d = new joclKernel[ScalarField3D.Connectivity.values().length];
+
+	private joclMemory d_field;
+	private joclMemory d_djs;
+	private joclMemory d_cps;
+	private joclMemory d_scratch;
+	private joclMemory d_histogram;
+
+	/** Bytes of local memory per LCriticalPoint. */
+	private static final int LOCAL_CP_BYTES = 36;
+
+	/** Propagation phases enqueued between checks for convergence, at most. */
+	private static final int MAX_PHASE_BATCH = 32;
+
+	/** Modification counters kept on the device, reused round robin. */
+	private static final int PHASE_SLOTS = 64;
+
+	private final Config config;
+
+	private joclMemory d_field_neg;
+	private joclMemory [] h_cps = new joclMemory[2];
+
+	private joclMemoryPool pool;
+	private ByteBuffer fieldMap  = null;
+	private FloatBuffer fieldView = null;
+	private ByteBuffer [] resultMap = new ByteBuffer[2];
+
+	private int width  = 0;
+	private int height = 0;
+
+	// progress of each calculate() on stdout
+	private boolean verbose = false;
+
+
+	private static final String KERNEL_DIR = "/usf/saav/topology/join/parallel";
+
+	/**
+	 * Runs with PMergeTreeAutotuner.getDefaultConfig(): the tuned
+	 * configuration if rgph.opencl.tuning is set, the defaults otherwise.
+	 */
+	public PMergeTreeJOCL( joclDevice _device ){
+		this( _device, PMergeTreeAutotuner.getDefaultConfig( _device ) );
+	}
+
+	/**
+	 * @param _config work-group sizes and histogram size, see
+	 *        PMergeTreeAutotuner for choosing them per device
+	 */
+	public PMergeTreeJOCL( joclDevice _device, Config _config ){
+
+		this.device = _device;
+		this.config = _config;
+		this.pool   = new joclMemoryPool( _device );
+
+		String dir = KERNEL_DIR;
+		
+		try {
+				
+			kernel_djs   		= device.buildProgram( new joclResourceLoader(dir,"kernel_djs.cl"), 		    "kernel_djs"     );
+			kernel_negate		= device.buildProgram( new joclResourceLoader(dir,"kernel_djs.cl"), 		    "kernel_negate"  );
+			kernel_cps_bin		= device.buildProgram( new joclResourceLoader(dir,"kernel_cps_bucket_sort.cl"),	"kernel_cps_bucket" );
+			kernel_cps_bin_sort	= device.buildProgram( new joclResourceLoader(dir,"kernel_cps_bucket_sort.cl"),	"kernel_cps_bucket_sort" );
+			kernel_cps_extract	= device.buildProgram( new joclResourceLoader(dir,"kernel_cps_extract.cl"),		"kernel_cps_extract",
+													"-D EXTRACT_W=" + config.extractW + " -D EXTRACT_H=" + config.extractH );
+			kernel_cps_propagate= device.buildProgram( new joclResourceLoader(dir,"kernel_cps_propagate.cl"),	"kernel_cps_propagate",
+													"-D PROPAGATE_SIZE=" + config.propagateSize );
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * Launch configuration of the kernels. The extraction tile and the
+	 * propagation work group are compiled into the kernels; the sort work
+	 * group and histogram size are chosen at launch.
+	 */
+	public static class Config {
+		public final int extractW;
+		public final int extractH;
+		public final int propagateSize;
+		public final int sortSize;
+		public final int binN;
+
+		public Config( int _extractW, int _extractH, int _propagateSize, int _sortSize, int _binN ){
+			extractW      = _extractW;
+			extractH      = _extractH;
+			propagateSize = _propagateSize;
+			sortSize      = _sortSize;
+			binN          = _binN;
+		}
+
+		/**
+		 * The largest square (or 2:1) power-of-two tile and work groups the
+		 * device allows, with 128 histogram buckets.
+		 */
+		public static Config defaults( joclDevice device ){
+			int maxGroup = maxGroupSize( device );
+			int w = 1, h = 1;
+			while( w*h*2 <= maxGroup ){
+				if( w == h ) w *= 2; else h *= 2;
+			}
+			return new Config( w, h, maxGroup, maxGroup, 128 );
+		}
+
+		/**
+		 * The largest power-of-two work group that fits the device's limits
+		 * and, for the kernels keeping one critical point per work item, its
+		 * local memory.
+		 */
+		public static int maxGroupSize( joclDevice device ){
+			long limit = Math.min( device.getMaxWorkGroupSize(), device.getMaxWorkDimensionSizes()[0] );
+			limit = Math.min( limit, device.getLocalMemSize() / LOCAL_CP_BYTES );
+			int ret = 1;
+			while( ret*2 <= limit ) ret *= 2;
+			return ret;
+		}
+
+		/** Parses the toString() form. */
+		public static Config parse( String str ){
+			int [] v = new int[5];
+			String [] tok = str.trim().split( "[^0-9]+" );
+			int n = 0;
+			for( String t : tok ){
+				if( t.length() > 0 && n < 5 ) v[n++] = Integer.parseInt( t );
+			}
+			if( n != 5 ) throw new IllegalArgumentException( "Bad OpenCL configuration: " + str );
+			return new Config( v[0], v[1], v[2], v[3], v[4] );
+		}
+
+		@Override
+		public String toString( ){
+			return "extract=" + extractW + "x" + extractH + " propagate=" + propagateSize + " sort=" + sortSize + " bins=" + binN;
+		}
+	}
+
+	public Config getConfig( ){ return config; }
+
+	/**
+	 * Prints the critical point count and the progress of each batch of
+	 * propagation phases; off by default.
+	 */
+	public void setVerbose( boolean _verbose ){ verbose = _verbose; }
+
+	@Override public String getName( ){ return "OpenCL (" + device.getName() + ", " + config + ")"; }
+
+	@Override
+	public void release( ){
+		try {
+			unmapField();
+			unmapResults();
+		} catch( joclException e ){
+			e.printStackTrace();
+		}
+		pool.release();
+		d_field = d_field_neg = d_djs = d_cps = d_scratch = d_histogram = null;
+		h_cps = new joclMemory[2];
+	}
+
+
+	/**
+	 * Maps the (pinned, where the device supports it) field buffer so the
+	 * caller can write the field straight into it.
+	 */
+	@Override
+	public FloatBuffer getFieldBuffer( int width, int height ) throws joclException {
+		int size = width*height;
+		unmapField();
+		d_field = resize( d_field, "field", CL_MEM_READ_ONLY | CL_MEM_ALLOC_HOST_PTR, 4L*size );
+		fieldMap  = d_field.enqueueMapBuffer( true, CL_MAP_WRITE, 0, 4L*size );
+		fieldView = fieldMap.asFloatBuffer();
+		return fieldView;
+	}
+
+	@Override
+	public ByteBuffer calculate( FloatBuffer data, int width, int height, float minV, float maxV, Vector<EventTimer> events ) throws joclException {
+		joclEvent event_field_write = upload( data, width, height, events );
+		unmapResults();
+		return run( d_field, event_field_write, minV, maxV, 0, events );
+	}
+
+	/**
+	 * Uploads the field once; the second orientation runs on a negated
+	 * copy made on the device, through the same buffers and kernels.
+	 */
+	@Override
+	public ByteBuffer [] calculatePair( FloatBuffer data, int width, int height, float minV, float maxV, Vector<EventTimer> events ) throws joclException {
+		joclEvent event_field_write = upload( data, width, height, events );
+		unmapResults();
+		d_field_neg = resize( d_field_neg, "field_neg", CL_MEM_READ_WRITE, 4L*width*height );
+
+		ByteBuffer [] ret = new ByteBuffer[2];
+		ret[0] = run( d_field, event_field_write, minV, maxV, 0, events );
+
+		kernel_negate.setKernelArg( 0, width*height );
+		kernel_negate.setKernelArg( 1, d_field );
+		kernel_negate.setKernelArg( 2, d_field_neg );
+		joclEvent event_negate = kernel_negate.enqueueNDRangeKernel( new long[]{roundUp( width*height, 64 )}, new long[]{64}, event_field_write.event );
+		events.add(event_negate);
+
+		ret[1] = run( d_field_neg, event_negate, -maxV, -minV, 1, events );
+		return ret;
+	}
+
+	@Override
+	public ByteBuffer calculate( FloatBuffer data, int width, int height, int depth, ScalarField3D.Connectivity connectivity, float minV, float maxV, Vector<EventTimer> events ) throws Exception {
+		joclEvent event_field_write = upload( data, width, height*depth, events );
+		unmapResults();
+
+		int c = connectivity.ordinal();
+		if( kernel_djs3d[c] == null ){
+			String options = "-D CONNECTIVITY=" + ( connectivity == ScalarField3D.Connectivity.SIX ? 6 : 26 );
+			kernel_djs3d[c]         = device.buildProgram( new joclResourceLoader(KERNEL_DIR,"kernel_djs3d.cl"),         "kernel_djs3d",         options );
+			kernel_cps_extract3d[c] = device.buildProgram( new joclResourceLoader(KERNEL_DIR,"kernel_cps_extract3d.cl"), "kernel_cps_extract3d", options );
+		}
+
+		int size = width*height*depth;
+		long global = roundUp( size, 64 );
+		int recordInts = CPSTransfer.size();
+
+		// Without a link test nearly every vertex is a candidate, and the
+		// bucket sort copies the records into the second half of d_cps, so
+		// the buffer holds twice the records and extraction is clamped to the
+		// first half. A guess of one record per vertex is too small only when
+		// many vertices have more than 8 upper sets; the extraction still
+		// counts every record, so it is rerun once with room for all of them.
+		long records = size;
+		int capacity;
+		joclEvent event_extract_cps;
+		while( true ){
+			// the heap pointer and the kernels' offsets are ints
+			if( 1 + 2*records*recordInts > Integer.MAX_VALUE ) throw new IllegalStateException( records + " critical points do not fit a buffer" );
+			capacity = (int)( 1 + records*recordInts );
+			cl_event [] ready = prepare( event_field_write, 1 + 2*records*recordInts, minV, maxV, events );
+
+			joclKernel djs = kernel_djs3d[c];
+			djs.setKernelArg( 0, width );
+			djs.setKernelArg( 1, height );
+			djs.setKernelArg( 2, depth );
+			djs.setKernelArg( 3, d_field );
+			djs.setKernelArg( 4, d_djs );
+			djs.setKernelArg( 5, 1 );
+			joclEvent event_init_djs = djs.enqueueNDRangeKernel( new long[]{global}, new long[]{64}, ready );
+			events.add(event_init_djs);
+
+			djs.setKernelArg( 5, 2 );
+			joclEvent event_simplify_djs = djs.enqueueNDRangeKernel( new long[]{global}, new long[]{64}, event_init_djs.event );
+			events.add(event_simplify_djs);
+
+			joclKernel extract = kernel_cps_extract3d[c];
+			extract.setKernelArg( 0, width );
+			extract.setKernelArg( 1, height );
+			extract.setKernelArg( 2, depth );
+			extract.setKernelArg( 3, d_field );
+			extract.setKernelArg( 4, d_djs );
+			extract.setKernelArg( 5, d_cps );
+			extract.setKernelArg( 6, d_histogram );
+			extract.setKernelArg( 7, capacity );
+			event_extract_cps = extract.enqueueNDRangeKernel( new long[]{global}, new long[]{64}, event_simplify_djs.event );
+			events.add(event_extract_cps);
+
+			int [] hpointer = new int[1];
+			joclEvent event_hpointer_read = d_cps.enqueueReadBuffer( true, 0, hpointer, event_extract_cps.event );
+			events.add(event_hpointer_read);
+			if( hpointer[0] <= capacity ) break;
+			records = ( hpointer[0]-1 ) / recordInts;
+		}
+
+		return sortAndPropagate( event_extract_cps, records, capacity, 0, events );
+	}
+
+	private joclEvent upload( FloatBuffer data, int width, int height, Vector<EventTimer> events ) throws joclException {
+		int size = width*height;
+		if( fieldMap == null || data != fieldView ){
+			// not the buffer from getFieldBuffer(), copy it in
+			FloatBuffer dst = getFieldBuffer( width, height );
+			data.rewind();
+			dst.put( data );
+		}
+		this.width  = width;
+		this.height = height;
+
+		joclEvent event_field_write   = d_field.enqueueUnmapBuffer( fieldMap );
+		fieldMap  = null;
+		fieldView = null;
+		events.add(event_field_write);
+		return event_field_write;
+	}
+
+	/**
+	 * Sizes the buffers for width*height values and cpsInts ints of critical
+	 * points, clears them and writes the histogram header; returns the
+	 * events the first kernel waits for.
+	 */
+	private cl_event [] prepare( joclEvent fieldReady, long cpsInts, float minV, float maxV, Vector<EventTimer> events ) throws joclException {
+
+		int binN = config.binN;
+
+		int size = width*height;
+		d_djs       = resize( d_djs,       "djs",       CL_MEM_READ_WRITE, Math.max(4L*size, 4*(1+2048+2048*4) ) );
+		d_cps       = resize( d_cps,       "cps",       CL_MEM_READ_WRITE, 4L*cpsInts );
+		d_scratch   = resize( d_scratch,   "scratch",   CL_MEM_READ_WRITE, Math.max(4L*size, PHASE_SLOTS*8L) ); // also the propagation convergence ring
+		d_histogram = resize( d_histogram, "histogram", CL_MEM_READ_WRITE, 4* (1 + 2 + binN + binN) ); // 1 for bin count, 2 for min/max, N for bins, N for bin offsets
+
+		joclEvent event_djs_write     = d_djs.enqueueFillBuffer( new byte[]{0} );
+		events.add(event_djs_write);
+		
+		joclEvent event_cps_write     = d_cps.enqueueFillBuffer( new byte[]{0} );
+		events.add(event_cps_write);
+
+		joclEvent event_scratch_write = d_scratch.enqueueFillBuffer( new byte[]{0} );
+		events.add(event_scratch_write);
+
+		
+
+		ByteBuffer histogram = ByteBuffer.allocateDirect(4*(1+2+binN*2));
+		histogram.order( ByteOrder.LITTLE_ENDIAN );
+		histogram.putInt( binN );
+		histogram.putFloat( minV );
+		histogram.putFloat( maxV );
+		for(int i = 0; i < binN; i++ ){
+			histogram.putInt( 0 );
+			histogram.putInt( 0 );
+		}
+		joclEvent event_histogram_write = d_histogram.enqueueWriteBuffer( false, histogram );
+		events.add(event_histogram_write);
+
+		return new cl_event[]{ event_histogram_write.event, fieldReady.event, event_djs_write.event, event_cps_write.event, event_scratch_write.event };
+	}
+
+	/**
+	 * Runs the stages on one field buffer and reads the critical points
+	 * into staging buffer result (0 or 1).
+	 */
+	private ByteBuffer run( joclMemory d_field, joclEvent fieldReady, float minV, float maxV, int result, Vector<EventTimer> events ) throws joclException {
+
+		cl_event [] ready = prepare( fieldReady, (long)width*height*CPSTransfer.size(), minV, maxV, events );
+
+		kernel_djs.setKernelArg( 0, width ); 
+		kernel_djs.setKernelArg( 1, height );
+		kernel_djs.setKernelArg( 2, d_field );
+		kernel_djs.setKernelArg( 3, d_djs );
+		kernel_djs.setKernelArg( 4, (int)1 );
+		joclEvent event_init_djs = kernel_djs.enqueueNDRangeKernel( new long[]{width,height}, ready );
+		events.add(event_init_djs);
+
+		kernel_djs.setKernelArg( 4, (int)2 );
+		joclEvent event_simplify_djs = kernel_djs.enqueueNDRangeKernel( new long[]{width,height}, event_init_djs.event );
+		events.add(event_simplify_djs);
+
+		int arg = 0;
+		kernel_cps_extract.setKernelArg( arg++, width );
+		kernel_cps_extract.setKernelArg( arg++, height );
+		kernel_cps_extract.setKernelArg( arg++, d_field );
+		kernel_cps_extract.setKernelArg( arg++, d_djs );
+		kernel_cps_extract.setKernelArg( arg++, d_cps );
+		kernel_cps_extract.setKernelArg( arg++, d_histogram );
+		long extractW = roundUp( width, config.extractW );
+		long extractH = roundUp( height, config.extractH );
+		joclEvent event_extract_cps = kernel_cps_extract.enqueueNDRangeKernel( new long[]{extractW,extractH}, new long[]{config.extractW,config.extractH}, event_simplify_djs.event );
+		events.add(event_extract_cps);
+
+		return sortAndPropagate( event_extract_cps, width*height, Integer.MAX_VALUE, result, events );
+	}
+
+	/**
+	 * The stages after extraction, which only see the critical points;
+	 * reads them into staging buffer result (0 or 1).
+	 *
+	 * @param recordN  critical points the bucket pass covers, at least
+	 *                 as many as were extracted
+	 * @param capacity ints of d_cps extraction may fill, half of what the
+	 *                 sort has
+	 */
+	private ByteBuffer sortAndPropagate( joclEvent event_extract_cps, long recordN, int capacity, int result, Vector<EventTimer> events ) throws joclException {
+
+		int binN = config.binN;
+		int arg = 0;
+
+		kernel_cps_bin.setKernelArg( arg++, d_cps );
+		kernel_cps_bin.setKernelArg( arg++, d_histogram );
+		joclEvent event_cps_bucket = kernel_cps_bin.enqueueNDRangeKernel( new long[]{recordN}, event_extract_cps.event );
+		events.add(event_cps_bucket);
+
+		
+		arg = 0;
+		kernel_cps_bin_sort.setKernelArg( arg++, d_cps );
+		kernel_cps_bin_sort.setKernelArg( arg++, d_histogram );
+		joclEvent event_cps_bucket_sort = kernel_cps_bin_sort.enqueueNDRangeKernel( new long[]{config.sortSize*binN}, new long[]{config.sortSize}, event_cps_bucket.event );
+		events.add(event_cps_bucket_sort);
+
+
+
+		int [] tmp_cpsN = new int[1];
+		joclEvent event_cpsN_read = d_cps.enqueueReadBuffer(true, 0, tmp_cpsN, event_cps_bucket_sort.event );
+		events.add(event_cpsN_read);
+
+		int hpointer = tmp_cpsN[0];
+		int cpsN = (hpointer-1)/CPSTransfer.size();
+		if( hpointer > capacity ) throw new IllegalStateException( "critical points need " + hpointer + " ints, only " + capacity + " allocated" );
+
+		if( verbose ) System.out.println( "CPS=" + cpsN );
+		kernel_cps_propagate.setKernelArg( 0, d_cps );
+		kernel_cps_propagate.setKernelArg( 1, d_djs );
+		kernel_cps_propagate.setKernelArg( 3, d_scratch );
+		kernel_cps_propagate.setKernelArg( 4, (int)0 );
+		
+		long wgs = config.propagateSize;
+		long cpsWork = roundUp( cpsN, wgs );
+		joclEvent lastEvent = event_cpsN_read;
+		
+
+		joclEvent event_cps_propagate_clear_djs = d_djs.enqueueFillBuffer( Integer.MAX_VALUE, lastEvent.event );
+		events.add(event_cps_propagate_clear_djs);
+		lastEvent = event_cps_propagate_clear_djs;
+
+		joclEvent event_cps_propagate_clear_scratch = d_scratch.enqueueFillBuffer( new int[]{0,Integer.MAX_VALUE}, lastEvent.event  );
+		events.add(event_cps_propagate_clear_scratch);
+		lastEvent = event_cps_propagate_clear_scratch;
+
+		// Phases are enqueued in batches and the host only waits at the end
+		// of each. A phase following one that changed nothing returns at
+		// once, so phases enqueued past convergence cost a launch each.
+		int [] res = {0,0};
+		int cpsOffset = 0;
+		int phase = 1;
+		int batch = 2;
+		kernel_cps_propagate.setKernelArg( 5, PHASE_SLOTS );
+		EventTimer.CombinedEvents prop_event = new EventTimer.CombinedEvents( "event_cps_propagate" );
+		events.add(prop_event);
+		while( cpsN > 0 ){
+			for( int i = 0; i < batch; i++, phase++ ){
+				kernel_cps_propagate.setKernelArg( 2, phase );
+				kernel_cps_propagate.setKernelArg( 4, cpsOffset );
+
+				joclEvent event_cps_propagate_phase_X = kernel_cps_propagate.enqueueNDRangeKernel( new long[]{cpsWork-cpsOffset}, new long[]{wgs}, lastEvent.event );
+				prop_event.add(event_cps_propagate_phase_X);
+				lastEvent = event_cps_propagate_phase_X;
+			}
+
+			// counters of the last phase enqueued
+			d_scratch.enqueueReadBuffer(true, ((phase-2)%PHASE_SLOTS)*8, res, lastEvent.event );
+			if( res[0] == 0 ) break;
+			cpsOffset = (int) (res[1]-(res[1]%wgs));
+			if( verbose ) System.out.println( "Phase:" + (phase-1) + " {modified:" + res[0] + ", minimium:" + res[1] + "} Offset:" + cpsOffset + " Work Remaining:" + (cpsWork-cpsOffset) );
+			batch = Math.min( batch*2, MAX_PHASE_BATCH );
+		}
+		
+		
+		
+		// read back through a pinned staging buffer, which stays mapped
+		h_cps[result] = resize( h_cps[result], "cps_host", CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR, 4L*hpointer );
+		resultMap[result] = h_cps[result].enqueueMapBuffer( true, CL_MAP_READ | CL_MAP_WRITE, 0, h_cps[result].size() );
+		ByteBuffer tmp_cps = resultMap[result].duplicate();
+		tmp_cps.limit( hpointer*4 );
+		tmp_cps = tmp_cps.slice();
+		tmp_cps.order( ByteOrder.LITTLE_ENDIAN );
+		joclEvent event_cps_read = d_cps.enqueueReadBuffer(true, tmp_cps, lastEvent.event );
+		events.add(event_cps_read);
+		
+
+		return tmp_cps;
+	}
+
+	/**
+	 * Returns a buffer to the pool and takes one of at least the given size,
+	 * unless the current one is already large enough.
+	 */
+	private joclMemory resize( joclMemory mem, String name, long flags, long size ){
+		if( mem != null && mem.size() >= size ) return mem;
+		pool.recycle( mem );
+		return pool.acquire( name, flags, size );
+	}
+
+	private void unmapField( ) throws joclException {
+		if( fieldMap == null ) return;
+		d_field.enqueueUnmapBuffer( fieldMap );
+		fieldMap  = null;
+		fieldView = null;
+	}
+
+	private void unmapResults( ) throws joclException {
+		for( int i = 0; i < resultMap.length; i++ ){
+			if( resultMap[i] == null ) continue;
+			h_cps[i].enqueueUnmapBuffer( resultMap[i] );
+			resultMap[i] = null;
+		}
+	}
+
+	/** Device memory held, in bytes. */
+	public long getAllocatedBytes( ){
+		return pool.getAllocatedBytes();
+	}
+
+	private static long roundUp( long n, long multiple ){
+		return (n+multiple-1) - ( (n+multiple-1)%multiple );
+	}
+
+
+	public void writeDJSInfo( PrintStream ps, boolean showIdx ){
+		try {
+			ByteBuffer tmp_djs = ByteBuffer.allocate( width*height*4 );
+			tmp_djs.order( ByteOrder.LITTLE_ENDIAN );
+			d_djs.enqueueReadBuffer( true, tmp_djs );
+			ps.println( width + " " + height );
+			for( int i = 0; i < width*height; i++ ){
+				if( showIdx ) ps.print( "["+i+"]"+tmp_djs.getInt() + " " );
+				else ps.print( tmp_djs.getInt() + " " );
+				if( (i%width) == (width-1) ) ps.println();
+			}
+		} catch (joclException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	class HashDJSRecord {
+		int key;
+		int value;
+		float data;
+		int next;
+	}
+
+	public void writeDJSHashInfo( PrintStream ps ){
+		try {
+			ByteBuffer tmp_djs = ByteBuffer.allocate( (int)d_djs.size() );
+			tmp_djs.order( ByteOrder.LITTLE_ENDIAN );
+			d_djs.enqueueReadBuffer( true, tmp_djs );
+			
+			int heapp = tmp_djs.getInt();
+			System.out.println("heap: " + heapp);
+	
+			int [] pntr = new int[2048];
+			for(int i = 0; i < pntr.length; i++){
+				pntr[i] = tmp_djs.getInt();
+			}
+			
+			HashDJSRecord [] rec = new HashDJSRecord[heapp]; 
+			for(int i = 0; i < rec.length; i++){
+				rec[i] = new HashDJSRecord();
+				rec[i].key = tmp_djs.getInt();
+				rec[i].value = tmp_djs.getInt();
+				rec[i].data = tmp_djs.getFloat();
+				rec[i].next = tmp_djs.getInt();
+			}
+
+			for(int i = 0; i < pntr.length; i++ ){
+				int cur = pntr[i];
+				if( cur != -1 ){
+					System.out.print("  [" + i + "] ");
+					while(cur != -1){
+						System.out.print( "[" + rec[cur].key + "->" + rec[cur].value + " (" + rec[cur].data + ")] " );
+						cur = rec[cur].next;
+					}
+					System.out.println();
+				}
+			}
+
+		} catch (joclException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void writeCPInfo( PrintStream ps ){
+		
+		ByteBuffer tmp_cps = ByteBuffer.allocate( (int)d_cps.size() );
+		tmp_cps.order( ByteOrder.LITTLE_ENDIAN );
+		
+		try {
+			d_cps.enqueueReadBuffer(true, tmp_cps);
+		} catch (joclException e) {
+			e.printStackTrace();
+		}
+
+		CPSTransfer currCP = new CPSTransfer( );
+
+		int hpointer = tmp_cps.getInt();
+		int cpsN = (hpointer-1)/CPSTransfer.size();
+	
+		int disp = 0;
+		ps.println("heap pointer: " + hpointer + " (" + cpsN + " cps)");
+		for(int i = 0; i < width*height && i < cpsN*2; i++){
+			currCP.loadNext(tmp_cps);
+			//if( currCP.ref > 1 ){
+			System.out.print("("+disp+")");
+			currCP.print( ps );
+			disp++;
+			//if(disp>50) break;
+			//}
+		}
+		ps.println();
+		
+	}
+	
+	class HashRecord {
+		int value;
+		int data;
+		int next;
+	}
+	
+	public void writeScratchInfo( PrintStream ps, boolean showLocks ){
+		ByteBuffer tmp_scratch = ByteBuffer.allocate( (int)d_scratch.size() );
+		tmp_scratch.order( ByteOrder.LITTLE_ENDIAN );
+
+		try {
+			d_scratch.enqueueReadBuffer(true, tmp_scratch);
+		} catch (joclException e) {
+			e.printStackTrace();
+		}
+
+		for( int loop = 0; loop < 2; loop++ ){
+			tmp_scratch.position(loop*2048*4);
+			int heapp = tmp_scratch.getInt();
+			System.out.println("heap: " + heapp);
+	
+			int [] pntr = new int[64];
+			for(int i = 0; i < pntr.length; i++){
+				pntr[i] = tmp_scratch.getInt();
+			}
+			
+			HashRecord [] rec = new HashRecord[heapp]; 
+			for(int i = 0; i < rec.length; i++){
+				rec[i] = new HashRecord();
+				rec[i].value = tmp_scratch.getInt();
+				rec[i].data = tmp_scratch.getInt();
+				rec[i].next = tmp_scratch.getInt();
+			}
+			for(int i = 0; i < pntr.length; i++ ){
+				System.out.print("  [" + i + "] ");
+				int cur = pntr[i];
+				while(cur != -1){
+					//System.out.print( cur + "  ");
+					System.out.print( "(" + rec[cur].value + "->" + rec[cur].data + ") " );
+					cur = rec[cur].next;
+				}
+				
+				System.out.println();
+			}
+		}		
+		
+		/*
+			for(int i = 0; i < width*height; i++){
+				int val = tmp_scratch.getInt();
+				if( showLocks ){
+					if( val >= width*height ) ;// ps.print("["+i+"]-- ");
+					else ps.print( "["+i+"]" + val + " " );
+					//if( (i%width) == (width-1) ){
+					//	ps.println();
+					//}
+				}
+			}
+			ps.println();
+			*/
+			/*
+			int count = tmp_scratch.getInt();
+			ps.println( count );
+			int iter = tmp_scratch.getInt();
+			ps.println( iter );
+			
+		
+			for( int i = width*height+2, j =0; i < d_scratch.size()/4 && j < iter; i++, j++ ){
+				int off = tmp_scratch.getInt();
+				int cnt = tmp_scratch.getInt();
+				ps.print( "["+j+"]" + off + "/" + cnt + " " );
+				if( (j%10) == 9 ) ps.println();
+			}
+			ps.println();
+			*/
+	}
+
+}
@@ -21,18 +21,34 @@ package usf.saav.topology.merge;
 
 import usf.saav.common.jocl.joclDevice;
 import usf.saav.scalarfield.ScalarField2D;
+import usf.saav.scalarfield.ScalarField3D;
 
 public class PSplitTree extends PAugmentedMergeTree {
 
+	public PSplitTree( ) {
+		super( new PMergeTreeForkJoin(), false );
+	}
+
 	public PSplitTree(joclDevice _device) {
 		super(_device);
 	}
 
+	public PSplitTree(PMergeTreeBackend _backend) {
+		super(_backend, false);
+	}
+
 	@Override
 	public void calculate( ScalarField2D _sf ){
 		calculate(_sf,false);
 		//calculatePersistence();
 	}
+
+	/**
+	 * The tree of a volume, with 6- or 26-connected neighborhoods.
+	 */
+	public void calculate( ScalarField3D _sf, ScalarField3D.Connectivity connectivity ){
+		calculate( _sf, connectivity, false );
+	}
 	
 
 	@Override
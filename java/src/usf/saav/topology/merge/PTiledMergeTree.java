@@ -0,0 +1,391 @@
+package usf.saav.topology.merge;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Vector;
+
+import usf.saav.common.EventTimer;
+import usf.saav.common.algorithm.IntDisjointSet;
+import usf.saav.common.jocl.joclDevice;
+import usf.saav.scalarfield.ScalarField2D;
+
+/**
+ * A join or split tree of a field too large for the device, computed one
+ * tile at a time so the device footprint depends only on the tile size.
+ *
+ * Neighbouring tiles share a row or column of vertices, so every edge of
+ * the 8-connected grid lies in some tile. The backend computes each tile's
+ * tree; the shared vertices are then hung on its arcs: the steepest ascent
+ * from a vertex (as in kernel_djs) ends at a leaf of the vertex's component,
+ * so the vertex lies just below the last ancestor of that leaf above it.
+ * Gluing the tile trees at the shared vertices and sweeping the result
+ * from the top with a union-find gives the tree of the whole field, the
+ * same as computing it in one piece.
+ *
+ * Only one tile of field values is held at a time, on the host and on the
+ * device; the host keeps the tile trees and shared vertices.
+ */
+public class PTiledMergeTree extends PAugmentedMergeTree {
+
+	/** Default tile side, in vertices; the OpenCL backend needs about 250 MB for such a tile. */
+	public static final int DEFAULT_TILE = 2048;
+
+	private final boolean join;
+	private final int tileSize;
+
+	public PTiledMergeTree( boolean _join ){
+		this( new PMergeTreeForkJoin(), _join, DEFAULT_TILE );
+	}
+
+	public PTiledMergeTree( joclDevice _device, boolean _join, int _tileSize ){
+		this( new PMergeTreeJOCL( _device ), _join, _tileSize );
+	}
+
+	/**
+	 * @param _join     a join tree (minima as leaves) rather than a split tree
+	 * @param _tileSize tile side in vertices, including the shared edges
+	 */
+	public PTiledMergeTree( PMergeTreeBackend _backend, boolean _join, int _tileSize ){
+		super( _backend, false );
+		if( _tileSize < 2 ) throw new IllegalArgumentException( "tile size must be at least 2, got " + _tileSize );
+		join     = _join;
+		tileSize = _tileSize;
+	}
+
+	public boolean isJoinTree( ){ return join; }
+
+	public int getTileSize( ){ return tileSize; }
+
+	@Override
+	public void calculate( ScalarField2D _sf ){
+
+		begin( _sf );
+
+		try {
+
+			Glue glue = new Glue( );
+			int step = tileSize-1;
+			for( int y0 = 0; ; y0 += step ){
+				int y1 = Math.min( y0+step, sf.getHeight()-1 );
+				for( int x0 = 0; ; x0 += step ){
+					int x1 = Math.min( x0+step, sf.getWidth()-1 );
+					EventTimer.CombinedEvents tile = new EventTimer.CombinedEvents( "tile_" + x0 + "_" + y0 );
+					calculateTile( x0, y0, x1, y1, glue, tile.getEvents() );
+					events.add( tile );
+					if( x1 == sf.getWidth()-1 ) break;
+				}
+				if( y1 == sf.getHeight()-1 ) break;
+			}
+
+			EventTimer.Default stitch = new EventTimer.Default( "stitch" );
+			stitch.start();
+			glue.sweep( );
+			stitch.stop();
+			events.add( stitch );
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		end( );
+	}
+
+
+	private void calculateTile( int x0, int y0, int x1, int y1, Glue glue, Vector<EventTimer> tileEvents ) throws Exception {
+		final int tw = x1-x0+1, th = y1-y0+1;
+
+		// oriented values
+		final float [] vals = new float[tw*th];
+		float minV =  Float.MAX_VALUE;
+		float maxV = -Float.MAX_VALUE;
+		FloatBuffer data = getBackend().getFieldBuffer( tw, th );
+		for( int y = 0, i = 0; y < th; y++ ){
+			for( int x = 0; x < tw; x++, i++ ){
+				float v = join ? -sf.getValue( x0+x, y0+y ) : sf.getValue( x0+x, y0+y );
+				vals[i] = v;
+				data.put( i, v );
+				minV = Math.min( minV, v );
+				maxV = Math.max( maxV, v );
+			}
+		}
+		ByteBuffer tmp_cps = getBackend().calculate( data, tw, th, minV, maxV, tileEvents );
+
+		// the tile's tree as parent links between tile positions, -1 at the root
+		HashMap<Integer,Integer> parent = new HashMap<Integer,Integer>();
+		HashMap<Integer,Integer> lowest = new HashMap<Integer,Integer>();
+		CPSTransfer currCP = new CPSTransfer( );
+		int cpsN = (tmp_cps.getInt()-1)/CPSTransfer.size();
+		for( int i = 0; i < cpsN; i++ ){
+			currCP.loadNext( tmp_cps );
+			if( currCP.ref < 2 ) continue;
+			if( !parent.containsKey( currCP.id ) ) parent.put( currCP.id, -1 );
+			for( int j = 0; j < currCP.ref; j++ ){
+				Integer child = lowest.get( currCP.setID[j] );
+				parent.put( child == null ? currCP.setID[j] : child, currCP.id );
+				lowest.put( currCP.setID[j], currCP.id );
+			}
+		}
+		if( parent.isEmpty() ) parent.put( ascend( vals, tw, th, 0 ), -1 );
+
+		// hang the shared vertices on the arcs
+		HashMap<Integer,List<Integer>> hung = new HashMap<Integer,List<Integer>>();
+		for( int y = 0; y < th; y++ ){
+			for( int x = 0; x < tw; x++ ){
+				boolean shared = ( x == 0 && x0 > 0 ) || ( x == tw-1 && x1 < sf.getWidth()-1 )
+							  || ( y == 0 && y0 > 0 ) || ( y == th-1 && y1 < sf.getHeight()-1 );
+				if( !shared ) continue;
+				int p = y*tw+x;
+				if( parent.containsKey( p ) ) continue;
+				Integer n = ascend( vals, tw, th, p );
+				if( !parent.containsKey( n ) ) throw new IllegalStateException( "leaf " + n + " missing from the tree of tile " + x0 + "," + y0 );
+				while( parent.get( n ) >= 0 && above( vals, parent.get( n ), p ) ){
+					n = parent.get( n );
+				}
+				List<Integer> arc = hung.get( n );
+				if( arc == null ){
+					arc = new ArrayList<Integer>();
+					hung.put( n, arc );
+				}
+				arc.add( p );
+			}
+		}
+
+		Comparator<Integer> descending = new Comparator<Integer>(){
+			@Override public int compare( Integer a, Integer b ){
+				if( a.equals( b ) ) return 0;
+				return above( vals, a, b ) ? -1 : 1;
+			}
+		};
+		for( Map.Entry<Integer,Integer> e : parent.entrySet() ){
+			int n = e.getKey();
+			int prev = glue.vertex( (y0+n/tw)*sf.getWidth() + x0+n%tw, vals[n] );
+			List<Integer> arc = hung.get( n );
+			if( arc != null ){
+				Collections.sort( arc, descending );
+				for( int b : arc ){
+					int curr = glue.vertex( (y0+b/tw)*sf.getWidth() + x0+b%tw, vals[b] );
+					glue.edge( prev, curr );
+					prev = curr;
+				}
+			}
+			int p = e.getValue();
+			if( p >= 0 ){
+				glue.edge( prev, glue.vertex( (y0+p/tw)*sf.getWidth() + x0+p%tw, vals[p] ) );
+			}
+		}
+	}
+
+	// a higher than b: larger value, or equal value and earlier position
+	private static boolean above( float [] vals, int a, int b ){
+		return vals[a] > vals[b] || ( vals[a] == vals[b] && a < b );
+	}
+
+	// steepest ascent as in kernel_djs: the largest of the 3x3 neighborhood,
+	// the first in row-major order on ties, until a cell points at itself
+	private static int ascend( float [] vals, int w, int h, int p ){
+		while( true ){
+			int x = p%w, y = p/w;
+			float largestVal = -Float.MAX_VALUE;
+			int   largestIdx = -1;
+			for( int v = Math.max( 0, y-1 ); v <= Math.min( h-1, y+1 ); v++ ){
+				for( int u = Math.max( 0, x-1 ); u <= Math.min( w-1, x+1 ); u++ ){
+					if( vals[v*w+u] > largestVal ){
+						largestVal = vals[v*w+u];
+						largestIdx = v*w+u;
+					}
+				}
+			}
+			if( largestIdx == p ) return p;
+			p = largestIdx;
+		}
+	}
+
+
+	/**
+	 * The tile trees glued at their shared vertices, by field position.
+	 */
+	private class Glue {
+
+		private HashMap<Integer,Integer> ids = new HashMap<Integer,Integer>();
+		private int   [] position = new int[1024];
+		private float [] value    = new float[1024];
+		private int      vertexN  = 0;
+		private int   [] edges    = new int[2048];
+		private int      edgeN    = 0;
+
+		int vertex( int pos, float val ){
+			Integer ret = ids.get( pos );
+			if( ret != null ) return ret;
+			if( vertexN == position.length ){
+				position = Arrays.copyOf( position, vertexN*2 );
+				value    = Arrays.copyOf( value,    vertexN*2 );
+			}
+			position[vertexN] = pos;
+			value[vertexN]    = val;
+			ids.put( pos, vertexN );
+			return vertexN++;
+		}
+
+		void edge( int a, int b ){
+			if( edgeN+2 > edges.length ) edges = Arrays.copyOf( edges, edges.length*2 );
+			edges[edgeN++] = a;
+			edges[edgeN++] = b;
+		}
+
+		/**
+		 * Visits the vertices from the highest, creating a leaf where no
+		 * neighbor was visited and a saddle where two or more components of
+		 * visited vertices meet.
+		 */
+		void sweep( ){
+			int [] start = new int[vertexN+1];
+			for( int i = 0; i < edgeN; i++ ) start[edges[i]+1]++;
+			for( int v = 0; v < vertexN; v++ ) start[v+1] += start[v];
+			int [] adj  = new int[edgeN];
+			int [] fill = Arrays.copyOf( start, vertexN );
+			for( int i = 0; i < edgeN; i += 2 ){
+				adj[fill[edges[i]]++]   = edges[i+1];
+				adj[fill[edges[i+1]]++] = edges[i];
+			}
+
+			long [] order = new long[vertexN];
+			for( int v = 0; v < vertexN; v++ ) order[v] = PMergeTreeForkJoin.descendingKey( value[v], position[v] );
+			Arrays.sort( order );
+
+			IntDisjointSet djs = new IntDisjointSet( vertexN );
+			PAugmentedMergeTreeNode [] top = new PAugmentedMergeTreeNode[vertexN];
+			// the backend labels a component by its last maximum in row-major
+			// order and lists a saddle's children by decreasing label; the
+			// persistence pairing depends on that order
+			int [] label = new int[vertexN];
+			boolean [] visited = new boolean[vertexN];
+			int [] roots = new int[8];
+			for( long key : order ){
+				int v = ids.get( (int)key );
+				int rootN = 0;
+				for( int i = start[v]; i < start[v+1]; i++ ){
+					if( !visited[adj[i]] ) continue;
+					int r = djs.find( adj[i] );
+					boolean seen = false;
+					for( int j = 0; j < rootN; j++ ) seen |= ( roots[j] == r );
+					if( seen ) continue;
+					if( rootN == roots.length ) roots = Arrays.copyOf( roots, rootN*2 );
+					roots[rootN++] = r;
+				}
+
+				if( rootN == 0 ){
+					top[v] = createTreeNode( position[v] );
+					label[v] = position[v];
+					grid.add( top[v] );
+				}
+				else if( rootN == 1 ){
+					int r = djs.union( v, roots[0] );
+					top[r]   = top[roots[0]];
+					label[r] = label[roots[0]];
+				}
+				else {
+					PAugmentedMergeTreeNode saddle = createTreeNode( position[v] );
+					grid.add( saddle );
+					for( int i = 1; i < rootN; i++ ){
+						for( int j = i; j > 0 && label[roots[j]] > label[roots[j-1]]; j-- ){
+							int tmp = roots[j]; roots[j] = roots[j-1]; roots[j-1] = tmp;
+						}
+					}
+					int r = v;
+					for( int j = 0; j < rootN; j++ ){
+						saddle.addChild( top[roots[j]] );
+						r = djs.union( r, roots[j] );
+					}
+					top[r]   = saddle;
+					label[r] = label[roots[0]];
+					head = saddle;
+				}
+				visited[v] = true;
+			}
+
+			// a single maximum, which the untiled tree leaves out as well
+			if( head == null ) grid.clear();
+			total = grid.size();
+		}
+	}
+
+
+	@Override
+	protected PAugmentedMergeTreeNode createTreeNode( int sf_node ) {
+		return new PTiledMergeTreeNode( sf_node );
+	}
+
+	public class PTiledMergeTreeNode extends PAugmentedMergeTreeNode {
+
+		PTiledMergeTreeNode( int idx ) {
+			super( idx );
+		}
+
+		@Override
+		public NodeType getType() {
+			if( this.childCount() == 0 )
+				return join ? NodeType.LEAF_MIN : NodeType.LEAF_MAX;
+			return NodeType.SADDLE;
+		}
+
+		@Override
+		public int getID() {
+			return super.idx;
+		}
+	}
+
+
+	/**
+	 * Checks tiled join and split trees of random fields, for several tile
+	 * sizes, node for node against trees of the whole field.
+	 */
+	public static void main( String[] args ) throws Exception {
+		Random rand = new Random( 4 );
+		boolean ok = true;
+		int [][] cases = { {64,64,17}, {64,64,20}, {96,48,33}, {128,80,40}, {48,32,100}, {32,32,2}, {50,40,17}, {33,29,12}, {50,40,100}, {33,29,3} };
+		for( int [] c : cases ){
+			final int w = c[0], h = c[1];
+			final float [] vals = new float[w*h];
+			for( int i = 0; i < vals.length; i++ ) vals[i] = rand.nextFloat();
+			ScalarField2D sf = new ScalarField2D.Default() {
+				@Override public int getWidth() { return w; }
+				@Override public int getHeight() { return h; }
+				@Override public float getValue( int x, int y ) { return vals[y*w+x]; }
+			};
+
+			PJoinTree  join  = new PJoinTree( );
+			PSplitTree split = new PSplitTree( );
+			PTiledMergeTree tiledJoin  = new PTiledMergeTree( new PMergeTreeForkJoin(), true,  c[2] );
+			PTiledMergeTree tiledSplit = new PTiledMergeTree( new PMergeTreeForkJoin(), false, c[2] );
+			join.calculate( sf );
+			split.calculate( sf );
+			tiledJoin.calculate( sf );
+			tiledSplit.calculate( sf );
+
+			boolean same = nodes( tiledJoin ).equals( nodes( join ) )
+						&& nodes( tiledSplit ).equals( nodes( split ) );
+			System.out.println( w + "x" + h + " in " + c[2] + "x" + c[2] + " tiles: " + ( same ? "ok" : "FAILED" ) );
+			ok &= same;
+		}
+		System.out.println( ok ? "ok" : "FAILED" );
+	}
+
+	// position, child count and persistence of every node
+	private static List<String> nodes( AbstractMergeTree tree ){
+		List<String> ret = new ArrayList<String>();
+		for( int i = 0; i < tree.size(); i++ ){
+			ret.add( tree.getNode( i ).getID() + " " + tree.getNode( i ).childCount() + " " + tree.getPersistence( i ) );
+		}
+		Collections.sort( ret );
+		return ret;
+	}
+
+}
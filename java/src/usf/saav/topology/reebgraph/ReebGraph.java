@@ -1,8 +1,9 @@
 package usf.saav.topology.reebgraph;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
+import java.util.List;
 
 import usf.saav.topology.TopoGraph;
 
@@ -11,6 +12,12 @@ public class ReebGraph extends TopoGraph<ReebGraphVertex> {
 
 	private static final long serialVersionUID = 2799501955753168490L;
 
+	private transient ArrayList<ReebGraphVertex> sortedNodes = null;
+	private transient int sortedModCount;
+	private transient boolean hasForks = false;
+	private transient ReebGraphCriticalPoints criticalPoints = null;
+	private transient int criticalModCount;
+
 
 	public ReebGraph() { }
 	
@@ -32,23 +39,175 @@ public class ReebGraph extends TopoGraph<ReebGraphVertex> {
 		for(int i = 0; i < sorted.size(); i++) {
 			sorted.get(i).setValue(i);
 		}
+		criticalPoints = null;
+	}
+
+	/**
+	 * Same result as resetInternalValues(), reusing the known order of a subset
+	 * of the vertices (e.g. those that were already ranked before conditioning).
+	 * The subset must be sorted by value with ties in graph order; members no
+	 * longer in the graph are skipped. Only the remaining vertices are sorted,
+	 * then merged in.
+	 */
+	public void resetInternalValues( List<ReebGraphVertex> sortedSubset ) {
+		resetInternalIDs();
+
+		boolean [] known = new boolean[size()];
+		ArrayList<ReebGraphVertex> kept = new ArrayList<ReebGraphVertex>( sortedSubset.size() );
+		for( ReebGraphVertex v : sortedSubset ) {
+			int id = v.getID();
+			if( id < size() && get(id) == v && !known[id] ) {
+				known[id] = true;
+				kept.add( v );
+			}
+		}
+
+		ArrayList<ReebGraphVertex> added = new ArrayList<ReebGraphVertex>( size()-kept.size() );
+		for( ReebGraphVertex v : this ) {
+			if( !known[v.getID()] ) added.add( v );
+		}
+		added = sortByValue( added );
+
+		// merge by (value, position), which is the order a stable sort produces
+		ArrayList<ReebGraphVertex> sorted = new ArrayList<ReebGraphVertex>( size() );
+		int i = 0, j = 0;
+		while( i < kept.size() || j < added.size() ) {
+			if( j == added.size() || ( i < kept.size() && sortKey( kept.get(i), kept.get(i).getID() ) < sortKey( added.get(j), added.get(j).getID() ) ) )
+				sorted.add( kept.get(i++) );
+			else
+				sorted.add( added.get(j++) );
+		}
+
+		for( i = 0; i < sorted.size(); i++ ) {
+			sorted.get(i).setValue(i);
+		}
+		sortedNodes = sorted;
+		sortedModCount = modCount;
+		criticalPoints = null;
 	}
 	
+	/**
+	 * Returns the vertices in ascending value order, ties kept in graph order.
+	 * The order is cached until the graph is structurally modified; call
+	 * invalidateSortedOrder() after changing vertex values directly.
+	 */
 	public ArrayList<ReebGraphVertex> getNodesSortedByValue() {
-		
-		ArrayList<ReebGraphVertex> sortedNodes = new ArrayList<ReebGraphVertex>();
-		for( TopoGraph.Vertex v : this ) {
-			sortedNodes.add((ReebGraphVertex)v);
+		if( sortedNodes == null || sortedModCount != modCount ) {
+			ArrayList<ReebGraphVertex> verts = new ArrayList<ReebGraphVertex>( size() );
+			for( TopoGraph.Vertex v : this ) {
+				verts.add( (ReebGraphVertex)v );
+			}
+			sortedNodes = sortByValue( verts );
+			sortedModCount = modCount;
 		}
-		
-		sortedNodes.sort( new Comparator<ReebGraphVertex>() {
-			public int compare(ReebGraphVertex o1, ReebGraphVertex o2) {
-				if( o1.value() < o2.value() ) return -1;
-				if( o1.value() > o2.value() ) return  1;
-				return 0;
+		return new ArrayList<ReebGraphVertex>( sortedNodes );
+	}
+
+	/**
+	 * Keeps k-way forks, double forks and forks that are also extrema whole,
+	 * attaching a ReebGraphFork to each instead of splitting them into new
+	 * vertices. Values are renumbered so that every vertex's events take
+	 * consecutive ranks. Expects values to be distinct ranks, with
+	 * non-critical vertices already removed.
+	 */
+	public void resetForks() {
+		criticalPoints = null;
+		hasForks = false;
+		for( ReebGraphVertex v : this ) {
+			v.setFork( null );
+			v.ends = null;
+		}
+		for( ReebGraphVertex v : this ) {
+			if( ReebGraphFork.create( v ) != null ) hasForks = true;
+		}
+		if( !hasForks ) return;
+
+		// events take consecutive ranks, in the existing value order
+		int rank = 0;
+		for( ReebGraphVertex v : getNodesSortedByValue() ) {
+			if( v.getFork() != null )
+				rank = v.getFork().setValues( rank );
+			else
+				v.setValue( rank++ );
+		}
+
+		// resolve the event at the far end of every edge into a fork
+		for( ReebGraphVertex w : this ) {
+			for( int k = 0; k < w.neighbors.size(); k++ ) {
+				ReebGraphVertex n = w.neighbors.get(k);
+				if( n.getFork() == null ) continue;
+				if( w.ends == null ) w.ends = new int[w.neighbors.size()];
+				w.ends[k] = n.getFork().endFor( w );
 			}
-		});
-		return sortedNodes;
+		}
+		for( ReebGraphVertex v : this ) {
+			if( v.getFork() != null ) v.getFork().endsResolved();
+		}
+	}
+
+	public boolean hasForks() { return hasForks; }
+
+	/**
+	 * The vertices plus the extra events of any native forks, i.e. everything
+	 * a pairing assigns a partner to, numbered in value order. Built on first
+	 * use and kept, with the partners set by the last pairing, until the
+	 * graph or its values change.
+	 */
+	public ReebGraphCriticalPoints getCriticalPoints() {
+		if( criticalPoints == null || criticalModCount != modCount ) {
+			criticalPoints = new ReebGraphCriticalPoints( this );
+			criticalModCount = modCount;
+		}
+		return criticalPoints;
+	}
+
+	public void invalidateSortedOrder() {
+		sortedNodes = null;
+		criticalPoints = null;
+	}
+
+	@Override
+	public synchronized ReebGraphVertex set( int index, ReebGraphVertex element ) {
+		sortedNodes = null;
+		criticalPoints = null;
+		return super.set( index, element );
+	}
+
+	@Override
+	public synchronized void setElementAt( ReebGraphVertex obj, int index ) {
+		sortedNodes = null;
+		criticalPoints = null;
+		super.setElementAt( obj, index );
+	}
+
+	/*
+	 * Stable sort by value, done as a primitive sort of (value bits, position)
+	 * keys rather than with a boxed comparator.
+	 */
+	private static ArrayList<ReebGraphVertex> sortByValue( List<ReebGraphVertex> verts ) {
+		long [] keys = new long[verts.size()];
+		for( int i = 0; i < keys.length; i++ ) {
+			keys[i] = sortKey( verts.get(i), i );
+		}
+		Arrays.parallelSort( keys );
+
+		ArrayList<ReebGraphVertex> ret = new ArrayList<ReebGraphVertex>( keys.length );
+		for( long k : keys ) {
+			ret.add( verts.get( (int)k ) );
+		}
+		return ret;
+	}
+
+	private static long sortKey( ReebGraphVertex v, int position ) {
+		return sortKey( v.value(), position );
+	}
+
+	// float bits flipped so that signed integer order matches float order
+	protected static long sortKey( float val, int position ) {
+		if( val == 0.0f ) val = 0.0f;
+		int bits = Float.floatToIntBits( val );
+		bits ^= (bits >> 31) & 0x7fffffff;
+		return ((long)bits << 32) | (position & 0xffffffffL);
 	}
 	
 
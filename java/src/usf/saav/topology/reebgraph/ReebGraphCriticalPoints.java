@@ -0,0 +1,170 @@
+package usf.saav.topology.reebgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import usf.saav.topology.TopoTreeNode.NodeType;
+
+/**
+ * The critical points of a ReebGraph, numbered in ascending value order. A
+ * vertex is one critical point and a native fork (see ReebGraphFork) one per
+ * event, the events of a fork taking consecutive numbers, so events need no
+ * objects of their own. Types, adjacency and partners are kept in arrays
+ * indexed by number; comparing two numbers compares their values.
+ *
+ * Adjacency is at the level of events: edges to a native fork end at the
+ * event they attach to, and each event also sees its neighbors in the
+ * fork's chain. In every other respect it follows the neighbor lists.
+ */
+public class ReebGraphCriticalPoints {
+
+	private ReebGraphVertex [] vertex;
+	private NodeType [] type;
+	private int [] first;
+	private int [] adjStart;
+	private int [] adj;
+	private int [] partner;
+
+
+	ReebGraphCriticalPoints( ReebGraph rg ) {
+		ArrayList<ReebGraphVertex> sorted = rg.getNodesSortedByValue();
+
+		// number the events of every vertex in value order
+		first = new int[rg.size()];
+		int n = 0;
+		for( ReebGraphVertex v : sorted ) {
+			first[v.getID()] = n;
+			n += ( v.getFork() == null ) ? 1 : v.getFork().size();
+		}
+
+		vertex = new ReebGraphVertex[n];
+		type = new NodeType[n];
+		adjStart = new int[n+1];
+		for( ReebGraphVertex v : sorted ) {
+			ReebGraphFork f = v.getFork();
+			int c = first[v.getID()];
+			if( f == null ) {
+				vertex[c] = v;
+				type[c] = v.getType();
+				adjStart[c+1] = v.neighbors.size();
+				continue;
+			}
+			for( int i = 0; i < f.size(); i++ ) {
+				vertex[c+i] = v;
+				type[c+i] = f.getType(i);
+				if( i > 0 ) adjStart[c+i+1]++;
+				if( i < f.size()-1 ) adjStart[c+i+1]++;
+			}
+			for( int k = 0; k < v.neighbors.size(); k++ ) {
+				adjStart[c+f.getSlotEvent(k)+1]++;
+			}
+		}
+		for( int c = 0; c < n; c++ ) {
+			adjStart[c+1] += adjStart[c];
+		}
+
+		// chain neighbors first, then edges in neighbor-list order
+		adj = new int[adjStart[n]];
+		int [] fill = Arrays.copyOf( adjStart, n );
+		for( ReebGraphVertex v : sorted ) {
+			ReebGraphFork f = v.getFork();
+			int c = first[v.getID()];
+			if( f != null ) {
+				for( int i = 0; i < f.size(); i++ ) {
+					if( i > 0 ) adj[fill[c+i]++] = c+i-1;
+					if( i < f.size()-1 ) adj[fill[c+i]++] = c+i+1;
+				}
+			}
+			for( int k = 0; k < v.neighbors.size(); k++ ) {
+				int e = ( f == null ) ? c : c+f.getSlotEvent(k);
+				int far = first[v.neighbors.get(k).getID()];
+				if( v.ends != null ) far += v.ends[k];
+				adj[fill[e]++] = far;
+			}
+		}
+
+		partner = new int[n];
+		clearPartners();
+	}
+
+	public int size() { return vertex.length; }
+
+	/**
+	 * @return the vertex of critical point c; for a fork event, the vertex
+	 *         of the fork
+	 */
+	public ReebGraphVertex getVertex( int c ) { return vertex[c]; }
+
+	public NodeType getType( int c ) { return type[c]; }
+
+	public float getValue( int c ) {
+		ReebGraphVertex v = vertex[c];
+		ReebGraphFork f = v.getFork();
+		if( f == null ) return v.value();
+		return v.value() + ( c - first[v.getID()] - f.getMain() );
+	}
+
+	// neighbors of c are getNeighbor(i) for neighborStart(c) <= i < neighborEnd(c)
+	public int neighborStart( int c ) { return adjStart[c]; }
+	public int neighborEnd( int c ) { return adjStart[c+1]; }
+	public int getNeighbor( int i ) { return adj[i]; }
+
+	/**
+	 * @return the critical point of v, or the first event if v is a native
+	 *         fork
+	 */
+	public int of( ReebGraphVertex v ) { return first[v.getID()]; }
+
+	/**
+	 * @return the first unpaired event of the given type if v is a native
+	 *         fork (the last event of that type if all are paired),
+	 *         otherwise the critical point of v
+	 */
+	public int criticalPoint( ReebGraphVertex v, NodeType t ) {
+		ReebGraphFork f = v.getFork();
+		if( f == null ) return first[v.getID()];
+		int i = f.criticalPoint( t, partner, first[v.getID()] );
+		return ( i == -1 ) ? -1 : first[v.getID()] + i;
+	}
+
+	/**
+	 * @return the number of events of v of the given type that have no
+	 *         partner
+	 */
+	public int countUnpaired( ReebGraphVertex v, NodeType t ) {
+		ReebGraphFork f = v.getFork();
+		if( f == null ) return ( type[first[v.getID()]] == t && !isPaired( first[v.getID()] ) ) ? 1 : 0;
+		return f.countUnpaired( t, partner, first[v.getID()] );
+	}
+
+	/**
+	 * @return the partner of c, or -1
+	 */
+	public int getPartner( int c ) { return partner[c]; }
+
+	public boolean isPaired( int c ) { return partner[c] != -1; }
+
+	/**
+	 * Pairs a with b. Where both are whole vertices, the vertices are paired
+	 * as well, so ReebGraphVertex.getPartner() still reports the pair.
+	 */
+	public void setPartners( int a, int b ) {
+		partner[a] = b;
+		partner[b] = a;
+		if( vertex[a].getFork() == null && vertex[b].getFork() == null ) {
+			vertex[a].setPartner( vertex[b] );
+			vertex[b].setPartner( vertex[a] );
+		}
+	}
+
+	public void clearPartners() {
+		Arrays.fill( partner, -1 );
+		for( int c = 0; c < vertex.length; c++ ) {
+			if( vertex[c].getFork() == null )
+				vertex[c].setPartner( null );
+			else
+				vertex[c].getFork().resetCursors();
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+package usf.saav.topology.reebgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import usf.saav.topology.TopoTreeNode.NodeType;
+
+/**
+ * The critical events of a vertex that is more than a single degree-3 fork or
+ * extremum: a k-way up/down fork, a double fork, or a fork that is also a min
+ * or max. Conditioning would split such a vertex into a chain of degree-3
+ * vertices with epsilon offsets; here the chain exists only as events with
+ * consecutive ranks, so the graph itself is not enlarged. Events are indices
+ * into the fork; ReebGraphCriticalPoints numbers them alongside the other
+ * critical points and keeps their adjacency and partners.
+ *
+ * In ascending order the events are: a min (no lower neighbors), the
+ * downforks D(b-1)..D(1) (b lower neighbors), the upforks U(1)..U(a-1) (a
+ * upper neighbors) and a max (no upper neighbors). The vertex itself stands
+ * for D(1), or U(1) if it has fewer than two lower neighbors. Lower neighbor j
+ * attaches to D(j) and upper neighbor j to U(j), the last two of each sharing
+ * the end of their chain, which is the shape condition() produces.
+ */
+public class ReebGraphFork {
+
+	private ReebGraphVertex vertex;
+	private NodeType [] types;
+	private int [] slotEvent;
+	private int main;
+
+	// first unpaired event of each type, for criticalPoint()
+	private int [] cursor = new int[NodeType.values().length];
+
+	// transient while far ends are resolved
+	private IdentityHashMap<ReebGraphVertex,Integer> nextSlot;
+	private int [] sameNeighbor;
+
+
+	/**
+	 * Returns the events of v, or null if v is a plain fork, extremum or
+	 * non-critical vertex. Values must be distinct ranks.
+	 */
+	static ReebGraphFork create( ReebGraphVertex v ) {
+		int below = 0, above = 0;
+		for( ReebGraphVertex n : v.neighbors ) {
+			if( n.value() < v.value() ) below++;
+			if( n.value() > v.value() ) above++;
+		}
+		boolean needed = below > 2 || above > 2
+				|| ( below >= 2 && above >= 2 )
+				|| ( below == 0 && above >= 2 )
+				|| ( above == 0 && below >= 2 );
+		return needed ? new ReebGraphFork( v, below, above ) : null;
+	}
+
+	private ReebGraphFork( ReebGraphVertex v, int below, int above ) {
+		vertex = v;
+		v.setFork( this );
+
+		ArrayList<NodeType> t = new ArrayList<NodeType>();
+		if( below == 0 ) t.add( NodeType.LEAF_MIN );
+		for( int i = 1; i < below; i++ ) t.add( NodeType.DOWNFORK );
+		for( int i = 1; i < above; i++ ) t.add( NodeType.UPFORK );
+		if( above == 0 ) t.add( NodeType.LEAF_MAX );
+		types = t.toArray( new NodeType[t.size()] );
+
+		int firstDown = ( below == 0 ) ? 1 : 0;
+		int firstUp   = firstDown + Math.max( 0, below-1 );
+		main          = ( below >= 2 ) ? firstUp-1 : firstUp;
+
+		// D(j) sits at firstUp-j, U(j) at firstUp+j-1
+		slotEvent = new int[v.neighbors.size()];
+		int d = 0, u = 0;
+		for( int k = 0; k < slotEvent.length; k++ ) {
+			ReebGraphVertex n = v.neighbors.get(k);
+			if( n.value() < v.value() ) {
+				d++;
+				slotEvent[k] = ( below >= 2 ) ? firstUp - Math.min( d, below-1 ) : firstUp;
+			}
+			else {
+				u++;
+				slotEvent[k] = ( above >= 2 ) ? firstUp + Math.min( u, above-1 ) - 1 : firstUp-1;
+			}
+		}
+	}
+
+	public ReebGraphVertex getVertex() { return vertex; }
+
+	public int size() { return types.length; }
+
+	public NodeType getType( int i ) { return types[i]; }
+
+	/**
+	 * @return the event the vertex itself stands for; its value is the
+	 *         vertex's value
+	 */
+	public int getMain() { return main; }
+
+	/**
+	 * @return the event that edge k of the neighbor list attaches to
+	 */
+	int getSlotEvent( int k ) { return slotEvent[k]; }
+
+
+	/**
+	 * Gives the events consecutive values starting at rank.
+	 *
+	 * @return the next free rank
+	 */
+	int setValues( int rank ) {
+		vertex.setValue( rank + main );
+		return rank + types.length;
+	}
+
+	/**
+	 * The event at this vertex's end of an edge to n. Repeated edges to the
+	 * same neighbor are matched in neighbor-list order.
+	 */
+	int endFor( ReebGraphVertex n ) {
+		if( nextSlot == null ) {
+			nextSlot = new IdentityHashMap<ReebGraphVertex,Integer>();
+			sameNeighbor = new int[slotEvent.length];
+			for( int k = slotEvent.length-1; k >= 0; k-- ) {
+				Integer prev = nextSlot.put( vertex.neighbors.get(k), k );
+				sameNeighbor[k] = ( prev == null ) ? -1 : prev;
+			}
+		}
+		int k = nextSlot.get( n );
+		nextSlot.put( n, sameNeighbor[k] );
+		return slotEvent[k];
+	}
+
+	// once the far end of every edge has been resolved
+	void endsResolved() {
+		nextSlot = null;
+		sameNeighbor = null;
+	}
+
+	/**
+	 * The first event of the given type that has no partner yet, or the last
+	 * event of that type if all are paired; -1 if there is none. Partners
+	 * are those of the critical points numbered from base.
+	 */
+	int criticalPoint( NodeType type, int [] partner, int base ) {
+		int c = type.ordinal();
+		int last = -1;
+		for( int i = cursor[c]; i < types.length; i++ ) {
+			if( types[i] != type ) continue;
+			last = i;
+			if( partner[base+i] == -1 ) {
+				cursor[c] = i;
+				return i;
+			}
+		}
+		if( last == -1 ) {
+			for( int i = types.length-1; i >= 0; i-- ) {
+				if( types[i] == type ) return i;
+			}
+			return -1;
+		}
+		cursor[c] = last;
+		return last;
+	}
+
+	/**
+	 * Number of events of the given type that have no partner.
+	 */
+	int countUnpaired( NodeType type, int [] partner, int base ) {
+		int ret = 0;
+		for( int i = 0; i < types.length; i++ ) {
+			if( types[i] == type && partner[base+i] == -1 ) ret++;
+		}
+		return ret;
+	}
+
+	void resetCursors() {
+		Arrays.fill( cursor, 0 );
+	}
+
+}
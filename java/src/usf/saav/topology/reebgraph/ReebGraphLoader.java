@@ -2,28 +2,117 @@ package usf.saav.topology.reebgraph;
 
 
 import usf.saav.cmd.MergePairingInput;
+import usf.saav.common.FlightEvents;
+import usf.saav.common.Parallel;
+import usf.saav.common.StageProfile;
+import usf.saav.common.algorithm.ConcurrentDisjointSet;
+import usf.saav.common.algorithm.IntDisjointSet;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 
 public class ReebGraphLoader extends ReebGraph {
 
 	private static final long serialVersionUID = 7889260039234787058L;
 
+	private static final FlightEvents.Type LOAD_EVENT = FlightEvents.define( "Load", "Load Reeb Graph",
+			new String[]{ "vertices", "edges", "components" },
+			new Class<?>[]{ long.class, long.class, long.class } );
+	private static final FlightEvents.Type CONDITION_EVENT = FlightEvents.define( "Condition", "Condition Reeb Graph",
+			new String[]{ "vertices", "conditionedVertices" },
+			new Class<?>[]{ long.class, long.class } );
+
+    /**
+     * How load() builds graphs. Options are immutable; each setter returns a
+     * copy, so one instance can be shared and refined per call, e.g.
+     * {@code new Options().nativeForks(true).profile(p)}. The defaults split
+     * connected components and condition them with the serial queue.
+     */
+    public static final class Options {
+        private final boolean split;
+        private final boolean condition;
+        private final boolean parallelCondition;
+        private final boolean nativeForks;
+        private final boolean showWarnings;
+        private final StageProfile profile;
+
+        public Options() {
+            this(true, true, false, false, false, null);
+        }
+
+        private Options(boolean split, boolean condition, boolean parallelCondition,
+                        boolean nativeForks, boolean showWarnings, StageProfile profile) {
+            this.split = split;
+            this.condition = condition;
+            this.parallelCondition = parallelCondition;
+            this.nativeForks = nativeForks;
+            this.showWarnings = showWarnings;
+            this.profile = profile;
+        }
+
+        /** return one graph per connected component */
+        public Options split(boolean b) {
+            return new Options(b, condition, parallelCondition, nativeForks, showWarnings, profile);
+        }
+
+        /** remove non-critical vertices and split degenerate ones */
+        public Options condition(boolean b) {
+            return new Options(split, b, parallelCondition, nativeForks, showWarnings, profile);
+        }
+
+        /** condition each graph with conditionParallel() rather than the serial queue */
+        public Options parallelCondition(boolean b) {
+            return new Options(split, condition, b, nativeForks, showWarnings, profile);
+        }
+
+        /**
+         * when conditioning, only remove non-critical vertices and leave
+         * higher-degree forks to the pairing engines (see
+         * ReebGraph.resetForks()) instead of splitting them
+         */
+        public Options nativeForks(boolean b) {
+            return new Options(split, condition, parallelCondition, b, showWarnings, profile);
+        }
+
+        public Options showWarnings(boolean b) {
+            return new Options(split, condition, parallelCondition, nativeForks, b, profile);
+        }
+
+        /**
+         * if not null, marked after each stage: "load" (vertices and edges,
+         * or reading the file), "rank", "split" (connected components) and
+         * "condition" (gathering and conditioning each component)
+         */
+        public Options profile(StageProfile p) {
+            return new Options(split, condition, parallelCondition, nativeForks, showWarnings, p);
+        }
+
+        public boolean isShowWarnings() { return showWarnings; }
+        public StageProfile getProfile() { return profile; }
+    }
+
     public static ArrayList<ReebGraph> load(MergePairingInput mergePairingInput,
                                                            boolean splitConnComps,
                                                            boolean condition,
                                                            boolean showWarnings) throws Exception {
+        return load(mergePairingInput, new Options().split(splitConnComps).condition(condition).showWarnings(showWarnings));
+    }
+
+    public static ArrayList<ReebGraph> load(MergePairingInput mergePairingInput, Options options) throws Exception {
+        boolean showWarnings = options.showWarnings;
+        StageProfile profile = options.profile;
+        FlightEvents.Span ev = LOAD_EVENT.begin();
         HashMap<Integer, ReebGraphVertex> rvmap = new HashMap<Integer, ReebGraphVertex>();
         ReebGraph tmpRG = new ReebGraph();
 
@@ -42,6 +131,11 @@ public class ReebGraphLoader extends ReebGraph {
             throw new Exception("ERROR: Edge ID array or edge origin IDs have length 0");
         }
 
+        if( options.split ) {
+            return loaded(ev, mergePairingInput.getVertexIds().length, mergePairingInput.getEdgeOriginIds().length,
+                    loadComponents(mergePairingInput, options));
+        }
+
         for(int i = 0; i < mergePairingInput.getVertexIds().length; i++) {
             int v =  mergePairingInput.getVertexIds()[i];
             float fn = mergePairingInput.getVertexWeights()[i];
@@ -67,24 +161,143 @@ public class ReebGraphLoader extends ReebGraph {
             v2.addNeighbor(v1);
         }
 
+        if( profile != null ) profile.mark("load");
+
         tmpRG.resetInternalIDs();
         tmpRG.resetInternalValues();
+        List<ReebGraphVertex> ranked = options.condition ? tmpRG.getNodesSortedByValue() : null;
+        if( profile != null ) profile.mark("rank");
+
+        ArrayList<ReebGraph> ret = new ArrayList<ReebGraph>();
+        if( options.condition )
+            ret.add( condition( rvmap.values(), 0.05f, options, ranked ) );
+        else
+            ret.add( tmpRG );
+        if( profile != null ) profile.mark("condition");
+        return loaded(ev, mergePairingInput.getVertexIds().length, mergePairingInput.getEdgeOriginIds().length, ret);
+    }
+
+    private static ArrayList<ReebGraph> loaded(FlightEvents.Span ev, int vertN, int edgeN, ArrayList<ReebGraph> ret) {
+        if( ev != null ) ev.set(0, vertN).set(1, edgeN).set(2, ret.size()).commit();
+        return ret;
+    }
 
-        if( splitConnComps ) {
-            return extractConnectedGraphs( rvmap.values(), condition );
+    /**
+     * Fused form of load() for split input. Components are labelled while the
+     * edges are linked and neighbor lists are sized from a degree count, so no
+     * whole-graph ReebGraph (or sorted copy of it) is built. Ranks come from a
+     * single primitive sort of the weights; the components are then split
+     * out of that order by bucketComponents() and each is conditioned and
+     * emitted by its own task. Results match the unfused load() exactly.
+     */
+    private static ArrayList<ReebGraph> loadComponents(MergePairingInput mergePairingInput,
+                                                       Options options) throws Exception {
+        boolean showWarnings = options.showWarnings;
+        StageProfile profile = options.profile;
+        int [] vertexIds = mergePairingInput.getVertexIds();
+        float [] vertexWeights = mergePairingInput.getVertexWeights();
+        int [] edgeOriginIds = mergePairingInput.getEdgeOriginIds();
+        int [] edgeDestinationIds = mergePairingInput.getEdgeDestinationIds();
+        int vertN = vertexIds.length;
+
+        // internal ids are input positions, as resetInternalIDs() would assign
+        HashMap<Integer, ReebGraphVertex> rvmap = new HashMap<Integer, ReebGraphVertex>();
+        ReebGraphVertex [] verts = new ReebGraphVertex[vertN];
+        for(int i = 0; i < vertN; i++) {
+            verts[i] = new ReebGraphVertex(vertexWeights[i], vertexWeights[i], vertexIds[i]);
+            verts[i].setID(i);
+            rvmap.put(vertexIds[i], verts[i]);
         }
-        else {
-            ArrayList<ReebGraph> ret = new ArrayList<ReebGraph>();
-            if( condition )
-                ret.add( condition( rvmap.values(), 0.05f ) );
-            else
-                ret.add( tmpRG );
-            return ret;
+
+        // resolve edges and count degrees
+        int [] ends = new int[edgeOriginIds.length*2];
+        int [] degree = new int[vertN];
+        for(int i = 0; i < edgeOriginIds.length; i++) {
+            ReebGraphVertex v1 = rvmap.get(edgeOriginIds[i]);
+            ReebGraphVertex v2 = rvmap.get(edgeDestinationIds[i]);
+
+            if(v1 == null || v2 == null) {
+                throw new Exception("ERROR: Edge input is invalid for edge numbered: " + i);
+            }
+            if( v1 == v2 ) {
+                if( showWarnings ) System.err.println("WARNING: Self referenced edge (ignored) " + v1 + " " + v2 );
+                ends[i*2] = -1;
+                continue;
+            }
+            ends[i*2]   = v1.getID();
+            ends[i*2+1] = v2.getID();
+            degree[v1.getID()]++;
+            degree[v2.getID()]++;
         }
+
+        // link, labelling components as edges arrive
+        for(int i = 0; i < vertN; i++) {
+            verts[i].neighbors = new ArrayList<ReebGraphVertex>( degree[i] );
+        }
+        degree = null;
+        IntDisjointSet djs = new IntDisjointSet( vertN );
+        for(int i = 0; i < ends.length; i += 2) {
+            if( ends[i] == -1 ) continue;
+            verts[ends[i]].addNeighbor(verts[ends[i+1]]);
+            verts[ends[i+1]].addNeighbor(verts[ends[i]]);
+            djs.union( ends[i], ends[i+1] );
+        }
+        ends = null;
+        if( profile != null ) profile.mark("load");
+
+        // rank by weight; vertices shadowed by a repeated id are ranked too,
+        // as they would be in the whole graph
+        long [] keys = new long[vertN];
+        for(int i = 0; i < vertN; i++) {
+            keys[i] = sortKey( vertexWeights[i], i );
+        }
+        Arrays.parallelSort( keys );
+        for(int i = 0; i < vertN; i++) {
+            verts[(int)keys[i]].setValue(i);
+        }
+        if( profile != null ) profile.mark("rank");
+
+        // number components in the order they are first encountered
+        int [] root = new int[vertN];
+        for(int i = 0; i < vertN; i++) {
+            root[i] = djs.find( i );
+        }
+        int [] compOf = new int[vertN];
+        Arrays.fill( compOf, -1 );
+        int compN = 0;
+        boolean [] live = new boolean[vertN];
+        for( ReebGraphVertex v : rvmap.values() ) {
+            live[v.getID()] = true;
+            if( compOf[root[v.getID()]] == -1 ) compOf[root[v.getID()]] = compN++;
+        }
+        rvmap = null;
+
+        ArrayList<ReebGraphVertex> ranked = new ArrayList<ReebGraphVertex>( vertN );
+        int [] comp = new int[vertN];
+        for(int i = 0; i < vertN; i++) {
+            int v = (int)keys[i];
+            ranked.add( verts[v] );
+            comp[i] = live[v] ? compOf[root[v]] : -1;
+        }
+        keys = null;
+        ArrayList<List<ReebGraphVertex>> comps = bucketComponents( ranked, comp, compN );
+        if( profile != null ) profile.mark("split");
+
+        ArrayList<ReebGraph> ret = buildComponents( comps, options );
+        if( profile != null ) profile.mark("condition");
+        return ret;
     }
 
 	public static ArrayList<ReebGraph> load(String inputReebGraph,  boolean splitConnComps, boolean condition, boolean showWarnings ) throws Exception {
+		return load( inputReebGraph, new Options().split( splitConnComps ).condition( condition ).showWarnings( showWarnings ) );
+	}
+
+	public static ArrayList<ReebGraph> load(String inputReebGraph, Options options ) throws Exception {
+		boolean showWarnings = options.showWarnings;
+		StageProfile profile = options.profile;
 
+		FlightEvents.Span ev = LOAD_EVENT.begin();
+		int edgeN = 0;
 		HashMap<Integer, ReebGraphVertex> rvmap = new HashMap<Integer, ReebGraphVertex>();
 		BufferedReader reader = new BufferedReader(new FileReader(inputReebGraph));
 		ReebGraph tmpRG = new ReebGraph();
@@ -130,139 +343,443 @@ public class ReebGraphLoader extends ReebGraph {
 
 				v1.addNeighbor(v2);
 				v2.addNeighbor(v1);
+				edgeN++;
 			}
 		}
 
 		reader.close();
+		if( profile != null ) profile.mark("load");
 		
 		tmpRG.resetInternalIDs();
 		tmpRG.resetInternalValues();
+		List<ReebGraphVertex> ranked = ( options.split || options.condition ) ? tmpRG.getNodesSortedByValue() : null;
+		if( profile != null ) profile.mark("rank");
 		
-		if( splitConnComps ) {
-			return extractConnectedGraphs( rvmap.values(), condition );
+		if( options.split ) {
+			return loaded( ev, tmpRG.size(), edgeN, extractConnectedGraphs( rvmap.values(), ranked, options ) );
 		}
 		else {
 			ArrayList<ReebGraph> ret = new ArrayList<ReebGraph>();
-			if( condition )
-				ret.add( condition( rvmap.values(), 0.05f ) );
+			if( options.condition )
+				ret.add( condition( rvmap.values(), 0.05f, options, ranked ) );
 			else
 				ret.add( tmpRG );
-			return ret;
+			if( profile != null ) profile.mark("condition");
+			return loaded( ev, tmpRG.size(), edgeN, ret );
 		}
 
 	}
 
-	private static ArrayList<ReebGraph> extractConnectedGraphs( Collection<ReebGraphVertex> verts, boolean condition ){
-
-		ArrayList<ReebGraph> ret = new ArrayList<ReebGraph>();
-
-		HashSet<ReebGraphVertex> visited = new HashSet<ReebGraphVertex>();		
+	/**
+	 * Components are labelled in parallel with a concurrent disjoint set, and
+	 * each component's vertex list comes straight from the labels by
+	 * bucketComponents(), without walking the graph.
+	 *
+	 * @param ranked all vertices in value order, as already computed for the
+	 *        whole graph; each component reuses its slice rather than sorting
+	 */
+	private static ArrayList<ReebGraph> extractConnectedGraphs( Collection<ReebGraphVertex> verts, List<ReebGraphVertex> ranked, Options options ) throws Exception {
+		StageProfile profile = options.profile;
+
+		// index vertices by internal id
+		int elemN = 0;
 		for( ReebGraphVertex v : verts ) {
-			if( !visited.contains(v) ){
-				ArrayList<ReebGraphVertex> newGraph = new ArrayList<ReebGraphVertex>();
-				dfs( newGraph, v, visited );
-				if( condition )
-					ret.add( condition( newGraph, 0.05f ) );
-				else
-					ret.add( new ReebGraph(newGraph) );
+			elemN = Math.max( elemN, v.getID()+1 );
+		}
+		final ReebGraphVertex [] byID = new ReebGraphVertex[elemN];
+		for( ReebGraphVertex v : verts ) {
+			byID[v.getID()] = v;
+		}
+
+		// label components in parallel over the edge list
+		final ConcurrentDisjointSet djs = new ConcurrentDisjointSet( elemN );
+		Parallel.forRange( elemN, 4096, new Parallel.RangeTask() {
+			@Override public void run( int start, int end ) {
+				for( int i = start; i < end; i++ ) {
+					if( byID[i] == null ) continue;
+					for( ReebGraphVertex n : byID[i].neighbors ) {
+						if( n.getID() > i ) djs.union( i, n.getID() );
+					}
+				}
 			}
+		});
+
+		// label every vertex with its root, then number components in the
+		// order they are first encountered
+		final int [] root = new int[elemN];
+		Parallel.forRange( elemN, 4096, new Parallel.RangeTask() {
+			@Override public void run( int start, int end ) {
+				for( int i = start; i < end; i++ ) {
+					root[i] = djs.find( i );
+				}
+			}
+		});
+		final int [] compOf = new int[elemN];
+		Arrays.fill( compOf, -1 );
+		int compN = 0;
+		for( ReebGraphVertex v : verts ) {
+			if( compOf[root[v.getID()]] == -1 ) compOf[root[v.getID()]] = compN++;
 		}
 
+		// component of each position in the global value order; vertices
+		// shadowed by a repeated id belong to none
+		final List<ReebGraphVertex> order = ranked;
+		final int [] comp = new int[ranked.size()];
+		final int elemCount = elemN;
+		Parallel.forRange( comp.length, 4096, new Parallel.RangeTask() {
+			@Override public void run( int start, int end ) {
+				for( int i = start; i < end; i++ ) {
+					ReebGraphVertex v = order.get(i);
+					boolean member = v.getID() < elemCount && byID[v.getID()] == v;
+					comp[i] = member ? compOf[root[v.getID()]] : -1;
+				}
+			}
+		});
+		ArrayList<List<ReebGraphVertex>> comps = bucketComponents( ranked, comp, compN );
+		if( profile != null ) profile.mark("split");
+
+		ArrayList<ReebGraph> ret = buildComponents( comps, options );
+		if( profile != null ) profile.mark("condition");
 		return ret;
 	}
 
+	/**
+	 * Splits the global value order into one list per component with a
+	 * parallel sort of (component, position) keys, so every list keeps the
+	 * value order. Positions whose component is -1 are dropped.
+	 */
+	private static ArrayList<List<ReebGraphVertex>> bucketComponents( final List<ReebGraphVertex> ranked, final int [] comp, int compN ) throws Exception {
+		final long [] keys = new long[comp.length];
+		Parallel.forRange( keys.length, 4096, new Parallel.RangeTask() {
+			@Override public void run( int start, int end ) {
+				for( int i = start; i < end; i++ ) {
+					keys[i] = ((long)comp[i] << 32) | i;
+				}
+			}
+		});
+		Arrays.parallelSort( keys );
+
+		final ReebGraphVertex [] sorted = new ReebGraphVertex[keys.length];
+		Parallel.forRange( keys.length, 4096, new Parallel.RangeTask() {
+			@Override public void run( int start, int end ) {
+				for( int i = start; i < end; i++ ) {
+					sorted[i] = ranked.get( (int)keys[i] );
+				}
+			}
+		});
+
+		List<ReebGraphVertex> all = Arrays.asList( sorted );
+		ArrayList<List<ReebGraphVertex>> ret = new ArrayList<List<ReebGraphVertex>>( compN );
+		int start = 0;
+		while( start < keys.length && keys[start] < 0 ) start++;
+		for( int c = 0; c < compN; c++ ) {
+			int end = start;
+			while( end < keys.length && (int)(keys[end] >>> 32) == c ) end++;
+			ret.add( all.subList( start, end ) );
+			start = end;
+		}
+		return ret;
+	}
+
+	/**
+	 * Builds each component independently, from its vertices in value order.
+	 */
+	private static ArrayList<ReebGraph> buildComponents( ArrayList<List<ReebGraphVertex>> comps, final Options options ) throws Exception {
+		ArrayList<Callable<ReebGraph>> tasks = new ArrayList<Callable<ReebGraph>>( comps.size() );
+		for( final List<ReebGraphVertex> compRanked : comps ) {
+			tasks.add( new Callable<ReebGraph>() {
+				@Override public ReebGraph call() throws Exception {
+					if( options.condition )
+						return condition( compRanked, 0.05f, options, compRanked );
+					ReebGraph ret = new ReebGraph();
+					ret.addAll( compRanked );
+					ret.resetInternalValues( compRanked );
+					return ret;
+				}
+			});
+		}
+
+		return new ArrayList<ReebGraph>( Parallel.invokeAll( tasks ) );
+	}
 
-	private static void dfs( ArrayList<ReebGraphVertex> newGraph, ReebGraphVertex curVertex, HashSet<ReebGraphVertex> visited ) {
-		//Stack<ReebGraphVertex> proc = new ArrayList<ReebGraphVertex>();
-		Deque<ReebGraphVertex> proc = new ArrayDeque<ReebGraphVertex>();
-		proc.add(curVertex);
-		while(!proc.isEmpty()) {
-			//ReebGraphVertex tos = proc.poll();
-			ReebGraphVertex tos = proc.pop();
-			if( visited.contains(tos) ) continue;
-			visited.add(tos);
-			newGraph.add(tos);
-			for( ReebGraphVertex n : tos.neighbors) {
-				//if( !visited.contains(n) ) proc.add(n);
-				if( !visited.contains(n) ) proc.push(n);
+	// conditioning steps, as classified by conditionType()
+	private static final int COND_KEEP         = 0;
+	private static final int COND_UNKNOWN      = 1;
+	private static final int COND_NONCRITICAL  = 2;
+	private static final int COND_DOUBLEFORK   = 3;
+	private static final int COND_SADDLEMAX    = 4;
+	private static final int COND_SADDLEMIN    = 5;
+	private static final int COND_MONKEYDOWN   = 6;
+	private static final int COND_MONKEYUP     = 7;
+
+	/**
+	 * Classifies the conditioning step needed by rv. Only reads rv and the
+	 * values of its neighbors. The epsilon offset for the step is written to
+	 * diff[idx].
+	 */
+	private static int conditionType( ReebGraphVertex rv, float epsilon_percent, float [] diff, int idx ) {
+		int cntAbove=0;
+		int cntBelow=0;
+		float aboveDif = Float.MAX_VALUE;
+		float belowDif = Float.MAX_VALUE;
+		for( ReebGraphVertex n : rv.neighbors ) {
+			if(rv.value()<n.value()) {
+				cntAbove++;
+				aboveDif = Math.min(aboveDif,n.value()-rv.value());
+			}
+			if(rv.value()>n.value()) {
+				cntBelow++;
+				belowDif = Math.min(belowDif,rv.value()-n.value());
 			}
 		}
-		
+
+		// non-critical node
+		if( cntAbove==1 && cntBelow==1 ) return COND_NONCRITICAL;
+
+		// double fork (upfork and downfork)
+		if( cntAbove>=2 && cntBelow>=2 ) { diff[idx] = stepUp( rv.value(), aboveDif, epsilon_percent ); return COND_DOUBLEFORK; }
+
+		// saddle/max
+		if( cntAbove==0 && cntBelow>=2 ) { diff[idx] = stepUp( rv.value(), belowDif, epsilon_percent ); return COND_SADDLEMAX; }
+
+		//saddle/min
+		if( cntAbove>=2 && cntBelow==0 ) { diff[idx] = stepDown( rv.value(), aboveDif, epsilon_percent ); return COND_SADDLEMIN; }
+
+		// downfork with more than 2 connections
+		if( cntAbove==1 && cntBelow>2 ) { diff[idx] = stepDown( rv.value(), belowDif, epsilon_percent ); return COND_MONKEYDOWN; }
+
+		// upfork with more than 2 connections
+		if( cntBelow==1 && cntAbove>2 ) { diff[idx] = stepUp( rv.value(), aboveDif, epsilon_percent ); return COND_MONKEYUP; }
+
+		if( cntAbove==1 && cntBelow==2 ) return COND_KEEP;
+		if( cntAbove==2 && cntBelow==1 ) return COND_KEEP;
+		if( cntAbove==0 && cntBelow==1 ) return COND_KEEP;
+		if( cntAbove==1 && cntBelow==0 ) return COND_KEEP;
+
+		System.out.println("WARNING: " + cntBelow + " " + cntAbove );
+		return COND_UNKNOWN;
+	}
+
+	// Values are ranks while conditioning. A step is epsilon_percent of the
+	// gap to the nearest neighbor, but also of what is left before the next
+	// rank: the steps along one vertex's chain then add up to less than one,
+	// so the chain never passes a vertex it is not adjacent to.
+	private static float stepUp( float value, float dif, float epsilon_percent ) {
+		return Math.min( dif, (float)Math.floor( value ) + 1 - value ) * epsilon_percent;
+	}
+
+	private static float stepDown( float value, float dif, float epsilon_percent ) {
+		return Math.min( dif, value - (float)Math.ceil( value ) + 1 ) * epsilon_percent;
+	}
+
+	/**
+	 * conditionType(), but when forks are not being expanded, only
+	 * non-critical vertices need a step.
+	 */
+	private static int conditionType( ReebGraphVertex rv, float epsilon_percent, float [] diff, int idx, boolean expandForks ) {
+		int type = conditionType( rv, epsilon_percent, diff, idx );
+		if( !expandForks && type > COND_NONCRITICAL ) return COND_KEEP;
+		return type;
+	}
+
+	/**
+	 * Applies a conditioning step to rv. Only the neighbor lists of rv, its
+	 * neighbors, and newly created vertices are modified; vertices that need
+	 * further conditioning are added to proc.
+	 */
+	private static void conditionApply( int type, ReebGraphVertex rv, Queue<ReebGraphVertex> proc, float diff ) {
+		switch( type ) {
+			case COND_NONCRITICAL:	conditionNonCritical( rv );					break;
+			case COND_DOUBLEFORK:	conditionDoubleFork( rv, proc, diff );		break;
+			case COND_SADDLEMAX:	conditionSaddleMax( rv, proc, diff );		break;
+			case COND_SADDLEMIN:	conditionSaddleMin( rv, proc, diff );		break;
+			case COND_MONKEYDOWN:	conditionMonkeyDownFork( rv, proc, diff );	break;
+			case COND_MONKEYUP:		conditionMonkeyUpFork( rv, proc, diff );	break;
+		}
+	}
+
+	/**
+	 * @param ranked the input vertices in value order; conditioning keeps these
+	 *        values, so only the vertices it creates need to be sorted
+	 */
+	private static ReebGraph condition( Collection<ReebGraphVertex> verts, float epsilon_percent, Options options, List<ReebGraphVertex> ranked ) throws Exception {
+		FlightEvents.Span ev = CONDITION_EVENT.begin();
+		int vertN = verts.size();
+		ReebGraph ret;
+		if( options.parallelCondition )
+			ret = conditionParallel( verts, epsilon_percent, !options.nativeForks, ranked );
+		else
+			ret = condition( verts, epsilon_percent, !options.nativeForks, ranked );
+		if( options.nativeForks ) ret.resetForks();
+		if( ev != null ) ev.set( 0, vertN ).set( 1, ret.size() ).commit();
+		return ret;
 	}
 
-	private static ReebGraph condition( Collection<ReebGraphVertex> verts, float epsilon_percent  ) {
+	private static ReebGraph condition( Collection<ReebGraphVertex> verts, float epsilon_percent, boolean expandForks, List<ReebGraphVertex> ranked ) {
 
 		Queue<ReebGraphVertex> proc = new LinkedList<ReebGraphVertex>( verts );
 		ReebGraph ret = new ReebGraph();
+		float [] diff = new float[1];
 		
 		while( !proc.isEmpty() ) {
 			ReebGraphVertex rv = proc.poll();
 
-			int cntAbove=0;
-			int cntBelow=0;
-			float aboveDif = Float.MAX_VALUE;
-			float belowDif = Float.MAX_VALUE;
-			for( ReebGraphVertex n : rv.neighbors ) {
-				if(rv.value()<n.value()) {
-					cntAbove++;
-					aboveDif = Math.min(aboveDif,n.value()-rv.value());
+			int type = conditionType( rv, epsilon_percent, diff, 0, expandForks );
+			if( type == COND_KEEP || type == COND_UNKNOWN ) {
+				ret.add( rv );
+				continue;
+			}
+			conditionApply( type, rv, proc, diff[0] );
+			
+		}
+		ret.resetInternalValues( ranked );
+		return ret;
+
+	}
+
+	/**
+	 * Parallel variant of condition(). Work proceeds in rounds: every pending
+	 * vertex is classified, then each vertex needing a step reserves its closed
+	 * neighborhood, with priority given by a hash of its position in the round.
+	 * Vertices that win their whole neighborhood touch disjoint neighbor lists
+	 * and are conditioned concurrently; the rest wait for the next round.
+	 * Reservation winners depend only on the round's ordering, never on thread
+	 * timing, so the conditioned graph is the same on every run.
+	 *
+	 * It is not the graph condition() builds: vertices are split in a
+	 * different order, so a degenerate vertex's chain may be linked to its
+	 * neighbors differently and the created vertices ranked differently.
+	 * Every chain still stays within its vertex's rank (see stepUp()), so
+	 * the pairs, by global id, type and real value, are those of condition();
+	 * DifferentialTestCLI compares the two.
+	 */
+	private static ReebGraph conditionParallel( Collection<ReebGraphVertex> verts, final float epsilon_percent, final boolean expandForks, List<ReebGraphVertex> ranked ) throws Exception {
+
+		ArrayList<ReebGraphVertex> pending = new ArrayList<ReebGraphVertex>( verts );
+		ReebGraph ret = new ReebGraph();
+
+		// internal ids index the reservation table while conditioning
+		int nextID = 0;
+		for( ReebGraphVertex v : pending ) {
+			v.setID( nextID++ );
+		}
+		AtomicIntegerArray owner = newOwnerTable( nextID );
+
+		while( !pending.isEmpty() ) {
+			final ReebGraphVertex [] curr = pending.toArray( new ReebGraphVertex[pending.size()] );
+			final int   [] type = new int[curr.length];
+			final float [] diff = new float[curr.length];
+			final boolean [] selected = new boolean[curr.length];
+			final AtomicIntegerArray reserve = owner;
+
+			// classify and reserve neighborhoods
+			Parallel.forRange( curr.length, 1024, new Parallel.RangeTask() {
+				@Override public void run( int start, int end ) {
+					for( int i = start; i < end; i++ ) {
+						type[i] = conditionType( curr[i], epsilon_percent, diff, i, expandForks );
+						if( type[i] == COND_KEEP || type[i] == COND_UNKNOWN ) continue;
+						reserve( reserve, curr[i].getID(), i );
+						for( ReebGraphVertex n : curr[i].neighbors ) {
+							reserve( reserve, n.getID(), i );
+						}
+					}
+				}
+			});
+
+			// check reservations, then clear them while neighborhoods are unchanged
+			Parallel.forRange( curr.length, 1024, new Parallel.RangeTask() {
+				@Override public void run( int start, int end ) {
+					for( int i = start; i < end; i++ ) {
+						if( type[i] == COND_KEEP || type[i] == COND_UNKNOWN ) continue;
+						boolean own = reserve.get( curr[i].getID() ) == i;
+						for( ReebGraphVertex n : curr[i].neighbors ) {
+							own = own && reserve.get( n.getID() ) == i;
+						}
+						selected[i] = own;
+					}
 				}
-				if(rv.value()>n.value()) {
-					cntBelow++;
-					belowDif = Math.min(belowDif,rv.value()-n.value());
+			});
+			Parallel.forRange( curr.length, 1024, new Parallel.RangeTask() {
+				@Override public void run( int start, int end ) {
+					for( int i = start; i < end; i++ ) {
+						if( type[i] == COND_KEEP || type[i] == COND_UNKNOWN ) continue;
+						reserve.set( curr[i].getID(), -1 );
+						for( ReebGraphVertex n : curr[i].neighbors ) {
+							reserve.set( n.getID(), -1 );
+						}
+					}
 				}
+			});
+
+			// condition the selected vertices
+			final List<Queue<ReebGraphVertex>> requeue = new ArrayList<Queue<ReebGraphVertex>>( curr.length );
+			for( int i = 0; i < curr.length; i++ ) {
+				requeue.add( selected[i] ? new LinkedList<ReebGraphVertex>() : null );
 			}
+			Parallel.forRange( curr.length, 256, new Parallel.RangeTask() {
+				@Override public void run( int start, int end ) {
+					for( int i = start; i < end; i++ ) {
+						if( !selected[i] ) continue;
+						conditionApply( type[i], curr[i], requeue.get(i), diff[i] );
+					}
+				}
+			});
 
-			// non-critical node
-			if( cntAbove==1 && cntBelow==1 ) {
-				conditionNonCritical( rv );
-				continue;
+			// gather the next round in position order
+			pending = new ArrayList<ReebGraphVertex>();
+			for( int i = 0; i < curr.length; i++ ) {
+				if( type[i] == COND_KEEP || type[i] == COND_UNKNOWN ) {
+					ret.add( curr[i] );
+				}
+				else if( !selected[i] ) {
+					pending.add( curr[i] );
+				}
+				else {
+					for( ReebGraphVertex v : requeue.get(i) ) {
+						v.setID( nextID++ );
+						pending.add( v );
+					}
+				}
+			}
+			if( nextID > owner.length() ) {
+				owner = newOwnerTable( Math.max( nextID, owner.length()*2 ) );
 			}
-			
-			// double fork (upfork and downfork)
-			if( cntAbove>=2 && cntBelow>=2 ) {
-				conditionDoubleFork( rv, proc, aboveDif*epsilon_percent );
-				continue;
-			}			
-			
-			// saddle/max 
-			if( cntAbove==0 && cntBelow>=2 ) {
-				conditionSaddleMax( rv, proc, belowDif*epsilon_percent );
-				continue;
-			}					
-			
-			//saddle/min
-			if( cntAbove>=2 && cntBelow==0 ) {
-				conditionSaddleMin( rv, proc, aboveDif*epsilon_percent );
-				continue;
-			}		
-			
-			// downfork with more than 2 connections
-			if( cntAbove==1 && cntBelow>2 ) {
-				conditionMonkeyDownFork( rv, proc, belowDif*epsilon_percent );
-				continue;
-			}			
-			
-			// upfork with more than 2 connections
-			if( cntBelow==1 && cntAbove>2 ) {
-				conditionMonkeyUpFork( rv, proc, aboveDif*epsilon_percent );
-				continue;
-			}			
-			
-			if( cntAbove==1 && cntBelow==2 ) { ret.add( rv ); continue; }
-			if( cntAbove==2 && cntBelow==1 ) { ret.add( rv ); continue; }
-			if( cntAbove==0 && cntBelow==1 ) { ret.add( rv ); continue; }
-			if( cntAbove==1 && cntBelow==0 ) { ret.add( rv ); continue; }
-			
-			System.out.println("WARNING: " + cntBelow + " " + cntAbove );
-			
-			ret.add( rv );
-			
 		}
-		ret.resetInternalIDs();
-		ret.resetInternalValues();
+
+		ret.resetInternalValues( ranked );
 		return ret;
+	}
 
+	private static AtomicIntegerArray newOwnerTable( int size ) {
+		AtomicIntegerArray ret = new AtomicIntegerArray( size );
+		for( int i = 0; i < size; i++ ) {
+			ret.set( i, -1 );
+		}
+		return ret;
+	}
+
+	// lower hash wins; ties go to the earlier position
+	private static boolean reservesBefore( int pos0, int pos1 ) {
+		int h0 = mixPosition( pos0 );
+		int h1 = mixPosition( pos1 );
+		return h0 < h1 || ( h0 == h1 && pos0 < pos1 );
+	}
+
+	private static int mixPosition( int pos ) {
+		pos ^= pos >>> 16;
+		pos *= 0x85ebca6b;
+		pos ^= pos >>> 13;
+		pos *= 0xc2b2ae35;
+		pos ^= pos >>> 16;
+		return pos;
+	}
+
+	private static void reserve( AtomicIntegerArray owner, int slot, int pos ) {
+		int cur = owner.get( slot );
+		while( cur == -1 || reservesBefore( pos, cur ) ) {
+			if( owner.compareAndSet( slot, cur, pos ) ) return;
+			cur = owner.get( slot );
+		}
 	}
 
 	private static void conditionNonCritical( ReebGraphVertex rv ) {
@@ -15,6 +15,12 @@ public class ReebGraphVertex implements TopoGraph.Vertex, TopoTreeNode {
 	private ReebGraphVertex topoPartner;
 	public ArrayList<ReebGraphVertex> neighbors = new ArrayList<ReebGraphVertex>();
 
+	// set when this vertex is a native fork
+	private ReebGraphFork fork;
+	// fork event at the far end of each edge (0 for a plain neighbor), when
+	// some neighbor is a native fork
+	int [] ends;
+
 	public ReebGraphVertex( float _val, float _realVal, int _gid ) {
 		val = _val;
 		//id = _id;
@@ -40,6 +46,7 @@ public class ReebGraphVertex implements TopoGraph.Vertex, TopoTreeNode {
 
 	@Override 
 	public NodeType getType() {
+		if( fork != null ) return fork.getType( fork.getMain() );
 		int cntLess=0;
 		int cntMore=0;
 		for( ReebGraphVertex n : neighbors ) {
@@ -54,6 +61,15 @@ public class ReebGraphVertex implements TopoGraph.Vertex, TopoTreeNode {
 	}
 
 
+	void setFork( ReebGraphFork f ) {
+		fork = f;
+	}
+
+	/**
+	 * @return the fork this vertex is, or null
+	 */
+	public ReebGraphFork getFork() { return fork; }
+
 	public void addNeighbor(ReebGraphVertex v){
 		neighbors.add(v);
 	}
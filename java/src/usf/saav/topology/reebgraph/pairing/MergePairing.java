@@ -1,12 +1,14 @@
 package usf.saav.topology.reebgraph.pairing;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.PriorityQueue;
 
-import usf.saav.common.HashDisjointSet;
+import usf.saav.common.FlightEvents;
 import usf.saav.common.SystemX;
+import usf.saav.common.algorithm.IntDisjointSet;
 import usf.saav.topology.TopoGraph;
 import usf.saav.topology.TopoTreeNode;
 import usf.saav.topology.TopoTreeNode.NodeType;
@@ -14,10 +16,18 @@ import usf.saav.topology.merge.AugmentedJoinTree;
 import usf.saav.topology.merge.AugmentedMergeTree;
 import usf.saav.topology.merge.AugmentedSplitTree;
 import usf.saav.topology.reebgraph.ReebGraph;
+import usf.saav.topology.reebgraph.ReebGraphCriticalPoints;
 import usf.saav.topology.reebgraph.ReebGraphVertex;
 
 public class MergePairing implements Pairing {
 	
+	private static final FlightEvents.Type TREE_EVENT = FlightEvents.define( "MergeTree", "Build Merge Tree",
+			new String[]{ "tree", "vertices", "nodes" },
+			new Class<?>[]{ String.class, long.class, long.class } );
+	private static final FlightEvents.Type SEARCH_EVENT = FlightEvents.define( "DownforkSearch", "Downfork Search",
+			new String[]{ "vertex", "visited" },
+			new Class<?>[]{ long.class, long.class } );
+
 	private String output_directory = "";
 	private boolean saveTrees = false;
 	
@@ -34,10 +44,15 @@ public class MergePairing implements Pairing {
 	
 	public void pair(ReebGraph reebMesh) {
 		
+		ReebGraphCriticalPoints cps = reebMesh.getCriticalPoints();
+		cps.clearPartners();
+
 		HashSet<TopoGraph.Vertex> essential = new HashSet<TopoGraph.Vertex>();
 		essential.addAll( reebMesh );
 
+		FlightEvents.Span ev = TREE_EVENT.begin();
 		AugmentedJoinTree mt = new AugmentedJoinTree( reebMesh, true );
+		if( ev != null ) ev.set( 0, "join" ).set( 1, reebMesh.size() ).set( 2, mt.size() ).commit();
 		if( saveTrees ) {
 			try {
 				SystemX.writeStringToFile(mt.toDot(), output_directory + "mt.dot" );
@@ -46,7 +61,9 @@ public class MergePairing implements Pairing {
 			}
 		}
 		
+		ev = TREE_EVENT.begin();
 		AugmentedSplitTree st = new AugmentedSplitTree( reebMesh, true );
+		if( ev != null ) ev.set( 0, "split" ).set( 1, reebMesh.size() ).set( 2, st.size() ).commit();
 		if( saveTrees ) {
 			try {
 				SystemX.writeStringToFile(st.toDot(), output_directory + "st.dot" );
@@ -55,43 +72,57 @@ public class MergePairing implements Pairing {
 			}
 		}
 		
-		ReebGraphVertex gmin = joinTreePairing( mt, reebMesh, essential );
-		ReebGraphVertex gmax = joinTreePairing( st, reebMesh, essential );
+		int gmin = joinTreePairing( mt, reebMesh, cps, essential, NodeType.LEAF_MIN, NodeType.DOWNFORK );
+		int gmax = joinTreePairing( st, reebMesh, cps, essential, NodeType.LEAF_MAX, NodeType.UPFORK );
 		
-		gmin.setPartner(gmax);
-		gmax.setPartner(gmin);
+		cps.setPartners(gmin, gmax);
 		
 		
+		// one disjoint set is shared by all downfork searches and rolled back after each
+		IntDisjointSet djs = new IntDisjointSet( reebMesh.size(), true );
+		boolean [] branch = reebMesh.hasForks() ? new boolean[reebMesh.size()] : null;
 		for( TopoGraph.Vertex _v : reebMesh ) {
 			ReebGraphVertex rv = (ReebGraphVertex)_v;
-			if( rv.getPartner() == null && rv.getType() == NodeType.DOWNFORK ) {
-				ReebGraphVertex res = downforkPairing( rv );
-				rv.setPartner(res);
-				res.setPartner(rv);
+			if( rv.getFork() != null ) {
+				forkPairing( rv, cps, djs, branch );
+			}
+			else if( !cps.isPaired( cps.of(rv) ) && cps.getType( cps.of(rv) ) == NodeType.DOWNFORK ) {
+				int res = cps.criticalPoint( downforkPairing( rv, djs ), NodeType.UPFORK );
+				cps.setPartners( cps.of(rv), res );
 			}
 		}
 		
 	}
 	
 
-	private ReebGraphVertex joinTreePairing( AugmentedMergeTree jt, ReebGraph reebMesh, HashSet<TopoGraph.Vertex> essential ) {
-		ReebGraphVertex gmin=null;
+	/**
+	 * Pairs are set from the leaf side. A native fork appears in the tree
+	 * once per merge it makes (see MergeTree.correctMonkeySaddles()), and
+	 * each appearance takes the fork's next unpaired event of forkType.
+	 */
+	private int joinTreePairing( AugmentedMergeTree jt, ReebGraph reebMesh, ReebGraphCriticalPoints cps, HashSet<TopoGraph.Vertex> essential, NodeType leafType, NodeType forkType ) {
+		int gmin = -1;
 		for(int i = 0; i < jt.size(); i++ ){
 			TopoTreeNode    mtv = jt.getNode(i);
 			TopoTreeNode    mtp = mtv.getPartner();
 			ReebGraphVertex rbv = (ReebGraphVertex)reebMesh.get( mtv.getID() );
 			
 			essential.remove( rbv );
-			if( mtp == null ) 
-				gmin = rbv; 
-			else
-				rbv.setPartner( (ReebGraphVertex)reebMesh.get( mtp.getID() ) );
+			if( mtv.getType() != NodeType.LEAF ) continue;
+
+			int leaf = cps.criticalPoint( rbv, leafType );
+			if( mtp == null ) {
+				gmin = leaf;
+				continue;
+			}
+			int saddle = cps.criticalPoint( (ReebGraphVertex)reebMesh.get( mtp.getID() ), forkType );
+			cps.setPartners( leaf, saddle );
 		}
 		return gmin;
 		
 	}
 	
-	private ReebGraphVertex downforkPairing(ReebGraphVertex rv) {
+	private ReebGraphVertex downforkPairing(ReebGraphVertex rv, IntDisjointSet djs) {
 		ReebGraphVertex n0 = null, n1 = null;
 		for( ReebGraphVertex n : rv.neighbors ) {
 			if( n.value() < rv.value() ){
@@ -102,6 +133,8 @@ public class MergePairing implements Pairing {
 		
 		// simple pairing
 		if( n0 == n1 ) return n0;
+
+		FlightEvents.Span ev = SEARCH_EVENT.begin();
 		
 		PriorityQueue<ReebGraphVertex> proc = new PriorityQueue<ReebGraphVertex>( new Comparator<ReebGraphVertex>() {
 			@Override public int compare(ReebGraphVertex o1, ReebGraphVertex o2) {
@@ -111,8 +144,9 @@ public class MergePairing implements Pairing {
 		});
 		proc.add(rv);
 		
-		HashDisjointSet<ReebGraphVertex> djs = new HashDisjointSet<ReebGraphVertex>();
 		HashSet<ReebGraphVertex> visited = new HashSet<ReebGraphVertex>();
+		int checkpoint = djs.checkpoint();
+		ReebGraphVertex ret = null;
 		
 		while( !proc.isEmpty() ) {
 			ReebGraphVertex curr = proc.poll();
@@ -122,17 +156,92 @@ public class MergePairing implements Pairing {
 			for( ReebGraphVertex n : curr.neighbors ) {
 				if( n.value() >= rv.value() ) continue;
 				if( n.value() > curr.value() ) {
-					djs.union( curr, n );
+					djs.union( curr.getID(), n.getID() );
 				}
 				if( !visited.contains(n) ) proc.add(n);
 			}
 			
-			if( djs.find(n0) == djs.find(n1) ) {
-				return curr;
+			if( djs.sameSet( n0.getID(), n1.getID() ) ) {
+				ret = curr;
+				break;
 			}
 		}
-		return null;
+		djs.rollback( checkpoint );
+		if( ev != null ) ev.set( 0, rv.getGlobalID() ).set( 1, visited.size() ).commit();
+		return ret;
 	}	
+
+	/**
+	 * Essential pairing for the downfork events of a native fork. Searching
+	 * down from rv, each time two groups of rv's lower neighbors meet, an
+	 * unpaired downfork event is paired with the upfork where they meet.
+	 * This is the same set of meeting points that downforkPairing() finds
+	 * for the conditioned chain, one link at a time.
+	 */
+	private void forkPairing(ReebGraphVertex rv, ReebGraphCriticalPoints cps, IntDisjointSet djs, boolean [] branch) {
+		int needed = cps.countUnpaired( rv, NodeType.DOWNFORK );
+		if( needed == 0 ) return;
+
+		FlightEvents.Span ev = SEARCH_EVENT.begin();
+
+		PriorityQueue<ReebGraphVertex> proc = new PriorityQueue<ReebGraphVertex>( new Comparator<ReebGraphVertex>() {
+			@Override public int compare(ReebGraphVertex o1, ReebGraphVertex o2) {
+				if( o1.value() > o2.value() ) return -1;
+				return 1;
+			}
+		});
+
+		HashSet<ReebGraphVertex> visited = new HashSet<ReebGraphVertex>();
+		ArrayList<Integer> marked = new ArrayList<Integer>();
+		int checkpoint = djs.checkpoint();
+
+		// every lower neighbor starts its own group; a repeated edge closes a
+		// loop at once, as in downforkPairing()
+		visited.add(rv);
+		for( ReebGraphVertex n : rv.neighbors ) {
+			if( n.value() >= rv.value() ) continue;
+			if( branch[n.getID()] ) {
+				if( needed-- > 0 ) pairFork( cps, rv, n );
+				continue;
+			}
+			branch[n.getID()] = true;
+			marked.add( n.getID() );
+			proc.add(n);
+		}
+
+		while( !proc.isEmpty() && needed > 0 ) {
+			ReebGraphVertex curr = proc.poll();
+			if( visited.contains(curr) ) continue;
+			visited.add(curr);
+
+			for( ReebGraphVertex n : curr.neighbors ) {
+				if( n.value() >= rv.value() ) continue;
+				if( n.value() > curr.value() ) {
+					int r0 = djs.find( curr.getID() );
+					int r1 = djs.find( n.getID() );
+					if( r0 != r1 ) {
+						boolean meet = branch[r0] && branch[r1];
+						boolean any  = branch[r0] || branch[r1];
+						int r = djs.union( r0, r1 );
+						if( any && !branch[r] ) {
+							branch[r] = true;
+							marked.add( r );
+						}
+						if( meet && needed-- > 0 ) pairFork( cps, rv, curr );
+					}
+				}
+				if( !visited.contains(n) ) proc.add(n);
+			}
+		}
+
+		for( int r : marked ) branch[r] = false;
+		djs.rollback( checkpoint );
+		if( ev != null ) ev.set( 0, rv.getGlobalID() ).set( 1, visited.size() ).commit();
+	}
+
+	private void pairFork(ReebGraphCriticalPoints cps, ReebGraphVertex rv, ReebGraphVertex upfork) {
+		cps.setPartners( cps.criticalPoint( rv, NodeType.DOWNFORK ), cps.criticalPoint( upfork, NodeType.UPFORK ) );
+	}
 	
 	
 }
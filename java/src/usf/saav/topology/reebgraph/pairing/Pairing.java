@@ -2,6 +2,10 @@ package usf.saav.topology.reebgraph.pairing;
 
 import usf.saav.topology.reebgraph.ReebGraph;
 
+/**
+ * Implementations must keep no per-graph state in fields, since independent
+ * components may be paired concurrently with the same instance.
+ */
 public interface Pairing {
 	public void pair( ReebGraph g );
 
@@ -1,42 +1,43 @@
 package usf.saav.topology.reebgraph.pairing;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.TreeSet;
 
-import usf.saav.topology.TopoGraph.Vertex;
 import usf.saav.topology.TopoTreeNode.NodeType;
 import usf.saav.topology.reebgraph.ReebGraph;
-import usf.saav.topology.reebgraph.ReebGraphVertex;
+import usf.saav.topology.reebgraph.ReebGraphCriticalPoints;
 
 
 
 
 public class PropagateAndPair implements Pairing {
 
-	HashMap<ReebGraphVertex,TreeSet<Label>> inLabels;
-	TreeSet<VEdge> virtEdges;
-	
 	public PropagateAndPair( ) { }
 	
 	public String getName() { return "Pair and Propagate"; }
 	
 	@Override
 	public void pair(ReebGraph reebMesh) {
-		inLabels = new HashMap<ReebGraphVertex,TreeSet<Label>>();
-		virtEdges = new TreeSet<VEdge>();
+		// native forks are swept event by event, as their chain would be
+		ReebGraphCriticalPoints cps = reebMesh.getCriticalPoints();
+		cps.clearPartners();
+
+		// sweep state is local so one instance can pair several graphs concurrently
+		ArrayList<TreeSet<Label>> inLabels = new ArrayList<TreeSet<Label>>( cps.size() );
+		TreeSet<VEdge> virtEdges = new TreeSet<VEdge>();
 
-		for( Vertex v : reebMesh ) {
-			inLabels.put( (ReebGraphVertex)v, new TreeSet<Label>() );
+		for( int v = 0; v < cps.size(); v++ ) {
+			inLabels.add( new TreeSet<Label>() );
 		}
 
-		for( ReebGraphVertex v : reebMesh.getNodesSortedByValue() ) {
+		// critical points are numbered in value order
+		for( int v = 0; v < cps.size(); v++ ) {
 		
-			switch( v.getType() ) {
-				case LEAF_MAX:	processMax(v);		break;
-				case DOWNFORK:	processMerge(v);	break;
-				case LEAF_MIN:	processMin(v);		break;
-				case UPFORK:	processSplit(v);	break;
+			switch( cps.getType(v) ) {
+				case LEAF_MAX:	processMax(cps, v, inLabels, virtEdges);	break;
+				case DOWNFORK:	processMerge(cps, v, inLabels, virtEdges);	break;
+				case LEAF_MIN:	processMin(cps, v, inLabels);				break;
+				case UPFORK:	processSplit(cps, v, inLabels, virtEdges);	break;
 				default: System.err.println("Unknown Critical Point Type");
 			}
 			
@@ -44,21 +45,21 @@ public class PropagateAndPair implements Pairing {
 	}
 	
 	
-	private void processMax(ReebGraphVertex v) {
+	private void processMax(ReebGraphCriticalPoints cps, int v, ArrayList<TreeSet<Label>> inLabels, TreeSet<VEdge> virtEdges) {
 		
-		ReebGraphVertex maxSaddle = null;
-		ReebGraphVertex minMin    = null;
+		int maxSaddle = -1;
+		int minMin    = -1;
 		for( Label l : inLabels.get(v) ) {
-			if( l.isPaired() ) continue;
+			if( cps.isPaired(l.vrt) ) continue;
 			
-			ReebGraphVertex n = l.vrt;
-			if( l.getType() == NodeType.UPFORK ) {
-				if( maxSaddle == null || n.value() > maxSaddle.value() )
+			int n = l.vrt;
+			if( cps.getType(n) == NodeType.UPFORK ) {
+				if( maxSaddle == -1 || n > maxSaddle )
 					maxSaddle = n;
 			}
 			
-			if( l.getType() == NodeType.LEAF_MIN ) {
-				if( minMin == null || minMin.value() > n.value() )
+			if( cps.getType(n) == NodeType.LEAF_MIN ) {
+				if( minMin == -1 || minMin > n )
 					minMin = n;
 			}
 			
@@ -70,24 +71,23 @@ public class PropagateAndPair implements Pairing {
 			//virtEdges.poll();
 		}
 		
-		if( maxSaddle!= null) {
-			v.setPartner(maxSaddle);
-			maxSaddle.setPartner(v);		
+		if( maxSaddle != -1 ) {
+			cps.setPartners(v, maxSaddle);
 		}
 		else {
-			v.setPartner(minMin);
-			minMin.setPartner(v);		
+			cps.setPartners(v, minMin);
 		}
 	}
 
 
-	private void processSplit(ReebGraphVertex v) {
+	private void processSplit(ReebGraphCriticalPoints cps, int v, ArrayList<TreeSet<Label>> inLabels, TreeSet<VEdge> virtEdges) {
 		
 		// Find the 2 outgoing edges
-		ReebGraphVertex n0 = null, n1 = null;
-		for( ReebGraphVertex n : v.neighbors ) {
-			if( n.value() > v.value() ) {
-				if( n0 == null ) n0 = n;
+		int n0 = -1, n1 = -1;
+		for( int i = cps.neighborStart(v); i < cps.neighborEnd(v); i++ ) {
+			int n = cps.getNeighbor(i);
+			if( n > v ) {
+				if( n0 == -1 ) n0 = n;
 				else n1 = n;
 			}
 		}
@@ -106,26 +106,27 @@ public class PropagateAndPair implements Pairing {
 		// Forward old virtual edges
 		while( !virtEdges.isEmpty() && virtEdges.first().n0 == v ) {
 			VEdge e = virtEdges.pollFirst();
-			if( e.gen.getPartner() != null ) continue; 
+			if( cps.isPaired(e.gen) ) continue; 
 			virtEdges.add( new VEdge(e.gen,n0,e.n1) );
 			virtEdges.add( new VEdge(e.gen,n1,e.n1) );
 		}
 		
 	}
 	
-	private void processMin(ReebGraphVertex v) {
+	private void processMin(ReebGraphCriticalPoints cps, int v, ArrayList<TreeSet<Label>> inLabels) {
 		// Create new label
-		for( ReebGraphVertex n : v.neighbors ) {
-			inLabels.get(n).add( new Label(v,0) );
+		for( int i = cps.neighborStart(v); i < cps.neighborEnd(v); i++ ) {
+			inLabels.get(cps.getNeighbor(i)).add( new Label(v,0) );
 		}
 	}
 
-	private void processMerge(ReebGraphVertex v) {
+	private void processMerge(ReebGraphCriticalPoints cps, int v, ArrayList<TreeSet<Label>> inLabels, TreeSet<VEdge> virtEdges) {
 		
 		// Find outgoing edge
-		ReebGraphVertex n0 = null;
-		for( ReebGraphVertex n : v.neighbors ) {
-			if( n.value() > v.value() ) {
+		int n0 = -1;
+		for( int i = cps.neighborStart(v); i < cps.neighborEnd(v); i++ ) {
+			int n = cps.getNeighbor(i);
+			if( n > v ) {
 				n0 = n;
 			}
 		}
@@ -133,15 +134,15 @@ public class PropagateAndPair implements Pairing {
 
 		// Identify the possible pairing partners. 
 		// This will be the highest upfork or highest leaf. 
-		ReebGraphVertex maxLeaf = null;
-		ReebGraphVertex upfork  = null;
+		int maxLeaf = -1;
+		int upfork  = -1;
 		Label prev = null;
 		for( Label curr : inLabels.get(v) ) {
-			if( curr.isPaired() ) continue;
-			if( curr.getType() == NodeType.LEAF_MIN ) { 
+			if( cps.isPaired(curr.vrt) ) continue;
+			if( cps.getType(curr.vrt) == NodeType.LEAF_MIN ) { 
 				maxLeaf = curr.vrt;
 			}
-			else if( curr.getType() == NodeType.UPFORK && prev != null && curr.vrt == prev.vrt ) {
+			else if( cps.getType(curr.vrt) == NodeType.UPFORK && prev != null && curr.vrt == prev.vrt ) {
 				upfork = curr.vrt;
 			}
 			prev = curr;
@@ -149,13 +150,11 @@ public class PropagateAndPair implements Pairing {
 		
 		// If an upfork is found, a cycle is closed. 
 		// Otherwise we have nonessential fork.
-		if( upfork != null ) {
-			v.setPartner(upfork);
-			upfork.setPartner(v);
+		if( upfork != -1 ) {
+			cps.setPartners(v, upfork);
 		}
 		else {
-			v.setPartner(maxLeaf);
-			maxLeaf.setPartner(v);
+			cps.setPartners(v, maxLeaf);
 		}		
 		
 		// Forward virtual edges
@@ -163,7 +162,7 @@ public class PropagateAndPair implements Pairing {
 		while( !virtEdges.isEmpty() && virtEdges.first().n0 == v ) {
 			VEdge e = virtEdges.pollFirst();
 			
-			if( e.gen.getPartner() != null ) continue; 
+			if( cps.isPaired(e.gen) ) continue; 
 			
 			// both ends of the virtual edge are the current node, skip
 			if( e.n1 == v ) continue;
@@ -181,16 +180,16 @@ public class PropagateAndPair implements Pairing {
 			VEdge ei = activeEdges.get(i);
 			for(int j = i+1; j < activeEdges.size(); j++ ) {
 				VEdge ej = activeEdges.get(j);
-				if( ei.gen.value() < ej.gen.value() ) { virtEdges.add( new VEdge(ei.gen,ei.n1,ej.n1) ); }
-				if( ej.gen.value() < ei.gen.value() ) { virtEdges.add( new VEdge(ej.gen,ej.n1,ei.n1) ); }
+				if( ei.gen < ej.gen ) { virtEdges.add( new VEdge(ei.gen,ei.n1,ej.n1) ); }
+				if( ej.gen < ei.gen ) { virtEdges.add( new VEdge(ej.gen,ej.n1,ei.n1) ); }
 			}
 		}
 
 		// Forward labels across virtual edges
 		for( VEdge ei : activeEdges ) {
 			for( Label l : inLabels.get(v) ) {
-				if( l.isPaired() ) continue;
-				if( l.vrt.value() < ei.gen.value() ) {
+				if( cps.isPaired(l.vrt) ) continue;
+				if( l.vrt < ei.gen ) {
 					inLabels.get( ei.n1 ).add(l);
 				}
 			}
@@ -198,7 +197,7 @@ public class PropagateAndPair implements Pairing {
 		
 		// Forward labels across real edges
 		for( Label l : inLabels.get(v) ) {
-			if( !l.isPaired() ) {
+			if( !cps.isPaired(l.vrt) ) {
 				inLabels.get(n0).add( l );
 			}
 		}
@@ -206,24 +205,18 @@ public class PropagateAndPair implements Pairing {
 	}
 	
 	
-	private class Label implements Comparable<Label> {
-		ReebGraphVertex vrt;
+	// critical points are compared by number, which is value order
+	private static class Label implements Comparable<Label> {
+		int vrt;
 		int leg;
 		
-		Label( ReebGraphVertex _vrt, int _leg ){
+		Label( int _vrt, int _leg ){
 			vrt = _vrt;
 			leg = _leg;
 		}
-		
-		public boolean isPaired() {
-			return vrt.getPartner()!=null;
-		}
 
 		public int hashCode() {
-			return vrt.hashCode() * (leg+13);
-		}
-		public NodeType getType() {
-			return vrt.getType();
+			return vrt * (leg+13);
 		}
 		
 		public boolean equals(Object obj) {
@@ -234,13 +227,13 @@ public class PropagateAndPair implements Pairing {
 			return false;
 		}
 		public String toString() {
-			return vrt.getGlobalID() + "[" + leg + "]";
+			return vrt + "[" + leg + "]";
 		}
 
 		@Override
 		public int compareTo(Label o) {
-			if( vrt.value() < o.vrt.value() ) return -1;
-			if( vrt.value() > o.vrt.value() ) return  1;
+			if( vrt < o.vrt ) return -1;
+			if( vrt > o.vrt ) return  1;
 			if( leg < o.leg ) return -1;
 			if( leg > o.leg ) return  1;
 			return 0;
@@ -248,31 +241,30 @@ public class PropagateAndPair implements Pairing {
 
 	}
 	
-	private class VEdge implements Comparable<VEdge> {
-		ReebGraphVertex n0, n1;
-		ReebGraphVertex gen;
+	private static class VEdge implements Comparable<VEdge> {
+		int n0, n1;
+		int gen;
 
-		public VEdge(ReebGraphVertex _v, ReebGraphVertex _n0, ReebGraphVertex _n1) {
+		public VEdge(int _v, int _n0, int _n1) {
 			gen = _v;
-			n0 = (_n0.value()<_n1.value())?_n0:_n1;
-			n1 = (_n0.value()<_n1.value())?_n1:_n0;
+			n0 = Math.min(_n0, _n1);
+			n1 = Math.max(_n0, _n1);
 		}
 
 		@Override
 		public int compareTo(VEdge o) {
-			if( n0.value() < o.n0.value() ) return -1;
-			if( n0.value() > o.n0.value() ) return  1;
-			if( n1.value() < o.n1.value() ) return -1;
-			if( n1.value() > o.n1.value() ) return  1;
-			if( gen.value() < o.gen.value() ) return -1;
-			if( gen.value() > o.gen.value() ) return  1;
+			if( n0 < o.n0 ) return -1;
+			if( n0 > o.n0 ) return  1;
+			if( n1 < o.n1 ) return -1;
+			if( n1 > o.n1 ) return  1;
+			if( gen < o.gen ) return -1;
+			if( gen > o.gen ) return  1;
 			return 0;
 		}
 
 		@Override
 		public String toString() {
-			return n0.getGlobalID() + "(" + n0.value() +")" + " ==> " + gen.getGlobalID() 
-					+ " " + n1.getGlobalID() + "(" + n1.value() +")" + " ==> " + gen.getGlobalID();
+			return n0 + " ==> " + gen + " " + n1 + " ==> " + gen;
 		}
 	}
 